@@ -0,0 +1,150 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.utils.ParallelRunner;
+
+import java.security.MessageDigest;
+import java.util.EnumSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Does the checks of {@link UldBlock#verifyTransactions(int, EnumSet)} with the work spread over several threads:
+ * the transactions are split in runs, each of which is hashed for the merkle tree, has its sigops counted and every
+ * transaction in it checked by one thread. The results are then looked at in the order the block checks them in, so a
+ * block is accepted or rejected with the same exception whichever thread found what first. The lower levels of the
+ * merkle tree of large blocks are split between the same threads, see {@link MerkleHasher}.</p>
+ *
+ * <p>Transactions of a block parsed in retain mode that were never touched are checked straight in the payload, so
+ * verifying a full block doesn't build thousands of transactions only to throw them away.</p>
+ */
+public class BlockVerifier {
+    // Transactions taken at a time by a thread, enough that taking them costs nothing next to checking them.
+    private static final int RUN_LENGTH = 64;
+
+    private final ParallelRunner runner;
+    private final MerkleHasher merkleHasher;
+
+    /** Creates a verifier that checks transactions on a default {@link ParallelRunner}. */
+    public BlockVerifier() {
+        this(new ParallelRunner());
+    }
+
+    /**
+     * @param executor checks transactions besides the calling thread
+     * @param parallelism the most threads to check transactions at the same time, counting the calling thread
+     */
+    public BlockVerifier(Executor executor, int parallelism) {
+        this(new ParallelRunner(executor, parallelism));
+    }
+
+    private BlockVerifier(ParallelRunner runner) {
+        this.runner = runner;
+        this.merkleHasher = new MerkleHasher(runner);
+    }
+
+    /**
+     * Verifies both the header and the transactions of the block, see {@link UldBlock#verify(int, EnumSet)}.
+     *
+     * @throws VerificationException if there was an error verifying the block.
+     */
+    public void verify(UldBlock block, int height, EnumSet<UldBlock.VerifyFlag> flags) throws VerificationException {
+        block.verifyHeader();
+        verifyTransactions(block, height, flags);
+    }
+
+    /**
+     * Verifies the transactions of the block, see {@link UldBlock#verifyTransactions(int, EnumSet)}. The block must
+     * not be modified until this returns.
+     *
+     * @throws VerificationException if there was an error verifying the block.
+     */
+    public void verifyTransactions(UldBlock block, int height, EnumSet<UldBlock.VerifyFlag> flags)
+            throws VerificationException {
+        if (block.transactions.isEmpty())
+            throw new VerificationException("Block had no transactions");
+        if (block.getOptimalEncodingMessageSize() > UldBlock.MAX_BLOCK_SIZE)
+            throw new VerificationException("Block larger than MAX_BLOCK_SIZE");
+        Checks checks = new Checks(block);
+        checks.run();
+        RuntimeException failure = checks.firstFailure();
+        if (failure != null)
+            throw failure;
+
+        block.checkTransactions(height, flags, checks.coinBase);
+        block.checkMerkleRoot(Sha256Hash.wrapReversed(merkleHasher.computeRoot(checks.hashes, checks.count)));
+        int sigOps = 0;
+        for (int i = 0; i < checks.count; i++)
+            sigOps += checks.sigOps[i];
+        block.checkSigOps(sigOps);
+        for (int i = 0; i < checks.count; i++)
+            if (checks.errors[i] != null)
+                throw checks.errors[i];
+    }
+
+    /** What there is to know about each transaction of a block, filled in by the calling thread and others. */
+    private class Checks {
+        private final UldBlock block;
+        private final int count;
+        // The merkle leaves, 32 bytes each.
+        private final byte[] hashes;
+        private final int[] sigOps;
+        private final boolean[] coinBase;
+        // Why the transaction didn't verify, reported only if the block passes every other check.
+        private final RuntimeException[] errors;
+        // What went wrong hashing or counting, which happens before anything else is reported.
+        private final RuntimeException[] failures;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Checks(UldBlock block) {
+            this.block = block;
+            this.count = block.transactions.size();
+            this.hashes = new byte[count * 32];
+            this.sigOps = new int[count];
+            this.coinBase = new boolean[count];
+            this.errors = new RuntimeException[count];
+            this.failures = new RuntimeException[count];
+        }
+
+        void run() {
+            runner.run((count + RUN_LENGTH - 1) / RUN_LENGTH, new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+
+        private void work() {
+            MessageDigest digest = Sha256Hash.newDigest();
+            int start;
+            while ((start = next.getAndAdd(RUN_LENGTH)) < count) {
+                int end = Math.min(start + RUN_LENGTH, count);
+                for (int i = start; i < end; i++)
+                    check(i, digest);
+            }
+        }
+
+        private void check(int index, MessageDigest digest) {
+            try {
+                block.writeTransactionHash(index, digest, hashes, index * 32);
+                sigOps[index] = block.getSigOpCount(index);
+                coinBase[index] = block.isCoinBase(index);
+            } catch (RuntimeException e) {
+                failures[index] = e;
+                return;
+            }
+            try {
+                block.verifyTransaction(index);
+            } catch (RuntimeException e) {
+                errors[index] = e;
+            }
+        }
+
+        RuntimeException firstFailure() {
+            for (RuntimeException failure : failures)
+                if (failure != null)
+                    return failure;
+            return null;
+        }
+    }
+}
@@ -20,6 +20,7 @@ package co.usc.ulordj.core;
 import com.google.common.base.Objects;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -42,6 +43,14 @@ public class FilteredBlock extends Message {
         super(params, payloadBytes, 0);
     }
 
+    /**
+     * Parses a filtered block starting at the given offset of the payload, which may be a larger buffer.
+     */
+    public FilteredBlock(NetworkParameters params, byte[] payloadBytes, int offset, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, offset, serializer, length);
+    }
+
     public FilteredBlock(NetworkParameters params, UldBlock header, PartialMerkleTree pmt) {
         super(params);
         this.header = header;
@@ -57,13 +66,21 @@ public class FilteredBlock extends Message {
         merkleTree.ulordSerializeToStream(stream);
     }
 
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        if (header.transactions == null)
+            header.ulordSerializeToBuffer(buf);
+        else
+            header.cloneAsHeader().ulordSerializeToBuffer(buf);
+        merkleTree.ulordSerializeToBuffer(buf);
+    }
+
     @Override
     protected void parse() throws ProtocolException {
-        byte[] headerBytes = new byte[UldBlock.HEADER_SIZE];
-        System.arraycopy(payload, 0, headerBytes, 0, UldBlock.HEADER_SIZE);
-        header = params.getDefaultSerializer().makeBlock(headerBytes);
+        // Both parts are parsed in place: the header is told its exact length so it knows there are no transactions.
+        header = params.getDefaultSerializer().makeBlock(payload, offset, UldBlock.HEADER_SIZE);
         
-        merkleTree = new PartialMerkleTree(params, payload, UldBlock.HEADER_SIZE);
+        merkleTree = new PartialMerkleTree(params, payload, offset + UldBlock.HEADER_SIZE);
         
         length = UldBlock.HEADER_SIZE + merkleTree.getMessageSize();
     }
@@ -22,6 +22,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -45,6 +46,14 @@ public class HeadersMessage extends Message {
         super(params, payload, 0);
     }
 
+    /**
+     * Parses a headers message starting at the given offset of the payload, which may be a larger buffer.
+     */
+    public HeadersMessage(NetworkParameters params, byte[] payload, int offset, MessageSerializer serializer, int length)
+            throws ProtocolException {
+        super(params, payload, offset, serializer, length);
+    }
+
     public HeadersMessage(NetworkParameters params, UldBlock... headers) throws ProtocolException {
         super(params);
         blockHeaders = Arrays.asList(headers);
@@ -64,6 +73,15 @@ public class HeadersMessage extends Message {
         }
     }
 
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        VarInt.write(blockHeaders.size(), buf);
+        for (UldBlock header : blockHeaders) {
+            header.cloneAsHeader().ulordSerializeToBuffer(buf);
+            buf.put((byte) 0);
+        }
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         long numHeaders = readVarInt();
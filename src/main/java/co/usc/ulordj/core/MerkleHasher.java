@@ -0,0 +1,173 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.utils.ParallelRunner;
+
+import javax.annotation.Nullable;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes merkle roots and trees over hashes laid out one after the other in a flat array, 32 bytes each, in the
+ * internal byte order, the one double SHA-256 produces and the wire uses, the reverse of {@link Sha256Hash#getBytes()}.
+ * Nothing is reversed or wrapped along the way: every node is hashed from the array into the array.</p>
+ *
+ * <p>As in Bitcoin Core, a level with an odd number of nodes pairs its last node with itself. A hasher made with an
+ * executor splits levels of {@link #PARALLEL_LEVEL_SIZE} nodes or more between threads; the levels above are hashed
+ * by the calling thread, as there's too little work left in them.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class MerkleHasher {
+    /** Number of nodes from which a level is split between threads. */
+    public static final int PARALLEL_LEVEL_SIZE = 2048;
+    // Pairs taken at a time by a thread.
+    private static final int RUN_LENGTH = 256;
+
+    private static final int HASH_LENGTH = 32;
+
+    @Nullable private final ParallelRunner runner;
+
+    /** Creates a hasher that does all the work on the calling thread. */
+    public MerkleHasher() {
+        this.runner = null;
+    }
+
+    /**
+     * @param executor hashes parts of large levels besides the calling thread
+     * @param parallelism the most threads hashing a level at the same time, counting the calling thread
+     */
+    public MerkleHasher(Executor executor, int parallelism) {
+        this(new ParallelRunner(executor, parallelism));
+    }
+
+    MerkleHasher(ParallelRunner runner) {
+        this.runner = runner;
+    }
+
+    /** Returns the number of nodes in the merkle tree over the given number of leaves, the leaves included. */
+    public static int getTreeSize(int leafCount) {
+        checkArgument(leafCount > 0, "no leaves");
+        int size = leafCount;
+        for (int levelSize = leafCount; levelSize > 1; levelSize = (levelSize + 1) / 2)
+            size += (levelSize + 1) / 2;
+        return size;
+    }
+
+    /**
+     * Computes the merkle root of the first count hashes of the array, overwriting them with the levels above. Returns
+     * the root, which also ends up in the first 32 bytes of the array.
+     */
+    public byte[] computeRoot(byte[] hashes, int count) {
+        checkArgument(count > 0, "no leaves");
+        checkArgument(hashes.length >= count * HASH_LENGTH, "fewer hashes than leaves");
+        byte[] level = hashes;
+        byte[] scratch = null;
+        MessageDigest digest = Sha256Hash.newDigest();
+        for (int levelSize = count; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            if (runner != null && levelSize >= PARALLEL_LEVEL_SIZE) {
+                // Threads would read nodes others overwrite if they worked in place, so go back and forth instead.
+                if (scratch == null)
+                    scratch = new byte[(count + 1) / 2 * HASH_LENGTH];
+                byte[] next = level == hashes ? scratch : hashes;
+                hashLevelInParallel(level, 0, levelSize, next, 0);
+                level = next;
+            } else {
+                hashLevel(digest, level, 0, levelSize, level, 0, 0, (levelSize + 1) / 2);
+            }
+        }
+        if (level != hashes)
+            System.arraycopy(level, 0, hashes, 0, HASH_LENGTH);
+        byte[] root = new byte[HASH_LENGTH];
+        System.arraycopy(hashes, 0, root, 0, HASH_LENGTH);
+        return root;
+    }
+
+    /**
+     * Computes the whole merkle tree over the first count hashes of the array, which are left as they are. Returns
+     * the {@link #getTreeSize(int)} nodes of the tree one level after the other, the leaves first and the root last.
+     */
+    public byte[] computeTree(byte[] leaves, int count) {
+        checkArgument(count > 0, "no leaves");
+        checkArgument(leaves.length >= count * HASH_LENGTH, "fewer hashes than leaves");
+        byte[] tree = new byte[getTreeSize(count) * HASH_LENGTH];
+        System.arraycopy(leaves, 0, tree, 0, count * HASH_LENGTH);
+        MessageDigest digest = Sha256Hash.newDigest();
+        int levelOffset = 0;
+        for (int levelSize = count; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            int nextOffset = levelOffset + levelSize * HASH_LENGTH;
+            if (runner != null && levelSize >= PARALLEL_LEVEL_SIZE)
+                hashLevelInParallel(tree, levelOffset, levelSize, tree, nextOffset);
+            else
+                hashLevel(digest, tree, levelOffset, levelSize, tree, nextOffset, 0, (levelSize + 1) / 2);
+            levelOffset = nextOffset;
+        }
+        return tree;
+    }
+
+    /**
+     * Writes the double SHA-256 of the concatenation of two nodes to the given position, which may be one of the two.
+     * Nodes are in internal byte order.
+     */
+    public static void hashPair(MessageDigest digest, byte[] left, int leftOffset, byte[] right, int rightOffset,
+                                byte[] out, int outOffset) {
+        digest.update(left, leftOffset, HASH_LENGTH);
+        digest.update(right, rightOffset, HASH_LENGTH);
+        try {
+            digest.digest(out, outOffset, HASH_LENGTH);
+            digest.update(out, outOffset, HASH_LENGTH);
+            digest.digest(out, outOffset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    /**
+     * Writes the double SHA-256 of the given range, such as a serialized transaction, to the given position, in the
+     * internal byte order of a merkle leaf.
+     */
+    public static void hashTwice(MessageDigest digest, byte[] input, int offset, int length, byte[] out, int outOffset) {
+        digest.update(input, offset, length);
+        try {
+            digest.digest(out, outOffset, HASH_LENGTH);
+            digest.update(out, outOffset, HASH_LENGTH);
+            digest.digest(out, outOffset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    /**
+     * Hashes the pairs of nodes from fromPair to toPair of a level into the next one. The next level may start where
+     * the level does, as every node is written after the two it comes from are read and before any later ones are.
+     */
+    private static void hashLevel(MessageDigest digest, byte[] level, int levelOffset, int levelSize,
+                                  byte[] next, int nextOffset, int fromPair, int toPair) {
+        for (int pair = fromPair; pair < toPair; pair++) {
+            int left = levelOffset + pair * 2 * HASH_LENGTH;
+            // The last node of an odd level is paired with itself.
+            int right = pair * 2 + 1 < levelSize ? left + HASH_LENGTH : left;
+            hashPair(digest, level, left, level, right, next, nextOffset + pair * HASH_LENGTH);
+        }
+    }
+
+    private void hashLevelInParallel(final byte[] level, final int levelOffset, final int levelSize,
+                                     final byte[] next, final int nextOffset) {
+        final int pairs = (levelSize + 1) / 2;
+        final AtomicInteger nextPair = new AtomicInteger();
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                MessageDigest digest = Sha256Hash.newDigest();
+                int from;
+                while ((from = nextPair.getAndAdd(RUN_LENGTH)) < pairs)
+                    hashLevel(digest, level, levelOffset, levelSize, next, nextOffset, from,
+                            Math.min(from + RUN_LENGTH, pairs));
+            }
+        };
+        runner.run((pairs + RUN_LENGTH - 1) / RUN_LENGTH, work);
+    }
+}
@@ -22,6 +22,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -179,6 +182,9 @@ public abstract class Message {
      */
     public byte[] ulordSerialize() {
         byte[] bytes = unsafeUlordSerialize();
+        // Only the cached array is shared, anything else was freshly serialized for this call.
+        if (bytes != payload)
+            return bytes;
         byte[] copy = new byte[bytes.length];
         System.arraycopy(bytes, 0, copy, 0, bytes.length);
         return copy;
@@ -263,6 +269,44 @@ public abstract class Message {
         ulordSerializeToStream(stream);
     }
 
+    /**
+     * Serialize this message into the buffer at its current position using the bitcoin wire format, advancing the
+     * position past it. The buffer's byte order is left as it was. If the size of the message is known, it is given
+     * by {@link #getMessageSize()}.
+     *
+     * @throws BufferOverflowException if the buffer doesn't have enough space left, the position is undefined then.
+     */
+    public void ulordSerialize(ByteBuffer buf) throws BufferOverflowException {
+        // 1st check for cached bytes.
+        if (payload != null && length != UNKNOWN_LENGTH) {
+            buf.put(payload, offset, length);
+            return;
+        }
+
+        ByteOrder order = buf.order();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            ulordSerializeToBuffer(buf);
+        } finally {
+            buf.order(order);
+        }
+    }
+
+    /**
+     * Serializes this message into a little endian buffer. Subclasses write their fields in place, the default goes
+     * through {@link #ulordSerializeToStream(OutputStream)}.
+     */
+    protected void ulordSerializeToBuffer(ByteBuffer buf) throws BufferOverflowException {
+        buf.put(unsafeUlordSerialize());
+    }
+
+    /** Writes the hash in wire order, that is reversed, without allocating a reversed copy. */
+    protected static void putReversed(Sha256Hash hash, ByteBuffer buf) {
+        byte[] bytes = hash.getBytes();
+        for (int i = bytes.length - 1; i >= 0; i--)
+            buf.put(bytes[i]);
+    }
+
     /**
      * Serializes this message to the provided stream. If you just want the raw bytes use ulordSerialize().
      */
@@ -349,6 +393,28 @@ public abstract class Message {
             throw new ProtocolException(e);
         }
     }
+
+    /**
+     * Moves the cursor past the given number of bytes without copying them, applying the same bounds checks as
+     * {@link #readBytes(int)}. Returns the position in the payload at which the skipped bytes start, so callers can
+     * keep a view of them and copy them out later only if they're asked for.
+     */
+    protected int skipBytes(int length) throws ProtocolException {
+        if ((length > MAX_SIZE) || (length < 0) || (cursor + length > this.payload.length)) {
+            throw new ProtocolException("Claimed value length too large: " + length);
+        }
+        int start = cursor;
+        cursor += length;
+        return start;
+    }
+
+    protected byte readByte() throws ProtocolException {
+        try {
+            return payload[cursor++];
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
     
     protected byte[] readByteArray() throws ProtocolException {
         long len = readVarInt();
@@ -361,9 +427,21 @@ public abstract class Message {
     }
 
     protected Sha256Hash readHash() throws ProtocolException {
-        // We have to flip it around, as it's been read off the wire in little endian.
-        // Not the most efficient way to do this but the clearest.
-        return Sha256Hash.wrapReversed(readBytes(32));
+        // We have to flip it around, as it's been read off the wire in little endian. Do it while copying out of the
+        // payload so there's only one allocation per hash.
+        Sha256Hash hash = readHash(payload, cursor);
+        cursor += Sha256Hash.LENGTH;
+        return hash;
+    }
+
+    /** Reads a little endian hash at the given position of the array, without touching the cursor. */
+    static Sha256Hash readHash(byte[] buf, int offset) throws ProtocolException {
+        if (offset < 0 || offset + Sha256Hash.LENGTH > buf.length)
+            throw new ProtocolException("Hash runs past the end of the payload at offset " + offset);
+        byte[] bytes = new byte[Sha256Hash.LENGTH];
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            bytes[i] = buf[offset + Sha256Hash.LENGTH - 1 - i];
+        return Sha256Hash.wrap(bytes);
     }
 
     protected boolean hasMoreBytes() {
@@ -80,6 +80,18 @@ public abstract class MessageSerializer {
      */
     public abstract FilteredBlock makeFilteredBlock(byte[] payloadBytes) throws ProtocolException, UnsupportedOperationException;
 
+    /**
+     * Make a filtered block from the given range of the payload. Serializers that can parse in place should override
+     * this, by default the range is copied out and passed to {@link #makeFilteredBlock(byte[])}.
+     */
+    public FilteredBlock makeFilteredBlock(byte[] payloadBytes, int offset, int length) throws ProtocolException, UnsupportedOperationException {
+        if (offset == 0 && length == payloadBytes.length)
+            return makeFilteredBlock(payloadBytes);
+        byte[] copy = new byte[length];
+        System.arraycopy(payloadBytes, offset, copy, 0, length);
+        return makeFilteredBlock(copy);
+    }
+
     /**
      * Make a transaction from the payload. Extension point for alternative
      * serialization format support.
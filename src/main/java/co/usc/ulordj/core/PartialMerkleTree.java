@@ -20,6 +20,8 @@ package co.usc.ulordj.core;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -82,21 +84,11 @@ public class PartialMerkleTree extends Message {
 
     /**
      * Calculates a PMT given the list of leaf hashes and which leaves need to be included. The relevant interior hashes
-     * are calculated and a new PMT returned.
+     * are calculated and a new PMT returned. To build several proofs for the same block, use a
+     * {@link PartialMerkleTreeBuilder}, which hashes the tree only once.
      */
     public static PartialMerkleTree buildFromLeaves(NetworkParameters params, byte[] includeBits, List<Sha256Hash> allLeafHashes) {
-        // Calculate height of the tree.
-        int height = 0;
-        while (getTreeWidth(allLeafHashes.size(), height) > 1)
-            height++;
-        List<Boolean> bitList = new ArrayList<Boolean>();
-        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
-        traverseAndBuild(height, 0, allLeafHashes, includeBits, bitList, hashes);
-        byte[] bits = new byte[(int)Math.ceil(bitList.size() / 8.0)];
-        for (int i = 0; i < bitList.size(); i++)
-            if (bitList.get(i))
-                Utils.setBitLE(bits, i);
-        return new PartialMerkleTree(params, bits, hashes, allLeafHashes.size());
+        return new PartialMerkleTreeBuilder(allLeafHashes).build(params, includeBits);
     }
 
     @Override
@@ -111,6 +103,18 @@ public class PartialMerkleTree extends Message {
         stream.write(matchedChildBits);
     }
 
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        buf.putInt(transactionCount);
+
+        VarInt.write(hashes.size(), buf);
+        for (Sha256Hash hash : hashes)
+            putReversed(hash, buf);
+
+        VarInt.write(matchedChildBits.length, buf);
+        buf.put(matchedChildBits);
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         transactionCount = (int)readUint32();
@@ -126,50 +130,6 @@ public class PartialMerkleTree extends Message {
         length = cursor - offset;
     }
 
-    // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
-    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
-                                         List<Boolean> matchedChildBits, List<Sha256Hash> resultHashes) {
-        boolean parentOfMatch = false;
-        // Is this node a parent of at least one matched hash?
-        for (int p = pos << height; p < (pos+1) << height && p < allLeafHashes.size(); p++) {
-            if (Utils.checkBitLE(includeBits, p)) {
-                parentOfMatch = true;
-                break;
-            }
-        }
-        // Store as a flag bit.
-        matchedChildBits.add(parentOfMatch);
-        if (height == 0 || !parentOfMatch) {
-            // If at height 0, or nothing interesting below, store hash and stop.
-            resultHashes.add(calcHash(height, pos, allLeafHashes));
-        } else {
-            // Otherwise descend into the subtrees.
-            int h = height - 1;
-            int p = pos * 2;
-            traverseAndBuild(h, p, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-            if (p + 1 < getTreeWidth(allLeafHashes.size(), h))
-                traverseAndBuild(h, p + 1, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-        }
-    }
-
-    private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
-        if (height == 0) {
-            // Hash at height 0 is just the regular tx hash itself.
-            return hashes.get(pos);
-        }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
-        }
-        return combineLeftRight(left.getBytes(), right.getBytes());
-    }
-
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
     private static int getTreeWidth(int transactionCount, int height) {
         return (transactionCount + (1 << height) - 1) >> height;
@@ -177,11 +137,12 @@ public class PartialMerkleTree extends Message {
     
     private static class ValuesUsed {
         public int bitsUsed = 0, hashesUsed = 0;
+        public final MessageDigest digest = Sha256Hash.newDigest();
     }
     
     // recursive function that traverses tree nodes, consuming the bits and hashes produced by TraverseAndBuild.
-    // it returns the hash of the respective node.
-    private Sha256Hash recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
+    // it returns the hash of the respective node, in internal byte order so that nodes are combined without reversing.
+    private byte[] recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
         if (used.bitsUsed >= matchedChildBits.length*8) {
             // overflowed the bits array - failure
             throw new VerificationException("PartialMerkleTree overflowed its bits array");
@@ -196,28 +157,23 @@ public class PartialMerkleTree extends Message {
             Sha256Hash hash = hashes.get(used.hashesUsed++);
             if (height == 0 && parentOfMatch) // in case of height 0, we have a matched txid
                 matchedHashes.add(hash);
-            return hash;
+            return hash.getReversedBytes();
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes).getBytes(), right;
+            byte[] left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes), right;
             if (pos * 2 + 1 < getTreeWidth(transactionCount, height-1)) {
-                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes).getBytes();
+                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes);
                 if (Arrays.equals(right, left))
                     throw new VerificationException("Invalid merkle tree with duplicated left/right branches");
             } else {
                 right = left;
             }
-            // and combine them before returning
-            return combineLeftRight(left, right);
+            // and combine them before returning, into the left hash which is ours
+            MerkleHasher.hashPair(used.digest, left, 0, right, 0, left, 0);
+            return left;
         }
     }
 
-    private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(
-            reverseBytes(left), 0, 32,
-            reverseBytes(right), 0, 32));
-    }
-
     /**
      * Extracts tx hashes that are in this merkle tree
      * and returns the merkle root of this tree.
@@ -250,7 +206,7 @@ public class PartialMerkleTree extends Message {
             height++;
         // traverse the partial tree
         ValuesUsed used = new ValuesUsed();
-        Sha256Hash merkleRoot = recursiveExtractHashes(height, 0, used, matchedHashesOut);
+        Sha256Hash merkleRoot = Sha256Hash.wrapReversed(recursiveExtractHashes(height, 0, used, matchedHashesOut));
         // verify that all bits were consumed (except for the padding caused by serializing it as a byte sequence)
         if ((used.bitsUsed+7)/8 != matchedChildBits.length ||
                 // verify that all hashes were consumed
@@ -266,6 +222,9 @@ public class PartialMerkleTree extends Message {
 
     public List<Sha256Hash> getHashes() { return hashes; }
 
+    /** Returns the flag bits, not copied. */
+    byte[] getMatchedChildBits() { return matchedChildBits; }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
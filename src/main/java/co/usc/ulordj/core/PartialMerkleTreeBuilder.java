@@ -0,0 +1,174 @@
+package co.usc.ulordj.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Builds {@link PartialMerkleTree}s for any number of sets of matched transactions of one block. The whole merkle
+ * tree is hashed once, level after level, by {@link MerkleHasher} when the builder is made; every proof after that only
+ * walks the tree in the depth-first order of Bitcoin Core's <tt>CPartialMerkleTree::TraverseAndBuild</tt>, picking the
+ * flag bits and hashes it needs without hashing anything.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class PartialMerkleTreeBuilder {
+    private static final int HASH_LENGTH = 32;
+
+    private final int transactionCount;
+    private final int height;
+    // Every node of the tree in internal byte order, one level after the other from the leaves up to the root.
+    private final byte[] tree;
+    // Offset in the tree of the first node of each level.
+    private final int[] levelOffsets;
+
+    // Position of each transaction by hash, built the first time a proof is asked for by hash.
+    private volatile Map<Sha256Hash, Integer> positions;
+
+    /** Creates a builder for the block with the given transaction hashes, in block order. */
+    public PartialMerkleTreeBuilder(List<Sha256Hash> leafHashes) {
+        this(leaves(leafHashes), leafHashes.size(), new MerkleHasher());
+    }
+
+    /** Creates a builder for the transactions of the given block. */
+    public PartialMerkleTreeBuilder(UldBlock block) {
+        this(block.getTransactionHashes(), block.getTransactions().size(), new MerkleHasher());
+    }
+
+    /**
+     * Creates a builder for the first count hashes of the given array, laid out as {@link MerkleHasher} takes them:
+     * 32 bytes each, in internal byte order.
+     */
+    public PartialMerkleTreeBuilder(byte[] leaves, int count, MerkleHasher hasher) {
+        checkArgument(count > 0, "no transactions");
+        this.transactionCount = count;
+        this.tree = hasher.computeTree(leaves, count);
+        int height = 0;
+        while (getTreeWidth(height) > 1)
+            height++;
+        this.height = height;
+        this.levelOffsets = new int[height + 1];
+        for (int h = 1; h <= height; h++)
+            levelOffsets[h] = levelOffsets[h - 1] + getTreeWidth(h - 1) * HASH_LENGTH;
+    }
+
+    private static byte[] leaves(List<Sha256Hash> leafHashes) {
+        byte[] leaves = new byte[leafHashes.size() * HASH_LENGTH];
+        for (int i = 0; i < leafHashes.size(); i++)
+            System.arraycopy(leafHashes.get(i).getReversedBytes(), 0, leaves, i * HASH_LENGTH, HASH_LENGTH);
+        return leaves;
+    }
+
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    public Sha256Hash getMerkleRoot() {
+        return getNode(height, 0);
+    }
+
+    /** Returns the position of the transaction with the given hash in the block, or -1 if it isn't in it. */
+    public int indexOf(Sha256Hash txHash) {
+        Map<Sha256Hash, Integer> positions = this.positions;
+        if (positions == null) {
+            positions = new HashMap<Sha256Hash, Integer>(transactionCount * 2);
+            for (int i = transactionCount - 1; i >= 0; i--)
+                positions.put(getNode(0, i), i);
+            this.positions = positions;
+        }
+        Integer position = positions.get(txHash);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Builds the proof of inclusion of the transactions with the given hashes.
+     *
+     * @throws IllegalArgumentException if one of the transactions isn't in the block
+     */
+    public PartialMerkleTree build(NetworkParameters params, Iterable<Sha256Hash> matchedTxHashes) {
+        byte[] includeBits = new byte[(transactionCount + 7) / 8];
+        for (Sha256Hash txHash : matchedTxHashes) {
+            int index = indexOf(txHash);
+            checkArgument(index >= 0, "transaction not in block: %s", txHash);
+            Utils.setBitLE(includeBits, index);
+        }
+        return build(params, includeBits);
+    }
+
+    /**
+     * Builds the proof of inclusion of the transactions whose bits are set, little endian, as
+     * {@link PartialMerkleTree#buildFromLeaves(NetworkParameters, byte[], List)} takes them.
+     */
+    public PartialMerkleTree build(NetworkParameters params, byte[] includeBits) {
+        Traversal traversal = new Traversal(matchLevels(includeBits));
+        traversal.traverse(height, 0);
+        byte[] bits = Arrays.copyOf(traversal.bits, (traversal.bitCount + 7) / 8);
+        return new PartialMerkleTree(params, bits, traversal.hashes, transactionCount);
+    }
+
+    /** Returns for each level which of its nodes have a matched transaction below them, bit by bit. */
+    private byte[][] matchLevels(byte[] includeBits) {
+        byte[][] matches = new byte[height + 1][];
+        byte[] leaves = new byte[(transactionCount + 7) / 8];
+        System.arraycopy(includeBits, 0, leaves, 0, Math.min(includeBits.length, leaves.length));
+        // Bits past the last transaction don't match anything.
+        if (transactionCount % 8 != 0)
+            leaves[leaves.length - 1] &= (1 << (transactionCount % 8)) - 1;
+        matches[0] = leaves;
+        for (int h = 1; h <= height; h++) {
+            byte[] below = matches[h - 1];
+            int width = getTreeWidth(h);
+            byte[] level = new byte[(width + 7) / 8];
+            for (int pos = 0; pos < width; pos++) {
+                // A missing right child reads as zero, as the level below was masked to its width.
+                if (Utils.checkBitLE(below, pos * 2) || (pos * 2 + 1 < getTreeWidth(h - 1) && Utils.checkBitLE(below, pos * 2 + 1)))
+                    Utils.setBitLE(level, pos);
+            }
+            matches[h] = level;
+        }
+        return matches;
+    }
+
+    private class Traversal {
+        private final byte[][] matches;
+        // At most one bit per node of the tree.
+        private final byte[] bits = new byte[(tree.length / HASH_LENGTH + 7) / 8];
+        private int bitCount;
+        private final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+
+        Traversal(byte[][] matches) {
+            this.matches = matches;
+        }
+
+        // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
+        void traverse(int height, int pos) {
+            boolean parentOfMatch = Utils.checkBitLE(matches[height], pos);
+            if (parentOfMatch)
+                Utils.setBitLE(bits, bitCount);
+            bitCount++;
+            if (height == 0 || !parentOfMatch) {
+                hashes.add(getNode(height, pos));
+            } else {
+                traverse(height - 1, pos * 2);
+                if (pos * 2 + 1 < getTreeWidth(height - 1))
+                    traverse(height - 1, pos * 2 + 1);
+            }
+        }
+    }
+
+    private Sha256Hash getNode(int height, int pos) {
+        byte[] bytes = new byte[HASH_LENGTH];
+        int offset = levelOffsets[height] + pos * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            bytes[i] = tree[offset + HASH_LENGTH - 1 - i];
+        return Sha256Hash.wrap(bytes);
+    }
+
+    private int getTreeWidth(int height) {
+        return (transactionCount + (1 << height) - 1) >> height;
+    }
+}
@@ -0,0 +1,120 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.core.UldTransaction.SigHash;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * <p>Pieces of a transaction's serialization that are shared by all of its legacy signature hashes: the version, every
+ * input with an empty script, with and without its sequence number, every output and the lock time. They're built once
+ * and then streamed straight into SHA-256 for each input with the connected script spliced in, instead of copying,
+ * re-parsing and re-serializing the whole transaction every time.</p>
+ *
+ * <p>The hashes produced are the same as the ones {@link UldTransaction#hashForSignature(int, byte[], byte)} computed
+ * before, for every sighash type. Transactions carrying witnesses are not handled here.</p>
+ *
+ * <p>Instances are immutable, so they can be used by multiple threads at once.</p>
+ */
+final class SigHashCache {
+    // previous outpoint (36) + empty script (1) + sequence (4)
+    private static final int EMPTY_INPUT_SIZE = 41;
+    // value of -1 (8) + empty script (1), see SIGHASH_SINGLE
+    private static final byte[] NULL_OUTPUT = {-1, -1, -1, -1, -1, -1, -1, -1, 0};
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final byte[] version;
+    private final int inputCount;
+    private final byte[] inputCountBytes;
+    private final byte[] emptyInputs;
+    private final byte[] emptyInputsNoSequence;
+    private final int[] outputOffsets;
+    private final byte[] outputs;
+    private final byte[] outputCountBytes;
+    private final byte[] lockTime;
+
+    SigHashCache(UldTransaction tx) {
+        try {
+            version = uint32ToByteArrayLE(tx.getVersion());
+            List<TransactionInput> inputs = tx.getInputs();
+            inputCount = inputs.size();
+            inputCountBytes = new VarInt(inputCount).encode();
+            emptyInputs = new byte[inputCount * EMPTY_INPUT_SIZE];
+            emptyInputsNoSequence = new byte[inputCount * EMPTY_INPUT_SIZE];
+            for (int i = 0; i < inputCount; i++) {
+                TransactionInput input = inputs.get(i);
+                byte[] outpoint = input.getOutpoint().ulordSerialize();
+                int pos = i * EMPTY_INPUT_SIZE;
+                System.arraycopy(outpoint, 0, emptyInputs, pos, 36);
+                System.arraycopy(outpoint, 0, emptyInputsNoSequence, pos, 36);
+                Utils.uint32ToByteArrayLE(input.getSequenceNumber(), emptyInputs, pos + 37);
+            }
+            List<TransactionOutput> outs = tx.getOutputs();
+            outputCountBytes = new VarInt(outs.size()).encode();
+            outputOffsets = new int[outs.size() + 1];
+            UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(outs.size() * 34);
+            for (int i = 0; i < outs.size(); i++) {
+                outputOffsets[i] = stream.size();
+                outs.get(i).ulordSerializeToStream(stream);
+            }
+            outputOffsets[outs.size()] = stream.size();
+            outputs = stream.toByteArray();
+            lockTime = uint32ToByteArrayLE(tx.getLockTime());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Computes the signature hash of the given input. The connected script must already have had its
+     * OP_CODESEPARATORs removed.
+     */
+    Sha256Hash hashForSignature(TransactionInput input, int inputIndex, byte[] connectedScript, byte sigHashType) {
+        int outputCount = outputOffsets.length - 1;
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        if (mode == SigHash.SINGLE.value && inputIndex >= outputCount)
+            return SIGHASH_SINGLE_BUG;
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(version);
+        // NONE and SINGLE don't sign the sequence numbers of the other inputs.
+        byte[] others = mode == SigHash.NONE.value || mode == SigHash.SINGLE.value ? emptyInputsNoSequence : emptyInputs;
+        int pos = inputIndex * EMPTY_INPUT_SIZE;
+        if (anyoneCanPay) {
+            digest.update((byte) 1);
+        } else {
+            digest.update(inputCountBytes);
+            digest.update(others, 0, pos);
+        }
+        digest.update(emptyInputs, pos, 36);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        digest.update(uint32ToByteArrayLE(input.getSequenceNumber()));
+        if (!anyoneCanPay)
+            digest.update(others, pos + EMPTY_INPUT_SIZE, (inputCount - inputIndex - 1) * EMPTY_INPUT_SIZE);
+
+        if (mode == SigHash.NONE.value) {
+            digest.update((byte) 0);
+        } else if (mode == SigHash.SINGLE.value) {
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs, outputOffsets[inputIndex], outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+        } else {
+            digest.update(outputCountBytes);
+            digest.update(outputs);
+        }
+        digest.update(lockTime);
+        digest.update(uint32ToByteArrayLE(0x000000ff & sigHashType));
+        return Sha256Hash.wrap(digest.digest(digest.digest()));
+    }
+
+    private static byte[] uint32ToByteArrayLE(long val) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayLE(val, bytes, 0);
+        return bytes;
+    }
+}
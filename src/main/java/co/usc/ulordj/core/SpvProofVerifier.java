@@ -0,0 +1,360 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.store.BlockStoreException;
+import co.usc.ulordj.store.UldBlockStore;
+import co.usc.ulordj.utils.ParallelRunner;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks batches of SPV proofs, each one a transaction hash, a {@link PartialMerkleTree} said to contain it and the
+ * hash of the block said to contain the tree. A proof is valid if the tree is well formed, matches the transaction and
+ * has the merkle root of the block, and the block is on the best chain of the store.</p>
+ *
+ * <p>Every block of a batch is looked up once, and the best chain is walked once, from its head down to the oldest
+ * block the batch asks about, all by the calling thread. The trees are then checked on the given executor as well as
+ * the calling thread. Each tree is walked without recursion over buffers a thread keeps from one tree to the next, so
+ * only the hashes the tree holds are ever allocated; the checks are the same as
+ * {@link PartialMerkleTree#getTxnHashAndMerkleRoot(List)}'s.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads as long as the block store is.</p>
+ */
+public class SpvProofVerifier {
+    private static final int HASH_LENGTH = 32;
+
+    private final UldBlockStore blockStore;
+    private final ParallelRunner runner;
+
+    /**
+     * @param executor checks trees besides the calling thread
+     * @param parallelism the most trees to check at the same time, counting the calling thread
+     */
+    public SpvProofVerifier(UldBlockStore blockStore, Executor executor, int parallelism) {
+        this(blockStore, new ParallelRunner(executor, parallelism));
+    }
+
+    /** Creates a verifier that checks trees on a default {@link ParallelRunner}. */
+    public SpvProofVerifier(UldBlockStore blockStore) {
+        this(blockStore, new ParallelRunner());
+    }
+
+    private SpvProofVerifier(UldBlockStore blockStore, ParallelRunner runner) {
+        this.blockStore = checkNotNull(blockStore);
+        this.runner = runner;
+    }
+
+    /** Checks a single proof. */
+    public Result verify(Proof proof) throws BlockStoreException {
+        return verify(Collections.singletonList(proof)).get(0);
+    }
+
+    /**
+     * Checks every proof of the batch.
+     *
+     * @return one result per proof, in the same order
+     * @throws BlockStoreException if the block store can't be read
+     */
+    public List<Result> verify(List<Proof> proofs) throws BlockStoreException {
+        List<Result> results = new ArrayList<Result>(proofs.size());
+        if (proofs.isEmpty())
+            return results;
+
+        // Look every block up once.
+        Map<Sha256Hash, StoredBlock> blocks = new HashMap<Sha256Hash, StoredBlock>();
+        for (Proof proof : proofs)
+            if (!blocks.containsKey(proof.blockHash))
+                blocks.put(proof.blockHash, blockStore.get(proof.blockHash));
+
+        // Walk the best chain once, down to the oldest block asked about.
+        StoredBlock head = blockStore.getChainHead();
+        int lowest = head.getHeight() + 1;
+        for (StoredBlock block : blocks.values())
+            if (block != null && block.getHeight() < lowest)
+                lowest = block.getHeight();
+        Set<Sha256Hash> bestChain = new HashSet<Sha256Hash>();
+        for (StoredBlock cursor = head; cursor != null && cursor.getHeight() >= lowest; cursor = cursor.getPrev(blockStore))
+            bestChain.add(cursor.getHeader().getHash());
+
+        final List<Result> toCheck = new ArrayList<Result>(proofs.size());
+        for (Proof proof : proofs) {
+            StoredBlock block = blocks.get(proof.blockHash);
+            Result result;
+            if (block == null) {
+                result = new Result(proof, Status.BLOCK_NOT_FOUND, -1, 0, null);
+            } else if (!bestChain.contains(proof.blockHash)) {
+                result = new Result(proof, Status.NOT_IN_BEST_CHAIN, block.getHeight(), 0, null);
+            } else {
+                result = new Result(proof, Status.VALID, block.getHeight(), head.getHeight() - block.getHeight() + 1,
+                        block.getHeader().getMerkleRoot());
+                toCheck.add(result);
+            }
+            results.add(result);
+        }
+        checkTrees(toCheck);
+        return results;
+    }
+
+    private void checkTrees(final List<Result> results) {
+        final AtomicInteger next = new AtomicInteger();
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                Traversal traversal = new Traversal();
+                int index;
+                while ((index = next.getAndIncrement()) < results.size())
+                    traversal.check(results.get(index));
+            }
+        };
+        runner.run(results.size(), work);
+    }
+
+    /** A transaction, a partial merkle tree said to contain it and the block said to contain the tree. */
+    public static class Proof {
+        private final Sha256Hash txHash;
+        private final PartialMerkleTree partialMerkleTree;
+        private final Sha256Hash blockHash;
+
+        public Proof(Sha256Hash txHash, PartialMerkleTree partialMerkleTree, Sha256Hash blockHash) {
+            this.txHash = checkNotNull(txHash);
+            this.partialMerkleTree = checkNotNull(partialMerkleTree);
+            this.blockHash = checkNotNull(blockHash);
+        }
+
+        public Proof(UldTransaction tx, PartialMerkleTree partialMerkleTree, Sha256Hash blockHash) {
+            this(tx.getHash(), partialMerkleTree, blockHash);
+        }
+
+        public Sha256Hash getTxHash() {
+            return txHash;
+        }
+
+        public PartialMerkleTree getPartialMerkleTree() {
+            return partialMerkleTree;
+        }
+
+        public Sha256Hash getBlockHash() {
+            return blockHash;
+        }
+    }
+
+    /** The outcome of checking a proof. */
+    public enum Status {
+        /** The transaction is in the block, which is on the best chain. */
+        VALID,
+        /** The block isn't in the store. */
+        BLOCK_NOT_FOUND,
+        /** The block is in the store but not on the best chain. */
+        NOT_IN_BEST_CHAIN,
+        /** The partial merkle tree is malformed, see {@link Result#getError()}. */
+        INVALID_TREE,
+        /** The partial merkle tree doesn't match the transaction. */
+        TRANSACTION_NOT_MATCHED,
+        /** The partial merkle tree doesn't have the merkle root of the block. */
+        MERKLE_ROOT_MISMATCH
+    }
+
+    /** The verdict on a proof. */
+    public static class Result {
+        private final Proof proof;
+        private volatile Status status;
+        private final int height;
+        private final int confirmations;
+        @Nullable private final Sha256Hash merkleRoot;
+        @Nullable private volatile VerificationException error;
+
+        private Result(Proof proof, Status status, int height, int confirmations, @Nullable Sha256Hash merkleRoot) {
+            this.proof = proof;
+            this.status = status;
+            this.height = height;
+            this.confirmations = confirmations;
+            this.merkleRoot = merkleRoot;
+        }
+
+        public Proof getProof() {
+            return proof;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isValid() {
+            return status == Status.VALID;
+        }
+
+        /** Returns the height of the block, or -1 if it wasn't found. */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Returns the number of blocks of the best chain from the block of a valid proof to the head, both counted, so
+         * a proof in the head has one confirmation. Returns 0 if the proof isn't valid.
+         */
+        public int getConfirmations() {
+            return isValid() ? confirmations : 0;
+        }
+
+        /** Returns why the tree is malformed, or null if it isn't or wasn't checked. */
+        @Nullable
+        public VerificationException getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Result for " + proof.txHash + " in " + proof.blockHash + ": " + status +
+                    (isValid() ? ", " + confirmations + " confirmations" : "");
+        }
+    }
+
+    /** Walks partial merkle trees, keeping its buffers for the next tree. */
+    private static class Traversal {
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        // Per level of the tree, from the leaves up: the position of the node being walked, whether its right child is
+        // being walked, the hash of its left child and its own hash once known.
+        private int[] positions = new int[0];
+        private boolean[] inRight = new boolean[0];
+        private byte[] lefts = new byte[0];
+        private byte[] nodes = new byte[0];
+
+        void check(Result result) {
+            PartialMerkleTree tree = result.proof.partialMerkleTree;
+            try {
+                if (!extract(tree, result.proof.txHash))
+                    result.status = Status.TRANSACTION_NOT_MATCHED;
+                else if (!equalsReversed(nodes, height(tree.getTransactionCount()) * HASH_LENGTH, result.merkleRoot))
+                    result.status = Status.MERKLE_ROOT_MISMATCH;
+            } catch (VerificationException e) {
+                result.error = e;
+                result.status = Status.INVALID_TREE;
+            }
+        }
+
+        /**
+         * Walks the tree like {@link PartialMerkleTree#getTxnHashAndMerkleRoot(List)}, leaving the merkle root, in
+         * internal byte order, in the slot of the top level. Returns whether the transaction is among the matched ones.
+         */
+        private boolean extract(PartialMerkleTree tree, Sha256Hash txHash) throws VerificationException {
+            int transactionCount = tree.getTransactionCount();
+            byte[] bits = tree.getMatchedChildBits();
+            List<Sha256Hash> hashes = tree.getHashes();
+            if (transactionCount == 0)
+                throw new VerificationException("Got a CPartialMerkleTree with 0 transactions");
+            if (transactionCount > UldBlock.MAX_BLOCK_SIZE / 60)
+                throw new VerificationException("Got a CPartialMerkleTree with more transactions than is possible");
+            if (hashes.size() > transactionCount)
+                throw new VerificationException("Got a CPartialMerkleTree with more hashes than transactions");
+            if (bits.length * 8 < hashes.size())
+                throw new VerificationException("Got a CPartialMerkleTree with fewer matched bits than hashes");
+            int height = height(transactionCount);
+            ensureHeight(height);
+
+            int bitsUsed = 0, hashesUsed = 0;
+            boolean matched = false;
+            int h = height;
+            positions[h] = 0;
+            while (true) {
+                // First visit of the node at level h.
+                if (bitsUsed >= bits.length * 8)
+                    throw new VerificationException("PartialMerkleTree overflowed its bits array");
+                boolean parentOfMatch = Utils.checkBitLE(bits, bitsUsed++);
+                if (h > 0 && parentOfMatch) {
+                    // Descend into the left child.
+                    inRight[h] = false;
+                    positions[h - 1] = positions[h] * 2;
+                    h--;
+                    continue;
+                }
+                if (hashesUsed >= hashes.size())
+                    throw new VerificationException("PartialMerkleTree overflowed its hash array");
+                Sha256Hash hash = hashes.get(hashesUsed++);
+                if (h == 0 && parentOfMatch && hash.equals(txHash))
+                    matched = true;
+                putReversed(hash, nodes, h * HASH_LENGTH);
+
+                // Climb for as long as the node just known completes its parent.
+                boolean descended = false;
+                while (h < height) {
+                    int parent = h + 1;
+                    int parentOffset = parent * HASH_LENGTH;
+                    if (!inRight[parent]) {
+                        System.arraycopy(nodes, h * HASH_LENGTH, lefts, parentOffset, HASH_LENGTH);
+                        int right = positions[parent] * 2 + 1;
+                        if (right < getTreeWidth(transactionCount, h)) {
+                            inRight[parent] = true;
+                            positions[h] = right;
+                            descended = true;
+                            break;
+                        }
+                        // No right child, the left one is hashed with itself.
+                        MerkleHasher.hashPair(digest, lefts, parentOffset, lefts, parentOffset, nodes, parentOffset);
+                    } else {
+                        if (equals(nodes, h * HASH_LENGTH, lefts, parentOffset))
+                            throw new VerificationException("Invalid merkle tree with duplicated left/right branches");
+                        MerkleHasher.hashPair(digest, lefts, parentOffset, nodes, h * HASH_LENGTH, nodes, parentOffset);
+                    }
+                    h = parent;
+                }
+                if (!descended)
+                    break;
+            }
+            if ((bitsUsed + 7) / 8 != bits.length || hashesUsed != hashes.size())
+                throw new VerificationException("Got a CPartialMerkleTree that didn't need all the data it provided");
+            return matched;
+        }
+
+        private void ensureHeight(int height) {
+            if (positions.length > height)
+                return;
+            positions = new int[height + 1];
+            inRight = new boolean[height + 1];
+            lefts = new byte[(height + 1) * HASH_LENGTH];
+            nodes = new byte[(height + 1) * HASH_LENGTH];
+        }
+
+        private static int height(int transactionCount) {
+            int height = 0;
+            while (getTreeWidth(transactionCount, height) > 1)
+                height++;
+            return height;
+        }
+
+        private static int getTreeWidth(int transactionCount, int height) {
+            return (transactionCount + (1 << height) - 1) >> height;
+        }
+
+        private static void putReversed(Sha256Hash hash, byte[] out, int offset) {
+            byte[] bytes = hash.getBytes();
+            for (int i = 0; i < HASH_LENGTH; i++)
+                out[offset + i] = bytes[HASH_LENGTH - 1 - i];
+        }
+
+        private static boolean equalsReversed(byte[] node, int offset, Sha256Hash hash) {
+            byte[] bytes = hash.getBytes();
+            for (int i = 0; i < HASH_LENGTH; i++)
+                if (node[offset + i] != bytes[HASH_LENGTH - 1 - i])
+                    return false;
+            return true;
+        }
+
+        private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset) {
+            for (int i = 0; i < HASH_LENGTH; i++)
+                if (a[aOffset + i] != b[bOffset + i])
+                    return false;
+            return true;
+        }
+    }
+}
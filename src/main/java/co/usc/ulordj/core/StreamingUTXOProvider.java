@@ -0,0 +1,56 @@
+package co.usc.ulordj.core;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link UTXOProvider} that hands out its outputs one at a time or a page at a time, rather than gathering all of them
+ * in a list, and that filters them itself.
+ */
+public interface StreamingUTXOProvider extends UTXOProvider {
+
+    /**
+     * Gives every output that passes the filter to the visitor, in no particular order, until it has seen them all or
+     * the visitor asks to stop. The visitor must not modify the provider.
+     */
+    void visitOpenTransactionOutputs(UTXOFilter filter, Visitor visitor) throws UTXOProviderException;
+
+    /**
+     * Returns up to limit outputs that pass the filter, starting at the given cursor. Use null for the first page and
+     * {@link Page#getNextCursor()} for the following ones; cursors are opaque and only good for the same provider and
+     * filter. Outputs added or spent while paging may or may not be seen, the others are seen once.
+     */
+    Page getOpenTransactionOutputs(UTXOFilter filter, @Nullable byte[] cursor, int limit) throws UTXOProviderException;
+
+    /** Receives the outputs of a provider. */
+    interface Visitor {
+        /** Returns false to stop visiting. */
+        boolean visit(UTXO utxo) throws UTXOProviderException;
+    }
+
+    /** A page of outputs. */
+    class Page {
+        private final List<UTXO> outputs;
+        @Nullable private final byte[] nextCursor;
+
+        public Page(List<UTXO> outputs, @Nullable byte[] nextCursor) {
+            this.outputs = Collections.unmodifiableList(outputs);
+            this.nextCursor = nextCursor;
+        }
+
+        public List<UTXO> getOutputs() {
+            return outputs;
+        }
+
+        /** Returns where the next page starts, or null if this is the last one. The next page may be empty. */
+        @Nullable
+        public byte[] getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean isLast() {
+            return nextCursor == null;
+        }
+    }
+}
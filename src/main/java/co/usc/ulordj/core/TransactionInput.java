@@ -28,6 +28,7 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -57,6 +58,12 @@ public class TransactionInput extends ChildMessage {
     // is no input transaction, so instead the scriptBytes contains some extra stuff (like a rollover nonce) that we
     // don't care about much. The bytes are turned into a Script object (cached below) on demand via a getter.
     private byte[] scriptBytes;
+    // When parsed in retain mode the script is left where it is in the payload (which is kept anyway) and only copied
+    // out when somebody asks for it. While scriptInPayload is set, scriptBytes is null and the script lives at
+    // scriptOffset in the payload. Note these must not have initializers, as parse() runs from the super constructor.
+    private boolean scriptInPayload;
+    private int scriptOffset;
+    private int scriptLength;
     // The Script object obtained from parsing scriptBytes. Only filled in on demand and if the transaction is not
     // coinbase.
     private WeakReference<Script> scriptSig;
@@ -134,18 +141,41 @@ public class TransactionInput extends ChildMessage {
         cursor += outpoint.getMessageSize();
         int scriptLen = (int) readVarInt();
         length = cursor - offset + scriptLen + 4;
-        scriptBytes = readBytes(scriptLen);
+        if (serializer.isParseRetainMode()) {
+            scriptOffset = skipBytes(scriptLen);
+            scriptLength = scriptLen;
+            scriptInPayload = true;
+        } else {
+            scriptBytes = readBytes(scriptLen);
+        }
         sequence = readUint32();
     }
 
     @Override
     protected void ulordSerializeToStream(OutputStream stream) throws IOException {
         outpoint.ulordSerialize(stream);
+        byte[] scriptBytes = getScriptBytes();
         stream.write(new VarInt(scriptBytes.length).encode());
         stream.write(scriptBytes);
         Utils.uint32ToByteStreamLE(sequence, stream);
     }
 
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        outpoint.ulordSerialize(buf);
+        byte[] scriptBytes = getScriptBytes();
+        VarInt.write(scriptBytes.length, buf);
+        buf.put(scriptBytes);
+        buf.putInt((int) sequence);
+    }
+
+    @Override
+    protected void unCache() {
+        // The cached payload is about to go away, so take our own copy of the script first.
+        getScriptBytes();
+        super.unCache();
+    }
+
     /**
      * Coinbase transactions have special inputs with hashes of zero. If this is such an input, returns true.
      */
@@ -163,7 +193,7 @@ public class TransactionInput extends ChildMessage {
         // parameter is overloaded to be something totally different.
         Script script = scriptSig == null ? null : scriptSig.get();
         if (script == null) {
-            script = new Script(scriptBytes);
+            script = new Script(getScriptBytes());
             scriptSig = new WeakReference<Script>(script);
         }
         return script;
@@ -226,9 +256,20 @@ public class TransactionInput extends ChildMessage {
      * @return the scriptBytes
      */
     public byte[] getScriptBytes() {
+        if (scriptInPayload) {
+            scriptBytes = Arrays.copyOfRange(payload, scriptOffset, scriptOffset + scriptLength);
+            scriptInPayload = false;
+        }
         return scriptBytes;
     }
 
+    /** Counts the signature operations of the script, where it lies in the payload if it hasn't been copied out. */
+    int getSigOpCount() {
+        if (scriptInPayload)
+            return Script.getSigOpCount(payload, scriptOffset, scriptLength);
+        return Script.getSigOpCount(scriptBytes);
+    }
+
     /** Clear input scripts, e.g. in preparation for signing. */
     public void clearScriptBytes() {
         setScriptBytes(TransactionInput.EMPTY_ARRAY);
@@ -238,10 +279,16 @@ public class TransactionInput extends ChildMessage {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
+        // Signature hashes never include the scripts of inputs, so the parent can keep the pieces it has cached.
+        UldTransaction tx = getParentTransaction();
+        SigHashCache sigHashCache = tx != null ? tx.sigHashCache : null;
         unCache();
+        if (tx != null)
+            tx.sigHashCache = sigHashCache;
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
+        this.scriptInPayload = false;
         // 40 = previous_outpoint (36) + sequence (4)
         int newLength = 40 + (scriptBytes == null ? 1 : VarInt.sizeOf(scriptBytes.length) + scriptBytes.length);
         adjustLength(newLength - oldLength);
@@ -460,12 +507,12 @@ public class TransactionInput extends ChildMessage {
         if (o == null || getClass() != o.getClass()) return false;
         TransactionInput other = (TransactionInput) o;
         return sequence == other.sequence && parent == other.parent
-            && outpoint.equals(other.outpoint) && Arrays.equals(scriptBytes, other.scriptBytes);
+            && outpoint.equals(other.outpoint) && Arrays.equals(getScriptBytes(), other.getScriptBytes());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(sequence, outpoint, Arrays.hashCode(scriptBytes));
+        return Objects.hashCode(sequence, outpoint, Arrays.hashCode(getScriptBytes()));
     }
 
     /**
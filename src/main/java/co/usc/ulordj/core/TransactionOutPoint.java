@@ -23,6 +23,7 @@ import co.usc.ulordj.wallet.*;
 
 import javax.annotation.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -93,16 +94,27 @@ public class TransactionOutPoint extends ChildMessage {
     @Override
     protected void parse() throws ProtocolException {
         length = MESSAGE_LENGTH;
-        hash = readHash();
+        if (serializer.isParseRetainMode()) {
+            // The payload is retained, so the hash is only read out of it when somebody asks for it.
+            skipBytes(Sha256Hash.LENGTH);
+        } else {
+            hash = readHash();
+        }
         index = readUint32();
     }
 
     @Override
     protected void ulordSerializeToStream(OutputStream stream) throws IOException {
-        stream.write(hash.getReversedBytes());
+        stream.write(getHash().getReversedBytes());
         Utils.uint32ToByteStreamLE(index, stream);
     }
 
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        putReversed(getHash(), buf);
+        buf.putInt((int) index);
+    }
+
     /**
      * An outpoint is a part of a transaction input that points to the output of another transaction. If we have both
      * sides in memory, and they have been linked together, this returns a pointer to the connected output, or null
@@ -180,7 +192,7 @@ public class TransactionOutPoint extends ChildMessage {
 
     @Override
     public String toString() {
-        return hash + ":" + index;
+        return getHash() + ":" + index;
     }
 
     /**
@@ -188,10 +200,13 @@ public class TransactionOutPoint extends ChildMessage {
      */
     @Override
     public Sha256Hash getHash() {
+        if (hash == null && payload != null)
+            hash = readHash(payload, offset);
         return hash;
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
         this.hash = hash;
     }
 
@@ -200,6 +215,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
     
     public void setIndex(long index) {
+        unCache();
         this.index = index;
     }
 
@@ -211,8 +227,59 @@ public class TransactionOutPoint extends ChildMessage {
         return getIndex() == other.getIndex() && getHash().equals(other.getHash());
     }
 
+    @Override
+    protected void unCache() {
+        getHash();
+        super.unCache();
+    }
+
     @Override
     public int hashCode() {
         return Objects.hashCode(getIndex(), getHash());
     }
+
+    /**
+     * Returns true if two of the keys of the given length starting at the given offsets are equal. Keys are outpoints
+     * encoded as a 32 byte hash followed by the index in little endian, 4 bytes of it as on the wire or more, so they're
+     * told apart without making objects for them.
+     */
+    static boolean containsDuplicate(byte[] buf, int[] offsets, int keyLength) {
+        int count = offsets.length;
+        if (count <= 8) {
+            // Few enough to compare every pair, which is what nearly every transaction has.
+            for (int i = 1; i < count; i++)
+                for (int j = 0; j < i; j++)
+                    if (equalKeys(buf, offsets[i], offsets[j], keyLength))
+                        return true;
+            return false;
+        }
+        // Open addressing over the key numbers plus one, at most half full.
+        int[] table = new int[Integer.highestOneBit(count - 1) << 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < count; i++) {
+            int offset = offsets[i];
+            // The hash bytes are as good as random, but a transaction often spends several outputs of another one.
+            int h = readInt(buf, offset) ^ readInt(buf, offset + 32) * 0x9e3779b9;
+            int slot = (h * 0x85ebca6b) >>> 8 & mask;
+            while (table[slot] != 0) {
+                if (equalKeys(buf, offsets[table[slot] - 1], offset, keyLength))
+                    return true;
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        return false;
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | (buf[offset + 1] & 0xff) << 8 | (buf[offset + 2] & 0xff) << 16
+                | (buf[offset + 3] & 0xff) << 24;
+    }
+
+    private static boolean equalKeys(byte[] buf, int a, int b, int keyLength) {
+        for (int i = 0; i < keyLength; i++)
+            if (buf[a + i] != buf[b + i])
+                return false;
+        return true;
+    }
 }
@@ -24,6 +24,7 @@ import org.slf4j.*;
 
 import javax.annotation.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -43,6 +44,9 @@ public class TransactionOutput extends ChildMessage {
     // A transaction output has a script used for authenticating that the redeemer is allowed to spend
     // this output.
     private byte[] scriptBytes;
+    // In retain mode the script stays in the payload until first requested, see TransactionInput for the details.
+    private boolean scriptInPayload;
+    private int scriptOffset;
 
     // The script bytes are parsed and turned into a Script on demand.
     private Script scriptPubKey;
@@ -113,7 +117,7 @@ public class TransactionOutput extends ChildMessage {
 
     public Script getScriptPubKey() throws ScriptException {
         if (scriptPubKey == null) {
-            scriptPubKey = new Script(scriptBytes);
+            scriptPubKey = new Script(getScriptBytes());
         }
         return scriptPubKey;
     }
@@ -160,18 +164,38 @@ public class TransactionOutput extends ChildMessage {
         value = readInt64();
         scriptLen = (int) readVarInt();
         length = cursor - offset + scriptLen;
-        scriptBytes = readBytes(scriptLen);
+        if (serializer.isParseRetainMode()) {
+            scriptOffset = skipBytes(scriptLen);
+            scriptInPayload = true;
+        } else {
+            scriptBytes = readBytes(scriptLen);
+        }
+    }
+
+    @Override
+    protected void unCache() {
+        // Take our own copy of the script before the cached payload is released.
+        getScriptBytes();
+        super.unCache();
     }
 
     @Override
     protected void ulordSerializeToStream(OutputStream stream) throws IOException {
-        checkNotNull(scriptBytes);
+        byte[] scriptBytes = checkNotNull(getScriptBytes());
         Utils.int64ToByteStreamLE(value, stream);
         // TODO: Move script serialization into the Script class, where it belongs.
         stream.write(new VarInt(scriptBytes.length).encode());
         stream.write(scriptBytes);
     }
 
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        byte[] scriptBytes = checkNotNull(getScriptBytes());
+        buf.putLong(value);
+        VarInt.write(scriptBytes.length, buf);
+        buf.put(scriptBytes);
+    }
+
     /**
      * Returns the value of this output. This is the amount of currency that the destination address
      * receives.
@@ -290,9 +314,20 @@ public class TransactionOutput extends ChildMessage {
      * @return the scriptBytes
     */
     public byte[] getScriptBytes() {
+        if (scriptInPayload) {
+            scriptBytes = Arrays.copyOfRange(payload, scriptOffset, scriptOffset + scriptLen);
+            scriptInPayload = false;
+        }
         return scriptBytes;
     }
 
+    /** Counts the signature operations of the script, where it lies in the payload if it hasn't been copied out. */
+    int getSigOpCount() {
+        if (scriptInPayload)
+            return Script.getSigOpCount(payload, scriptOffset, scriptLen);
+        return Script.getSigOpCount(scriptBytes);
+    }
+
     /**
      * Returns true if this output is to a key in the wallet or to an address/script we are watching.
      */
@@ -318,22 +353,27 @@ public class TransactionOutput extends ChildMessage {
      * Returns true if this output is to a key, or an address we have the keys for, in the wallet.
      */
     public boolean isMine(TransactionBag transactionBag) {
-        try {
-            Script script = getScriptPubKey();
-            if (script.isSentToRawPubKey()) {
-                byte[] pubkey = script.getPubKey();
-                return transactionBag.isPubKeyMine(pubkey);
-            } if (script.isPayToScriptHash()) {
-                return transactionBag.isPayToScriptHashMine(script.getPubKeyHash());
-            } else {
-                byte[] pubkeyHash = script.getPubKeyHash();
-                return transactionBag.isPubKeyHashMine(pubkeyHash);
-            }
-        } catch (ScriptException e) {
-            // Just means we didn't understand the output of this transaction: ignore it.
-            log.debug("Could not parse tx {} output script: {}", parent != null ? parent.getHash() : "(no parent)", e.toString());
-            return false;
+        // The script is classified from its bytes, where they are, as most outputs scanned aren't ours and needn't
+        // become Scripts. Scripts that can't be parsed are in none of the forms, so they're not ours either.
+        byte[] program;
+        int offset;
+        if (scriptInPayload) {
+            program = payload;
+            offset = scriptOffset;
+        } else {
+            program = scriptBytes;
+            offset = 0;
         }
+        int length = scriptInPayload ? scriptLen : program.length;
+        byte[] pubkey = ScriptPattern.extractP2PKPubKey(program, offset, length);
+        if (pubkey != null)
+            return transactionBag.isPubKeyMine(pubkey);
+        byte[] hash = ScriptPattern.extractHash160(program, offset, length);
+        if (hash == null)
+            return false;
+        if (ScriptPattern.isP2SH(program, offset, length))
+            return transactionBag.isPayToScriptHashMine(hash);
+        return transactionBag.isPubKeyHashMine(hash);
     }
 
     /**
@@ -394,7 +434,7 @@ public class TransactionOutput extends ChildMessage {
 
     /** Returns a copy of the output detached from its containing transaction, if need be. */
     public TransactionOutput duplicateDetached() {
-        return new TransactionOutput(params, null, Coin.valueOf(value), org.spongycastle.util.Arrays.clone(scriptBytes));
+        return new TransactionOutput(params, null, Coin.valueOf(value), org.spongycastle.util.Arrays.clone(getScriptBytes()));
     }
 
     @Override
@@ -403,11 +443,11 @@ public class TransactionOutput extends ChildMessage {
         if (o == null || getClass() != o.getClass()) return false;
         TransactionOutput other = (TransactionOutput) o;
         return value == other.value && (parent == null || (parent == other.parent && getIndex() == other.getIndex()))
-                && Arrays.equals(scriptBytes, other.scriptBytes);
+                && Arrays.equals(getScriptBytes(), other.getScriptBytes());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(value, parent, Arrays.hashCode(scriptBytes));
+        return Objects.hashCode(value, parent, Arrays.hashCode(getScriptBytes()));
     }
 }
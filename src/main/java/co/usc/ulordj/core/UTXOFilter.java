@@ -0,0 +1,115 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.script.Script;
+import co.usc.ulordj.script.ScriptBuilder;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Says which outputs a {@link StreamingUTXOProvider} should hand out: those locked by some given scripts, those worth
+ * at least some value, and whether coinbase outputs that can't be spent yet are left out.</p>
+ *
+ * <p>Scripts are matched by {@link #scriptHash(byte[])}, so that providers can index outputs by it.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public final class UTXOFilter {
+    /** Lets every output through. */
+    public static final UTXOFilter ALL = new UTXOFilter(null, Coin.ZERO, false);
+
+    @Nullable private final Set<Sha256Hash> scriptHashes;
+    private final Coin minValue;
+    private final boolean excludeImmatureCoinbases;
+
+    private UTXOFilter(@Nullable Set<Sha256Hash> scriptHashes, Coin minValue, boolean excludeImmatureCoinbases) {
+        this.scriptHashes = scriptHashes;
+        this.minValue = minValue;
+        this.excludeImmatureCoinbases = excludeImmatureCoinbases;
+    }
+
+    /** Returns the hash outputs are matched to their script by: the SHA-256 of the script program. */
+    public static Sha256Hash scriptHash(byte[] program) {
+        return Sha256Hash.of(program);
+    }
+
+    /** Lets through the outputs locked by any of the given scripts. */
+    public static UTXOFilter forScripts(Collection<Script> scripts) {
+        Set<Sha256Hash> scriptHashes = new HashSet<Sha256Hash>();
+        for (Script script : scripts)
+            scriptHashes.add(scriptHash(script.getProgram()));
+        return new UTXOFilter(Collections.unmodifiableSet(scriptHashes), Coin.ZERO, false);
+    }
+
+    /** Lets through the outputs paying to any of the given addresses. */
+    public static UTXOFilter forAddresses(Collection<Address> addresses) {
+        Set<Sha256Hash> scriptHashes = new HashSet<Sha256Hash>();
+        for (Address address : addresses)
+            scriptHashes.add(scriptHash(ScriptBuilder.createOutputScript(address).getProgram()));
+        return new UTXOFilter(Collections.unmodifiableSet(scriptHashes), Coin.ZERO, false);
+    }
+
+    /** Returns a filter that also leaves out outputs worth less than the given value. */
+    public UTXOFilter withMinValue(Coin minValue) {
+        return new UTXOFilter(scriptHashes, checkNotNull(minValue), excludeImmatureCoinbases);
+    }
+
+    /**
+     * Returns a filter that also leaves out coinbase outputs that are less than
+     * {@link NetworkParameters#getSpendableCoinbaseDepth()} deep in the provider's chain.
+     */
+    public UTXOFilter excludingImmatureCoinbases() {
+        return new UTXOFilter(scriptHashes, minValue, true);
+    }
+
+    /** Returns the hashes of the scripts let through, or null if any script is. */
+    @Nullable
+    public Set<Sha256Hash> getScriptHashes() {
+        return scriptHashes;
+    }
+
+    public Coin getMinValue() {
+        return minValue;
+    }
+
+    public boolean isExcludingImmatureCoinbases() {
+        return excludeImmatureCoinbases;
+    }
+
+    /**
+     * Returns whether the output passes the filter.
+     *
+     * @param scriptHash the {@link #scriptHash(byte[])} of the output's script, if the caller knows it already
+     * @param chainHeadHeight the height of the chain the output is in
+     */
+    public boolean matches(UTXO utxo, @Nullable Sha256Hash scriptHash, int chainHeadHeight,
+                           int spendableCoinbaseDepth) {
+        if (utxo.getValue().isLessThan(minValue))
+            return false;
+        // The depth of the output, 1 being the head.
+        if (excludeImmatureCoinbases && utxo.isCoinbase()
+                && chainHeadHeight - utxo.getHeight() + 1 < spendableCoinbaseDepth)
+            return false;
+        if (scriptHashes != null) {
+            if (scriptHash == null)
+                scriptHash = scriptHash(utxo.getScript().getProgram());
+            if (!scriptHashes.contains(scriptHash))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "UTXOFilter{" +
+                "scripts=" + (scriptHashes == null ? "any" : scriptHashes.size()) +
+                ", minValue=" + minValue.toFriendlyString() +
+                ", excludeImmatureCoinbases=" + excludeImmatureCoinbases +
+                '}';
+    }
+}
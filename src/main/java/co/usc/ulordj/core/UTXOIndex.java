@@ -0,0 +1,426 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An in memory set of unspent outputs, that outputs are added to and spent from one at a time as blocks come in.
+ * Outputs are found by their outpoint, by the hash of their script (see {@link UTXOFilter#scriptHash(byte[])}) and by
+ * value.</p>
+ *
+ * <p>Outputs live in slots of parallel arrays. The outpoints of all slots are kept one after the other in a single
+ * array, 36 bytes each (see {@link #writeOutPoint(Sha256Hash, long, byte[], int)}), which an open addressing table
+ * looks them up in, so finding an output allocates nothing. The outputs with the same script, and those with the same
+ * value, are chained through their slots; only the first slot of each chain is kept in a map. The table hashes the
+ * whole outpoint with keys chosen at random when the index is created, so nobody can pick transactions whose outputs
+ * pile up in the same part of the table.</p>
+ *
+ * <p>Outputs are handed to visitors straight from the index, so that balances and coin selection go through them
+ * without copying. Visitors are called with the lock of the index held and must not modify it.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class UTXOIndex implements StreamingUTXOProvider {
+    /** Length of an outpoint key: the transaction hash, in the order of {@link Sha256Hash#getBytes()}, then the index. */
+    public static final int OUTPOINT_LENGTH = 36;
+
+    private static final int NONE = -1;
+    private static final int INITIAL_SLOTS = 16;
+
+    protected final ReentrantLock lock = Threading.lock("utxoindex");
+
+    private final NetworkParameters params;
+    private int chainHeadHeight;
+
+    // Per slot: the outpoint at keys[slot * OUTPOINT_LENGTH], the output and the hash of its script, and the links of
+    // the chains of the slots with the same script and with the same value. Free slots are chained by nextByScript.
+    private byte[] keys;
+    private UTXO[] utxos;
+    private Sha256Hash[] scriptHashes;
+    private int[] nextByScript, prevByScript, nextByValue, prevByValue;
+    // Slots ever used, free ones included.
+    private int slotCount;
+    private int firstFreeSlot = NONE;
+
+    // Open addressing over the outpoints, holding slot + 1 or 0 where empty. Never more than half full.
+    private int[] table;
+    // One random key per 4 byte word of an outpoint, and one more added to the sum, see hash().
+    private final long[] hashKeys = new long[OUTPOINT_LENGTH / 4 + 1];
+
+    private final Map<Sha256Hash, Integer> firstByScript = new HashMap<Sha256Hash, Integer>();
+    private final TreeMap<Long, Integer> firstByValue = new TreeMap<Long, Integer>();
+
+    private int size;
+    private long totalValue;
+
+    // Where outpoints are written to be looked up, guarded by the lock.
+    private final byte[] keyBuffer = new byte[OUTPOINT_LENGTH];
+
+    public UTXOIndex(NetworkParameters params) {
+        this.params = checkNotNull(params);
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < hashKeys.length; i++)
+            hashKeys[i] = random.nextLong();
+        keys = new byte[INITIAL_SLOTS * OUTPOINT_LENGTH];
+        utxos = new UTXO[INITIAL_SLOTS];
+        scriptHashes = new Sha256Hash[INITIAL_SLOTS];
+        nextByScript = new int[INITIAL_SLOTS];
+        prevByScript = new int[INITIAL_SLOTS];
+        nextByValue = new int[INITIAL_SLOTS];
+        prevByValue = new int[INITIAL_SLOTS];
+        table = new int[INITIAL_SLOTS * 2];
+    }
+
+    /** Writes the key of the given outpoint, {@link #OUTPOINT_LENGTH} bytes long, to the array. */
+    public static void writeOutPoint(Sha256Hash hash, long index, byte[] out, int offset) {
+        System.arraycopy(hash.getBytes(), 0, out, offset, 32);
+        Utils.uint32ToByteArrayLE(index, out, offset + 32);
+    }
+
+    /**
+     * Adds an unspent output.
+     *
+     * @return false if an output with the same outpoint is already there, in which case the index is left as it is
+     */
+    public boolean add(UTXO utxo) {
+        lock.lock();
+        try {
+            writeOutPoint(utxo.getHash(), utxo.getIndex(), keyBuffer, 0);
+            int position = find(keyBuffer, 0);
+            if (table[position] != 0)
+                return false;
+            int slot = allocateSlot();
+            System.arraycopy(keyBuffer, 0, keys, slot * OUTPOINT_LENGTH, OUTPOINT_LENGTH);
+            Sha256Hash scriptHash = UTXOFilter.scriptHash(utxo.getScript().getProgram());
+            utxos[slot] = utxo;
+            scriptHashes[slot] = scriptHash;
+
+            Integer first = firstByScript.put(scriptHash, slot);
+            prevByScript[slot] = NONE;
+            nextByScript[slot] = first != null ? first : NONE;
+            if (first != null)
+                prevByScript[first] = slot;
+
+            first = firstByValue.put(utxo.getValue().value, slot);
+            prevByValue[slot] = NONE;
+            nextByValue[slot] = first != null ? first : NONE;
+            if (first != null)
+                prevByValue[first] = slot;
+
+            table[position] = slot + 1;
+            size++;
+            totalValue += utxo.getValue().value;
+            if (size * 2 > table.length)
+                rehash(table.length * 2);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the output with the given outpoint, returning it, or null if it isn't there. */
+    @Nullable
+    public UTXO spend(Sha256Hash hash, long index) {
+        lock.lock();
+        try {
+            writeOutPoint(hash, index, keyBuffer, 0);
+            int position = find(keyBuffer, 0);
+            if (table[position] == 0)
+                return null;
+            int slot = table[position] - 1;
+            removeAt(position);
+            UTXO utxo = utxos[slot];
+            Sha256Hash scriptHash = scriptHashes[slot];
+
+            int next = nextByScript[slot], prev = prevByScript[slot];
+            if (prev != NONE)
+                nextByScript[prev] = next;
+            else if (next != NONE)
+                firstByScript.put(scriptHash, next);
+            else
+                firstByScript.remove(scriptHash);
+            if (next != NONE)
+                prevByScript[next] = prev;
+
+            next = nextByValue[slot];
+            prev = prevByValue[slot];
+            if (prev != NONE)
+                nextByValue[prev] = next;
+            else if (next != NONE)
+                firstByValue.put(utxo.getValue().value, next);
+            else
+                firstByValue.remove(utxo.getValue().value);
+            if (next != NONE)
+                prevByValue[next] = prev;
+
+            utxos[slot] = null;
+            scriptHashes[slot] = null;
+            nextByScript[slot] = firstFreeSlot;
+            firstFreeSlot = slot;
+            size--;
+            totalValue -= utxo.getValue().value;
+            return utxo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the output spent by the given outpoint, returning it, or null if it isn't there. */
+    @Nullable
+    public UTXO spend(TransactionOutPoint outPoint) {
+        return spend(outPoint.getHash(), outPoint.getIndex());
+    }
+
+    /** Returns the output with the given outpoint, or null if it isn't there. */
+    @Nullable
+    public UTXO get(Sha256Hash hash, long index) {
+        lock.lock();
+        try {
+            writeOutPoint(hash, index, keyBuffer, 0);
+            int slot = table[find(keyBuffer, 0)] - 1;
+            return slot >= 0 ? utxos[slot] : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean contains(Sha256Hash hash, long index) {
+        return get(hash, index) != null;
+    }
+
+    /** Returns the number of outputs. */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total value of all outputs. */
+    public Coin getTotalValue() {
+        lock.lock();
+        try {
+            return Coin.valueOf(totalValue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total value of the outputs that pass the filter. */
+    public Coin getValue(UTXOFilter filter) {
+        final long[] value = new long[1];
+        try {
+            visitOpenTransactionOutputs(filter, new Visitor() {
+                @Override
+                public boolean visit(UTXO utxo) {
+                    value[0] += utxo.getValue().value;
+                    return true;
+                }
+            });
+        } catch (UTXOProviderException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+        return Coin.valueOf(value[0]);
+    }
+
+    public void setChainHeadHeight(int chainHeadHeight) {
+        lock.lock();
+        try {
+            this.chainHeadHeight = chainHeadHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getChainHeadHeight() {
+        lock.lock();
+        try {
+            return chainHeadHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /** Returns the outputs paying to any of the addresses, or all of them if the list is empty. */
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) {
+        final List<UTXO> outputs = new ArrayList<UTXO>();
+        try {
+            visitOpenTransactionOutputs(addresses.isEmpty() ? UTXOFilter.ALL : UTXOFilter.forAddresses(addresses),
+                    new Visitor() {
+                        @Override
+                        public boolean visit(UTXO utxo) {
+                            outputs.add(utxo);
+                            return true;
+                        }
+                    });
+        } catch (UTXOProviderException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+        return outputs;
+    }
+
+    /** Visits the outputs; those of a filter with scripts are found through the script chains. */
+    @Override
+    public void visitOpenTransactionOutputs(UTXOFilter filter, Visitor visitor) throws UTXOProviderException {
+        lock.lock();
+        try {
+            int depth = params.getSpendableCoinbaseDepth();
+            Set<Sha256Hash> wanted = filter.getScriptHashes();
+            if (wanted != null) {
+                for (Sha256Hash scriptHash : wanted) {
+                    Integer first = firstByScript.get(scriptHash);
+                    for (int slot = first != null ? first : NONE; slot != NONE; slot = nextByScript[slot])
+                        if (filter.matches(utxos[slot], scriptHash, chainHeadHeight, depth) && !visitor.visit(utxos[slot]))
+                            return;
+                }
+            } else {
+                for (int slot = 0; slot < slotCount; slot++)
+                    if (utxos[slot] != null && filter.matches(utxos[slot], scriptHashes[slot], chainHeadHeight, depth)
+                            && !visitor.visit(utxos[slot]))
+                        return;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Visits the outputs that pass the filter from the most to the least valuable, or the other way round, as coin
+     * selection wants them. Only the values at or above the filter's minimum value are looked at.
+     */
+    public void visitByValue(UTXOFilter filter, boolean descending, Visitor visitor) throws UTXOProviderException {
+        lock.lock();
+        try {
+            int depth = params.getSpendableCoinbaseDepth();
+            NavigableMap<Long, Integer> byValue = firstByValue.tailMap(filter.getMinValue().value, true);
+            for (Integer first : (descending ? byValue.descendingMap() : byValue).values())
+                for (int slot = first; slot != NONE; slot = nextByValue[slot])
+                    if (filter.matches(utxos[slot], scriptHashes[slot], chainHeadHeight, depth) && !visitor.visit(utxos[slot]))
+                        return;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Pages through the outputs in slot order, the cursor being the first slot of the page. */
+    @Override
+    public Page getOpenTransactionOutputs(UTXOFilter filter, @Nullable byte[] cursor, int limit) {
+        checkArgument(limit > 0, "limit must be positive");
+        checkArgument(cursor == null || cursor.length == 4, "not a cursor of this index");
+        lock.lock();
+        try {
+            int depth = params.getSpendableCoinbaseDepth();
+            List<UTXO> outputs = new ArrayList<UTXO>(Math.min(limit, size));
+            int slot = cursor != null ? Math.min((int) Utils.readUint32(cursor, 0), slotCount) : 0;
+            for (; slot < slotCount && outputs.size() < limit; slot++)
+                if (utxos[slot] != null && filter.matches(utxos[slot], scriptHashes[slot], chainHeadHeight, depth))
+                    outputs.add(utxos[slot]);
+            byte[] nextCursor = null;
+            if (slot < slotCount) {
+                nextCursor = new byte[4];
+                Utils.uint32ToByteArrayLE(slot, nextCursor, 0);
+            }
+            return new Page(outputs, nextCursor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int allocateSlot() {
+        if (firstFreeSlot != NONE) {
+            int slot = firstFreeSlot;
+            firstFreeSlot = nextByScript[slot];
+            return slot;
+        }
+        if (slotCount == utxos.length) {
+            int capacity = utxos.length * 2;
+            keys = Arrays.copyOf(keys, capacity * OUTPOINT_LENGTH);
+            utxos = Arrays.copyOf(utxos, capacity);
+            scriptHashes = Arrays.copyOf(scriptHashes, capacity);
+            nextByScript = Arrays.copyOf(nextByScript, capacity);
+            prevByScript = Arrays.copyOf(prevByScript, capacity);
+            nextByValue = Arrays.copyOf(nextByValue, capacity);
+            prevByValue = Arrays.copyOf(prevByValue, capacity);
+        }
+        return slotCount++;
+    }
+
+    /** Returns the position of the table holding the outpoint, or the empty one it would go in. */
+    private int find(byte[] key, int offset) {
+        int mask = table.length - 1;
+        for (int position = hash(key, offset) & mask; ; position = (position + 1) & mask) {
+            int entry = table[position];
+            if (entry == 0 || equalKeys(keys, (entry - 1) * OUTPOINT_LENGTH, key, offset))
+                return position;
+        }
+    }
+
+    /** Empties the given position, moving back the entries after it that can't be found past the gap anymore. */
+    private void removeAt(int position) {
+        int mask = table.length - 1;
+        int hole = position;
+        table[hole] = 0;
+        for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hash(keys, (table[next] - 1) * OUTPOINT_LENGTH) & mask;
+            // The entry stays where it is if its home is cyclically within (hole, next].
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!stays) {
+                table[hole] = table[next];
+                table[next] = 0;
+                hole = next;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (utxos[slot] == null)
+                continue;
+            int position = hash(keys, slot * OUTPOINT_LENGTH) & mask;
+            while (table[position] != 0)
+                position = (position + 1) & mask;
+            table[position] = slot + 1;
+        }
+    }
+
+    private int hash(byte[] key, int offset) {
+        // Multilinear hashing: the sum of every word times its key, plus the last key, keeping the top 32 bits. With
+        // random keys, two given outpoints collide with a chance of about 2^-32 however they were picked.
+        long h = hashKeys[OUTPOINT_LENGTH / 4];
+        for (int i = 0; i < OUTPOINT_LENGTH / 4; i++)
+            h += hashKeys[i] * Utils.readUint32(key, offset + i * 4);
+        return (int) (h >>> 32);
+    }
+
+    private static boolean equalKeys(byte[] a, int aOffset, byte[] b, int bOffset) {
+        for (int i = 0; i < OUTPOINT_LENGTH; i++)
+            if (a[aOffset + i] != b[bOffset + i])
+                return false;
+        return true;
+    }
+}
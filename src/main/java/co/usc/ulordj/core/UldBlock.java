@@ -26,6 +26,9 @@ import org.slf4j.*;
 import javax.annotation.*;
 import java.io.*;
 import java.math.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static co.usc.ulordj.core.Coin.*;
@@ -89,6 +92,8 @@ public class UldBlock extends Message {
     /** Block version introduced in BIP 65: OP_CHECKLOCKTIMEVERIFY */
     public static final long BLOCK_VERSION_BIP65 = 4;
 
+    private static final MerkleHasher MERKLE_HASHER = new MerkleHasher();
+
     // Fields defined as part of the protocol format.
     private static final long CURRENT_VERSION = 1;
     private long version;
@@ -233,7 +238,10 @@ public class UldBlock extends Message {
     protected void parseTransactions(final int transactionsOffset) throws ProtocolException {
         cursor = transactionsOffset;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        // The payload may be a larger buffer we're parsing in place, so if we were told our length trust that
+        // rather than the end of the array.
+        int end = length == UNKNOWN_LENGTH ? payload.length : offset + length;
+        if (end == cursor) {
             // This message is just a header, it has no transactions.
             transactionBytesValid = false;
             return;
@@ -241,6 +249,12 @@ public class UldBlock extends Message {
 
         int numTransactions = (int) readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(numTransactions);
+        if (serializer.isParseRetainMode()) {
+            // The payload is ours to keep, so only record where each transaction starts and parse it on first access.
+            transactions = scanTransactions(numTransactions);
+            transactionBytesValid = true;
+            return;
+        }
         transactions = new ArrayList<UldTransaction>(Math.min(numTransactions, Utils.MAX_INITIAL_ARRAY_LENGTH));
         for (int i = 0; i < numTransactions; i++) {
             UldTransaction tx = new UldTransaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
@@ -251,6 +265,96 @@ public class UldBlock extends Message {
         transactionBytesValid = serializer.isParseRetainMode();
     }
 
+    /**
+     * Walks over the serialized transactions without building any objects, recording the offset at which each of them
+     * starts. Every transaction is checked to be well formed, so a later parse of it can not fail on framing.
+     */
+    private LazyTransactionList scanTransactions(int numTransactions) throws ProtocolException {
+        if (numTransactions < 0 || numTransactions > (payload.length - cursor) / 10)
+            throw new ProtocolException("Claimed transaction count too large: " + numTransactions);
+        int[] offsets = new int[numTransactions + 1];
+        boolean[] witness = new boolean[numTransactions];
+        for (int i = 0; i < numTransactions; i++) {
+            offsets[i] = cursor;
+            witness[i] = skipTransaction();
+        }
+        offsets[numTransactions] = cursor;
+        return new LazyTransactionList(payload, offsets, witness);
+    }
+
+    /**
+     * Advances the cursor over one transaction, following the same layout as {@link UldTransaction#parse()}.
+     *
+     * @return true if the transaction is serialized with witness data, in which case its id can't be hashed straight
+     * from its bytes.
+     */
+    private boolean skipTransaction() throws ProtocolException {
+        int start = cursor;
+        int excess = 0;
+        skipBytes(4);
+        int varIntStart = cursor;
+        long numInputs = readVarInt();
+        excess += cursor - varIntStart - VarInt.sizeOf(numInputs);
+        byte flags = 0;
+        if (numInputs == 0) {
+            flags = readByte();
+            if (flags != 0) {
+                varIntStart = cursor;
+                numInputs = readVarInt();
+                excess += cursor - varIntStart - VarInt.sizeOf(numInputs);
+                excess += skipInputsOrOutputs(numInputs, TransactionOutPoint.MESSAGE_LENGTH, 4);
+                excess += skipOutputs();
+            }
+        } else {
+            excess += skipInputsOrOutputs(numInputs, TransactionOutPoint.MESSAGE_LENGTH, 4);
+            excess += skipOutputs();
+        }
+        boolean witness = (flags & 1) != 0;
+        if (witness) {
+            flags ^= 1;
+            for (long i = 0; i < numInputs; i++) {
+                varIntStart = cursor;
+                long pushCount = readVarInt();
+                excess += cursor - varIntStart - VarInt.sizeOf(pushCount);
+                for (long y = 0; y < pushCount; y++) {
+                    varIntStart = cursor;
+                    long pushSize = readVarInt();
+                    excess += cursor - varIntStart - VarInt.sizeOf(pushSize);
+                    skipBytes((int) pushSize);
+                }
+            }
+        }
+        if (flags != 0)
+            throw new ProtocolException("Unknown transaction optional data");
+        skipBytes(4);
+        optimalEncodingMessageSize += cursor - start - excess;
+        return witness;
+    }
+
+    private int skipOutputs() throws ProtocolException {
+        int varIntStart = cursor;
+        long numOutputs = readVarInt();
+        int excess = cursor - varIntStart - VarInt.sizeOf(numOutputs);
+        return excess + skipInputsOrOutputs(numOutputs, 8, 0);
+    }
+
+    /**
+     * Skips a run of inputs or outputs, each being a fixed prefix, a length prefixed script and a fixed suffix.
+     * Returns how many bytes the non-canonical var ints among them used beyond their optimal encoding.
+     */
+    private int skipInputsOrOutputs(long count, int prefix, int suffix) throws ProtocolException {
+        int excess = 0;
+        for (long i = 0; i < count; i++) {
+            skipBytes(prefix);
+            int varIntStart = cursor;
+            long scriptLen = readVarInt();
+            excess += cursor - varIntStart - VarInt.sizeOf(scriptLen);
+            skipBytes((int) scriptLen);
+            skipBytes(suffix);
+        }
+        return excess;
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         // header
@@ -316,6 +420,32 @@ public class UldBlock extends Message {
         }
     }
 
+    private void writeHeader(ByteBuffer buf) {
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE) {
+            buf.put(payload, offset, HEADER_SIZE);
+            return;
+        }
+        buf.putInt((int) version);
+        putReversed(prevBlockHash, buf);
+        putReversed(getMerkleRoot(), buf);
+        Utils.uint256ToByteBufferLE(hashClaimTrie, buf);
+        buf.putInt((int) time);
+        buf.putInt((int) difficultyTarget);
+        Utils.uint256ToByteBufferLE(nonce, buf);
+    }
+
+    private void writeTransactions(ByteBuffer buf) {
+        if (transactions == null)
+            return;
+        if (transactionBytesValid && payload != null && payload.length >= offset + length) {
+            buf.put(payload, offset + HEADER_SIZE, length - HEADER_SIZE);
+            return;
+        }
+        VarInt.write(transactions.size(), buf);
+        for (UldTransaction tx : transactions)
+            tx.ulordSerialize(buf);
+    }
+
     /**
      * Special handling to check if we have a valid byte array for both header
      * and transactions
@@ -356,6 +486,25 @@ public class UldBlock extends Message {
         writeTransactions(stream);
     }
 
+    @Override
+    public void ulordSerialize(ByteBuffer buf) {
+        // Header and transactions are cached separately so the payload may be partly stale, leave it to the writers
+        // to pick whichever part is still valid.
+        ByteOrder order = buf.order();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            ulordSerializeToBuffer(buf);
+        } finally {
+            buf.order(order);
+        }
+    }
+
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        writeHeader(buf);
+        writeTransactions(buf);
+    }
+
     /**
      * Provides a reasonable guess at the byte length of the transactions part of the block.
      * The returned value will be accurate in 99% of cases and in those cases where not will probably slightly
@@ -366,7 +515,7 @@ public class UldBlock extends Message {
      */
     private int guessTransactionsLength() {
         if (transactionBytesValid)
-            return payload.length - HEADER_SIZE;
+            return length - HEADER_SIZE;
         if (transactions == null)
             return 0;
         int len = VarInt.sizeOf(transactions.size());
@@ -579,15 +728,21 @@ public class UldBlock extends Message {
         // Check there aren't too many signature verifications in the block. This is an anti-DoS measure, see the
         // comments for MAX_BLOCK_SIGOPS.
         int sigOps = 0;
-        for (UldTransaction tx : transactions) {
-            sigOps += tx.getSigOpCount();
-        }
+        for (int i = 0; i < transactions.size(); i++)
+            sigOps += getSigOpCount(i);
+        checkSigOps(sigOps);
+    }
+
+    void checkSigOps(int sigOps) throws VerificationException {
         if (sigOps > MAX_BLOCK_SIGOPS)
             throw new VerificationException("Block had too many Signature Operations");
     }
 
     private void checkMerkleRoot() throws VerificationException {
-        Sha256Hash calculatedRoot = calculateMerkleRoot();
+        checkMerkleRoot(calculateMerkleRoot());
+    }
+
+    void checkMerkleRoot(Sha256Hash calculatedRoot) throws VerificationException {
         if (!calculatedRoot.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
             throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs " + merkleRoot);
@@ -595,15 +750,12 @@ public class UldBlock extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
+        int count = transactions.size();
+        byte[] hashes = getTransactionHashes();
+        return Sha256Hash.wrapReversed(MERKLE_HASHER.computeRoot(hashes, count));
     }
 
     public List<byte[]> getMerkleTree() {
-        return buildMerkleTree();
-    }
-
-    private List<byte[]> buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -634,29 +786,32 @@ public class UldBlock extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (UldTransaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
+        //
+        // The tree is computed by MerkleHasher in internal byte order, each entry is reversed to the order of
+        // Sha256Hash.getBytes() here.
+        if (transactions.isEmpty())
+            return new ArrayList<byte[]>();
+        byte[] flat = MERKLE_HASHER.computeTree(getTransactionHashes(), transactions.size());
+        List<byte[]> tree = new ArrayList<byte[]>(flat.length / 32);
+        for (int offset = 0; offset < flat.length; offset += 32) {
+            byte[] node = new byte[32];
+            for (int i = 0; i < 32; i++)
+                node[i] = flat[offset + 31 - i];
+            tree.add(node);
         }
         return tree;
     }
 
+    /** Returns the hashes of the transactions one after the other, as the leaves {@link MerkleHasher} takes. */
+    byte[] getTransactionHashes() {
+        int count = transactions.size();
+        byte[] hashes = new byte[count * 32];
+        MessageDigest digest = Sha256Hash.newDigest();
+        for (int i = 0; i < count; i++)
+            writeTransactionHash(i, digest, hashes, i * 32);
+        return hashes;
+    }
+
     /**
      * Verify the transactions on a block.
      *
@@ -666,19 +821,69 @@ public class UldBlock extends Message {
      */
     private void checkTransactions(final int height, final EnumSet<VerifyFlag> flags)
             throws VerificationException {
+        boolean[] coinBase = new boolean[transactions.size()];
+        for (int i = 0; i < coinBase.length; i++)
+            coinBase[i] = isCoinBase(i);
+        checkTransactions(height, flags, coinBase);
+    }
+
+    /** Same as {@link #checkTransactions(int, EnumSet)}, with which transactions are coinbase already known. */
+    void checkTransactions(final int height, final EnumSet<VerifyFlag> flags, boolean[] coinBase)
+            throws VerificationException {
         // The first transaction in a block must always be a coinbase transaction.
-        if (!transactions.get(0).isCoinBase())
+        if (!coinBase[0])
             throw new VerificationException("First tx is not coinbase");
         if (flags.contains(UldBlock.VerifyFlag.HEIGHT_IN_COINBASE) && height >= BLOCK_HEIGHT_GENESIS) {
             transactions.get(0).checkCoinBaseHeight(height);
         }
         // The rest must not be.
-        for (int i = 1; i < transactions.size(); i++) {
-            if (transactions.get(i).isCoinBase())
+        for (int i = 1; i < coinBase.length; i++) {
+            if (coinBase[i])
                 throw new VerificationException("TX " + i + " is coinbase when it should not be.");
         }
     }
 
+    // Transactions of a retained block that were never touched are looked at straight in the payload rather than parsed.
+
+    /**
+     * Writes the hash of the transaction at the given position to the array in internal byte order, the reverse of
+     * {@link Sha256Hash#getBytes()}, as merkle leaves are.
+     */
+    void writeTransactionHash(int index, MessageDigest digest, byte[] out, int outOffset) {
+        if (transactions instanceof LazyTransactionList)
+            ((LazyTransactionList) transactions).writeHash(index, digest, out, outOffset);
+        else
+            writeReversed(transactions.get(index).getHash(), out, outOffset);
+    }
+
+    private static void writeReversed(Sha256Hash hash, byte[] out, int outOffset) {
+        byte[] bytes = hash.getBytes();
+        for (int i = 0; i < 32; i++)
+            out[outOffset + i] = bytes[31 - i];
+    }
+
+    /** Returns the regular SigOps of the transaction at the given position. */
+    int getSigOpCount(int index) {
+        if (transactions instanceof LazyTransactionList)
+            return ((LazyTransactionList) transactions).getSigOpCount(index);
+        return transactions.get(index).getSigOpCount();
+    }
+
+    /** Returns whether the transaction at the given position is coinbase. */
+    boolean isCoinBase(int index) {
+        if (transactions instanceof LazyTransactionList)
+            return ((LazyTransactionList) transactions).isCoinBase(index);
+        return transactions.get(index).isCoinBase();
+    }
+
+    /** Verifies the transaction at the given position, see {@link UldTransaction#verify()}. */
+    void verifyTransaction(int index) throws VerificationException {
+        if (transactions instanceof LazyTransactionList)
+            ((LazyTransactionList) transactions).verify(index);
+        else
+            transactions.get(index).verify();
+    }
+
     /**
      * Checks the block data to ensure it follows the rules laid out in the network parameters. Specifically,
      * throws an exception if the proof of work is invalid, or if the timestamp is too far from what it should be.
@@ -719,9 +924,9 @@ public class UldBlock extends Message {
         checkTransactions(height, flags);
         checkMerkleRoot();
         checkSigOps();
-        for (UldTransaction transaction : transactions)
-            transaction.verify();
-        }
+        for (int i = 0; i < transactions.size(); i++)
+            verifyTransaction(i);
+    }
 
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
@@ -786,6 +991,7 @@ public class UldBlock extends Message {
         if (transactions == null) {
             transactions = new ArrayList<UldTransaction>();
         }
+        materializeTransactions();
         t.setParent(this);
         if (runSanityChecks && transactions.size() == 0 && !t.isCoinBase())
             throw new RuntimeException("Attempted to add a non-coinbase transaction as the first transaction: " + t);
@@ -872,12 +1078,101 @@ public class UldBlock extends Message {
         this.hash = null;
     }
 
-    /** Returns an immutable list of transactions held in this block, or null if this object represents just a header. */
+    /**
+     * Returns an immutable list of transactions held in this block, or null if this object represents just a header.
+     * Blocks parsed in parse-retain mode return a list that only parses each transaction when it is first accessed.
+     */
     @Nullable
     public List<UldTransaction> getTransactions() {
+        if (transactions instanceof LazyTransactionList)
+            return transactions;
         return transactions == null ? null : ImmutableList.copyOf(transactions);
     }
 
+    /**
+     * Returns the transaction at the given position in this block. For blocks parsed in parse-retain mode only that
+     * transaction is parsed.
+     *
+     * @throws IllegalStateException if this object represents just a header
+     */
+    public UldTransaction getTransaction(int index) {
+        if (transactions == null)
+            throw new IllegalStateException("Block has no transactions, it is a header only");
+        return transactions.get(index);
+    }
+
+    /** Replaces a lazily parsed transaction list with a plain list holding every transaction, so it can be modified. */
+    private void materializeTransactions() {
+        if (transactions instanceof LazyTransactionList)
+            transactions = new ArrayList<UldTransaction>(transactions);
+    }
+
+    /**
+     * Read only view over the transactions of a retained block payload. The payload is referenced directly as the
+     * block drops its own reference once its cache is invalidated, while the offsets stay valid.
+     */
+    private final class LazyTransactionList extends AbstractList<UldTransaction> implements RandomAccess {
+        private final byte[] payload;
+        // offsets[i] is where transaction i starts, the last entry is where the transactions end.
+        private final int[] offsets;
+        private final boolean[] witness;
+        private final UldTransaction[] parsed;
+
+        LazyTransactionList(byte[] payload, int[] offsets, boolean[] witness) {
+            this.payload = payload;
+            this.offsets = offsets;
+            this.witness = witness;
+            this.parsed = new UldTransaction[witness.length];
+        }
+
+        @Override
+        public UldTransaction get(int index) {
+            UldTransaction tx = parsed[index];
+            if (tx == null) {
+                tx = new UldTransaction(params, payload, offsets[index], UldBlock.this, serializer,
+                        offsets[index + 1] - offsets[index]);
+                parsed[index] = tx;
+            }
+            return tx;
+        }
+
+        @Override
+        public int size() {
+            return parsed.length;
+        }
+
+        /** Writes the transaction hash in internal byte order, hashing the payload unless it was parsed. */
+        void writeHash(int index, MessageDigest digest, byte[] out, int outOffset) {
+            if (parsed[index] != null || witness[index])
+                writeReversed(get(index).getHash(), out, outOffset);
+            else
+                MerkleHasher.hashTwice(digest, payload, offsets[index], offsets[index + 1] - offsets[index], out,
+                        outOffset);
+        }
+
+        /** Returns the regular SigOps of the transaction, see {@link UldTransaction#getSigOpCount()}. */
+        int getSigOpCount(int index) {
+            if (parsed[index] != null)
+                return parsed[index].getSigOpCount();
+            return UldTransaction.getSigOpCount(payload, offsets[index]);
+        }
+
+        /** See {@link UldTransaction#isCoinBase()}. */
+        boolean isCoinBase(int index) {
+            if (parsed[index] != null)
+                return parsed[index].isCoinBase();
+            return UldTransaction.isCoinBase(payload, offsets[index]);
+        }
+
+        /** See {@link UldTransaction#verify()}. */
+        void verify(int index) throws VerificationException {
+            if (parsed[index] != null)
+                parsed[index].verify();
+            else
+                UldTransaction.verify(params, payload, offsets[index], offsets[index + 1] - offsets[index]);
+        }
+    }
+
     // ///////////////////////////////////////////////////////////////////////////////////////////////
     // Unit testing related methods.
 
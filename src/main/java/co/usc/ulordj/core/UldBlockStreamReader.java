@@ -0,0 +1,321 @@
+package co.usc.ulordj.core;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decodes a block from a stream one transaction at a time, so that memory use is bounded by the largest
+ * transaction rather than by the block. The header is decoded first, then every transaction is handed to a
+ * {@link TransactionVisitor} together with its id and its position within the block. The merkle root is accumulated
+ * as the transactions go by and checked against the header once the last one has been read.</p>
+ *
+ * <p>Blocks can be read either as a {@code block} message, framed the same way {@link UlordSerializer} frames it
+ * (magic, command, length and checksum), or as the bare serialized block, for example from a file.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class UldBlockStreamReader {
+    /** Receives the parts of a block as they are decoded. */
+    public interface TransactionVisitor {
+        /**
+         * Called once the header has been read, before any transaction.
+         *
+         * @param header the block header, it holds no transactions
+         * @param transactionCount how many transactions the block claims to have
+         */
+        void onHeader(UldBlock header, long transactionCount);
+
+        /**
+         * Called for every transaction in block order.
+         *
+         * @param index position of the transaction within the block
+         * @param tx the parsed transaction
+         * @param txId the id of the transaction, as returned by {@link UldTransaction#getHash()}
+         * @param offset offset of the first byte of the transaction, relative to the start of the block
+         * @param length serialized length of the transaction in bytes
+         */
+        void onTransaction(int index, UldTransaction tx, Sha256Hash txId, long offset, int length);
+    }
+
+    private final NetworkParameters params;
+    private final MessageSerializer serializer;
+
+    // State of the block currently being read.
+    private InputStream in;
+    @Nullable private MessageDigest checksumDigest;
+    private long position;
+    private long limit;
+    private byte[] buf = new byte[1024];
+    private int bufLength;
+    private Sha256Hash calculatedMerkleRoot;
+
+    public UldBlockStreamReader(NetworkParameters params) {
+        this(params, params.getDefaultSerializer());
+    }
+
+    public UldBlockStreamReader(NetworkParameters params, MessageSerializer serializer) {
+        this.params = checkNotNull(params);
+        this.serializer = checkNotNull(serializer);
+    }
+
+    /**
+     * Reads a {@code block} message, skipping any garbage before the packet magic just like
+     * {@link UlordSerializer#deserialize(ByteBuffer)} does, and verifies both its checksum and its merkle root.
+     *
+     * @return the header of the block, without transactions
+     * @throws ProtocolException if the message isn't a block or is malformed
+     * @throws VerificationException if the transactions don't match the merkle root
+     */
+    public UldBlock readMessage(InputStream in, TransactionVisitor visitor) throws IOException, ProtocolException {
+        seekPastMagicBytes(in);
+        byte[] headerBytes = new byte[UlordSerializer.UlordPacketHeader.HEADER_LENGTH];
+        readFully(in, headerBytes, 0, headerBytes.length);
+        UlordSerializer.UlordPacketHeader header = serializer.deserializeHeader(ByteBuffer.wrap(headerBytes));
+        if (!header.command.equals("block"))
+            throw new ProtocolException("Expected a block message but got " + header.command);
+        MessageDigest digest = Sha256Hash.newDigest();
+        UldBlock block = read(in, header.size, digest, visitor);
+        byte[] hash = digest.digest(digest.digest());
+        if (hash[0] != header.checksum[0] || hash[1] != header.checksum[1] ||
+                hash[2] != header.checksum[2] || hash[3] != header.checksum[3])
+            throw new ProtocolException("Checksum failed to verify, actual " + Utils.HEX.encode(hash, 0, 4) +
+                    " vs " + Utils.HEX.encode(header.checksum));
+        // Only blame the transactions once we know they arrived as they were sent.
+        checkMerkleRoot(block);
+        return block;
+    }
+
+    /** Reads a {@code block} message from a channel, see {@link #readMessage(InputStream, TransactionVisitor)}. */
+    public UldBlock readMessage(ReadableByteChannel channel, TransactionVisitor visitor)
+            throws IOException, ProtocolException {
+        return readMessage(Channels.newInputStream(channel), visitor);
+    }
+
+    /**
+     * Reads a bare serialized block, without any message framing, and verifies its merkle root. Nothing beyond the
+     * last transaction is consumed from the stream.
+     *
+     * @return the header of the block, without transactions
+     * @throws VerificationException if the transactions don't match the merkle root
+     */
+    public UldBlock readBlock(InputStream in, TransactionVisitor visitor) throws IOException, ProtocolException {
+        UldBlock block = read(in, Long.MAX_VALUE, null, visitor);
+        checkMerkleRoot(block);
+        return block;
+    }
+
+    /** Reads a bare serialized block from a channel, see {@link #readBlock(InputStream, TransactionVisitor)}. */
+    public UldBlock readBlock(ReadableByteChannel channel, TransactionVisitor visitor)
+            throws IOException, ProtocolException {
+        return readBlock(Channels.newInputStream(channel), visitor);
+    }
+
+    private UldBlock read(InputStream in, long size, @Nullable MessageDigest digest, TransactionVisitor visitor)
+            throws IOException, ProtocolException {
+        this.in = in;
+        this.checksumDigest = digest;
+        this.position = 0;
+        this.limit = size;
+        try {
+            bufLength = 0;
+            readIntoBuffer(UldBlock.HEADER_SIZE);
+            UldBlock header = serializer.makeBlock(Arrays.copyOf(buf, UldBlock.HEADER_SIZE), 0, UldBlock.HEADER_SIZE);
+            bufLength = 0;
+            long numTransactions = readVarIntIntoBuffer();
+            if (numTransactions < 0 || numTransactions > Integer.MAX_VALUE)
+                throw new ProtocolException("Claimed transaction count too large: " + numTransactions);
+            visitor.onHeader(header, numTransactions);
+
+            MerkleAccumulator merkle = new MerkleAccumulator();
+            for (int i = 0; i < numTransactions; i++) {
+                long txOffset = position;
+                bufLength = 0;
+                boolean witness = readTransactionIntoBuffer();
+                // A retaining serializer keeps the payload, so it needs its own copy rather than our reused buffer.
+                byte[] txBytes = serializer.isParseRetainMode() ? Arrays.copyOf(buf, bufLength) : buf;
+                UldTransaction tx;
+                Sha256Hash txId;
+                if (witness) {
+                    tx = serializer.makeTransaction(txBytes, 0, bufLength, null);
+                    txId = tx.getHash();
+                } else {
+                    byte[] hash = Sha256Hash.hashTwice(buf, 0, bufLength);
+                    tx = serializer.makeTransaction(txBytes, 0, bufLength, hash);
+                    txId = Sha256Hash.wrapReversed(hash);
+                }
+                merkle.add(txId.getReversedBytes());
+                visitor.onTransaction(i, tx, txId, txOffset, bufLength);
+            }
+
+            if (numTransactions == 0)
+                throw new VerificationException("Block had no transactions");
+            calculatedMerkleRoot = Sha256Hash.wrapReversed(merkle.getRoot());
+
+            // Anything left in the message still counts towards the checksum.
+            if (digest != null) {
+                while (position < limit) {
+                    bufLength = 0;
+                    readIntoBuffer((int) Math.min(limit - position, buf.length));
+                }
+            }
+            return header;
+        } finally {
+            this.in = null;
+            this.checksumDigest = null;
+            // Don't hold on to the memory of an unusually large transaction.
+            if (buf.length > 1024 * 1024)
+                buf = new byte[1024];
+        }
+    }
+
+    private void checkMerkleRoot(UldBlock header) throws VerificationException {
+        if (!calculatedMerkleRoot.equals(header.getMerkleRoot()))
+            throw new VerificationException("Merkle hashes do not match: " + calculatedMerkleRoot + " vs " +
+                    header.getMerkleRoot());
+    }
+
+    /**
+     * Copies one transaction into the buffer, following the same layout as {@link UldTransaction#parse()}.
+     *
+     * @return true if the transaction is serialized with witness data
+     */
+    private boolean readTransactionIntoBuffer() throws IOException, ProtocolException {
+        readIntoBuffer(4);
+        long numInputs = readVarIntIntoBuffer();
+        byte flags = 0;
+        if (numInputs == 0) {
+            readIntoBuffer(1);
+            flags = buf[bufLength - 1];
+            if (flags != 0) {
+                numInputs = readVarIntIntoBuffer();
+                readInputsOrOutputsIntoBuffer(numInputs, TransactionOutPoint.MESSAGE_LENGTH, 4);
+                readInputsOrOutputsIntoBuffer(readVarIntIntoBuffer(), 8, 0);
+            }
+        } else {
+            readInputsOrOutputsIntoBuffer(numInputs, TransactionOutPoint.MESSAGE_LENGTH, 4);
+            readInputsOrOutputsIntoBuffer(readVarIntIntoBuffer(), 8, 0);
+        }
+        boolean witness = (flags & 1) != 0;
+        if (witness) {
+            flags ^= 1;
+            for (long i = 0; i < numInputs; i++) {
+                long pushCount = readVarIntIntoBuffer();
+                for (long y = 0; y < pushCount; y++)
+                    readIntoBuffer(checkLength(readVarIntIntoBuffer()));
+            }
+        }
+        if (flags != 0)
+            throw new ProtocolException("Unknown transaction optional data");
+        readIntoBuffer(4);
+        return witness;
+    }
+
+    private void readInputsOrOutputsIntoBuffer(long count, int prefix, int suffix)
+            throws IOException, ProtocolException {
+        for (long i = 0; i < count; i++) {
+            readIntoBuffer(prefix);
+            readIntoBuffer(checkLength(readVarIntIntoBuffer()));
+            readIntoBuffer(suffix);
+        }
+    }
+
+    private static int checkLength(long length) throws ProtocolException {
+        if (length < 0 || length > Message.MAX_SIZE)
+            throw new ProtocolException("Claimed value length too large: " + length);
+        return (int) length;
+    }
+
+    private long readVarIntIntoBuffer() throws IOException, ProtocolException {
+        readIntoBuffer(1);
+        int first = 0xFF & buf[bufLength - 1];
+        int size = first < 253 ? 0 : first == 253 ? 2 : first == 254 ? 4 : 8;
+        if (size == 0)
+            return first;
+        readIntoBuffer(size);
+        return new VarInt(buf, bufLength - size - 1).value;
+    }
+
+    /** Appends the next {@code length} bytes of the block to the buffer. */
+    private void readIntoBuffer(int length) throws IOException, ProtocolException {
+        if (length > limit - position)
+            throw new ProtocolException("Block is longer than its message: " + (position + length) + " > " + limit);
+        int required = bufLength + length;
+        if (required > Message.MAX_SIZE)
+            throw new ProtocolException("Transaction too large: " + required);
+        if (required > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(required, Math.min(buf.length * 2, Message.MAX_SIZE)));
+        readFully(in, buf, bufLength, length);
+        if (checksumDigest != null)
+            checksumDigest.update(buf, bufLength, length);
+        bufLength = required;
+        position += length;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int read = in.read(b, off, len);
+            if (read < 0)
+                throw new EOFException("Stream ended in the middle of a block");
+            off += read;
+            len -= read;
+        }
+    }
+
+    private void seekPastMagicBytes(InputStream in) throws IOException {
+        long magic = params.getPacketMagic() & 0xFFFFFFFFL;
+        long window = 0;
+        int seen = 0;
+        while (seen < 4 || window != magic) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Stream ended before the packet magic");
+            window = ((window << 8) | b) & 0xFFFFFFFFL;
+            seen++;
+        }
+    }
+
+    /**
+     * Computes a merkle root from leaves supplied one at a time, keeping only one pending hash per tree level. The
+     * last hash of a level with an odd number of entries is paired with itself, as {@link UldBlock} does. Hashes are
+     * in the internal byte order, as produced by {@link Sha256Hash#hashTwice(byte[])}.
+     */
+    private static class MerkleAccumulator {
+        private final byte[][] inner = new byte[32][];
+        private long count;
+
+        void add(byte[] leaf) {
+            byte[] hash = leaf;
+            count++;
+            int level = 0;
+            for (; (count & (1L << level)) == 0; level++)
+                hash = Sha256Hash.hashTwice(inner[level], 0, 32, hash, 0, 32);
+            inner[level] = hash;
+        }
+
+        byte[] getRoot() {
+            int level = 0;
+            while ((count & (1L << level)) == 0)
+                level++;
+            byte[] hash = inner[level];
+            long n = count;
+            while (n != (1L << level)) {
+                // hash is an inner node without a sibling, combine it with itself and carry on upwards
+                hash = Sha256Hash.hashTwice(hash, 0, 32, hash, 0, 32);
+                n += 1L << level;
+                level++;
+                for (; (n & (1L << level)) == 0; level++)
+                    hash = Sha256Hash.hashTwice(inner[level], 0, 32, hash, 0, 32);
+            }
+            return hash;
+        }
+    }
+}
@@ -296,7 +296,7 @@ public class UldECKey {
      * The compression state of pub will be preserved.
      */
     public static UldECKey fromPublicOnly(byte[] pub) {
-        return new UldECKey(null, CURVE.getCurve().decodePoint(pub));
+        return new UldECKey(null, decodePublicPoint(pub));
     }
 
     /**
@@ -527,45 +527,22 @@ public class UldECKey {
          * of the signature, as recognized by OpenSSL and other libraries.
          */
         public byte[] encodeToDER() {
-            try {
-                return derByteStream().toByteArray();
-            } catch (IOException e) {
-                throw new RuntimeException(e);  // Cannot happen.
-            }
+            return DERSignature.encode(r, s);
         }
 
+        /**
+         * Decodes a DER signature, leniently as OpenSSL does: the components are read as unsigned and anything after
+         * them is ignored. Use {@link DERSignature} to decode signatures strictly.
+         *
+         * @throws DERSignature.SignatureDecodeException if the bytes don't start with a DER signature
+         */
         public static ECDSASignature decodeFromDER(byte[] bytes) {
-            ASN1InputStream decoder = null;
-            try {
-                decoder = new ASN1InputStream(bytes);
-                DLSequence seq = (DLSequence) decoder.readObject();
-                if (seq == null)
-                    throw new RuntimeException("Reached past end of ASN.1 stream.");
-                ASN1Integer r, s;
-                try {
-                    r = (ASN1Integer) seq.getObjectAt(0);
-                    s = (ASN1Integer) seq.getObjectAt(1);
-                } catch (ClassCastException e) {
-                    throw new IllegalArgumentException(e);
-                }
-                // OpenSSL deviates from the DER spec by interpreting these values as unsigned, though they should not be
-                // Thus, we always use the positive versions. See: http://r6.ca/blog/20111119T211504Z.html
-                return new ECDSASignature(r.getPositiveValue(), s.getPositiveValue());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } finally {
-                if (decoder != null)
-                    try { decoder.close(); } catch (IOException x) {}
-            }
+            return DERSignature.decode(bytes, 0, bytes.length);
         }
 
         protected ByteArrayOutputStream derByteStream() throws IOException {
-            // Usually 70-72 bytes.
             ByteArrayOutputStream bos = new ByteArrayOutputStream(72);
-            DERSequenceGenerator seq = new DERSequenceGenerator(bos);
-            seq.addObject(new ASN1Integer(r));
-            seq.addObject(new ASN1Integer(s));
-            seq.close();
+            bos.write(encodeToDER());
             return bos;
         }
 
@@ -603,6 +580,55 @@ public class UldECKey {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    @Nullable private static volatile SignatureCache signatureCache =
+            new SignatureCache(SignatureCache.DEFAULT_MAX_ENTRIES);
+
+    /**
+     * Returns the cache of successfully verified signatures consulted by {@link #verify(byte[], ECDSASignature, byte[])}
+     * and so by every signature check of the script interpreter, or null if there is none.
+     */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Replaces the cache of successfully verified signatures, for example with one of a different size. Pass null to
+     * always do the full verification.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    @Nullable private static volatile PublicKeyCache publicKeyCache = new PublicKeyCache(CURVE.getCurve(),
+            CURVE.getN().bitLength(), PublicKeyCache.DEFAULT_MAX_ENTRIES, PublicKeyCache.DEFAULT_HOT_THRESHOLD);
+
+    /**
+     * Returns the cache of decoded public keys used when verifying signatures and decoding keys of this curve, or null
+     * if there is none.
+     */
+    @Nullable
+    public static PublicKeyCache getPublicKeyCache() {
+        return publicKeyCache;
+    }
+
+    /** Replaces the cache of decoded public keys. Pass null to always decode keys from scratch. */
+    public static void setPublicKeyCache(@Nullable PublicKeyCache cache) {
+        checkArgument(cache == null || cache.getCurve().equals(CURVE.getCurve()), "Cache is for a different curve");
+        publicKeyCache = cache;
+    }
+
+    /**
+     * Decodes a public key on {@link #CURVE}, using the public key cache if there is one.
+     *
+     * @throws IllegalArgumentException if the bytes are not an encoded point on the curve
+     */
+    public static ECPoint decodePublicPoint(byte[] pub) {
+        checkArgument(pub.length > 0, "Empty public key");
+        PublicKeyCache cache = publicKeyCache;
+        return cache != null ? cache.decode(pub) : CURVE.getCurve().decodePoint(pub);
+    }
+
     protected ECDSASignature doSign(Sha256Hash input, BigInteger privateKeyForSigning) {
         if (FAKE_SIGNATURES)
             return TransactionSignature.dummy();
@@ -628,17 +654,23 @@ public class UldECKey {
         if (FAKE_SIGNATURES)
             return true;
 
+        SignatureCache cache = signatureCache;
+        if (cache != null && cache.contains(data, signature.r, signature.s, pub))
+            return true;
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
-        signer.init(false, params);
+        signer.init(false, new ECPublicKeyParameters(decodePublicPoint(pub), CURVE));
+        boolean valid;
         try {
-            return signer.verifySignature(data, signature.r, signature.s);
+            valid = signer.verifySignature(data, signature.r, signature.s);
         } catch (NullPointerException e) {
             // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
             // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
             log.error("Caught NPE inside bouncy castle", e);
             return false;
         }
+        if (valid && cache != null)
+            cache.add(data, signature.r, signature.s, pub);
+        return valid;
     }
 
     /**
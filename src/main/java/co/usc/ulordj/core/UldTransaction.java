@@ -24,13 +24,17 @@ import co.usc.ulordj.script.ScriptOpCodes;
 import co.usc.ulordj.signers.TransactionSigner;
 import co.usc.ulordj.wallet.Wallet;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.math.LongMath;
 import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static co.usc.ulordj.core.Utils.*;
@@ -131,6 +135,16 @@ public class UldTransaction extends ChildMessage {
     // can properly keep track of optimal encoded size
     private int optimalEncodingMessageSize;
 
+    // Set while parsing and cleared when uncached, so like the other parse results they have no initializers. The
+    // payload is hashable if it is exactly what this transaction serializes to, that is it is still valid and all its
+    // var ints use the shortest encoding. witnessStart is where its witness data begins relative to offset, 0 if none.
+    private boolean payloadHashable;
+    private int witnessStart;
+
+    // Serialized pieces shared by the signature hashes of all inputs, built on first use. Any change to the transaction
+    // drops them, except for changes to input scripts which they don't include, see TransactionInput#setScriptBytes.
+    @Nullable SigHashCache sigHashCache;
+
     /**
      * This enum describes the underlying reason the transaction was created. It's useful for rendering wallet GUIs
      * more appropriately.
@@ -236,6 +250,24 @@ public class UldTransaction extends ChildMessage {
     }
 
     private Sha256Hash getSha256Hash(boolean segwit) {
+        if (payload != null && payloadHashable) {
+            if (witnessStart == 0) {
+                // Nothing to strip, both ids are the hash of the bytes as they are.
+                if (!segwit || !hasWitness())
+                    return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, length));
+            } else if (segwit) {
+                if (hasWitness())
+                    return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, length));
+            } else {
+                // Hash around the marker and flag bytes after the version and the witness data before the lock time.
+                MessageDigest digest = Sha256Hash.newDigest();
+                digest.update(payload, offset, 4);
+                digest.update(payload, offset + 6, witnessStart - 6);
+                digest.update(payload, offset + length - 4, 4);
+                return Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+            }
+        }
+
         ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length < 32 ? 32 : length + 32);
         try {
             ulordSerializeToStream(stream, segwit);
@@ -395,6 +427,7 @@ public class UldTransaction extends ChildMessage {
     public void setWitness(int inputIndex, TransactionWitness witness) {
         if (!(0 <= inputIndex && inputIndex < inputs.size()))
             throw new java.lang.IndexOutOfBoundsException();
+        unCache();
         witness = witness == null ? TransactionWitness.getEmpty() : witness;
         while (inputIndex >= witnesses.size()) {
             witnesses.add(TransactionWitness.getEmpty());
@@ -544,6 +577,8 @@ public class UldTransaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        payloadHashable = false;
+        sigHashCache = null;
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -592,7 +627,7 @@ public class UldTransaction extends ChildMessage {
         readInputs();
         byte flags = 0;
         if (inputs.size() == 0) {
-            flags = readBytes(1)[0];
+            flags = readByte();
             optimalEncodingMessageSize += 1;
             if (flags != 0) {
                 readInputs();
@@ -603,8 +638,10 @@ public class UldTransaction extends ChildMessage {
         } else {
             readOutputs();
         }
+        witnessStart = 0;
         if (((flags & 1) != 0)) {
             flags ^= 1;
+            witnessStart = cursor - offset;
             readWitness();
         }
         if (flags != 0) {
@@ -614,6 +651,7 @@ public class UldTransaction extends ChildMessage {
         lockTime = readUint32();
         optimalEncodingMessageSize += 4;
         length = cursor - offset;
+        payloadHashable = optimalEncodingMessageSize == length;
 
         witnesses = witnesses == null ? new ArrayList<TransactionWitness>() : witnesses;
     }
@@ -643,6 +681,8 @@ public class UldTransaction extends ChildMessage {
         optimalEncodingMessageSize += 4;
         length = cursor - offset;
         witnesses = new ArrayList<TransactionWitness>();
+        payloadHashable = false;
+        witnessStart = 0;
     }
 
 
@@ -651,7 +691,8 @@ public class UldTransaction extends ChildMessage {
         for (int i = 0; i < inputs.size(); i++) {
             long pushCount = readVarInt();
             TransactionWitness witness = new TransactionWitness((int) pushCount);
-            setWitness(i, witness);
+            // Not through setWitness, which would throw away the payload we are parsing.
+            witnesses.add(witness);
             optimalEncodingMessageSize += VarInt.sizeOf(pushCount);
             for (int y = 0; y < pushCount; y++) {
                 long pushSize = readVarInt();
@@ -1068,6 +1109,22 @@ public class UldTransaction extends ChildMessage {
         //
         //   https://en.ulord.it/wiki/Contracts
 
+        if (!hasWitness()) {
+            // Same result as below, but from pieces serialized once for all inputs rather than a fresh copy of the
+            // whole transaction for each of them. Removing OP_CODESEPARATOR is explained below.
+            TransactionInput input = inputs.get(inputIndex);
+            SigHashCache cache = sigHashCache;
+            if (cache == null)
+                sigHashCache = cache = new SigHashCache(this);
+            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+            return cache.hashForSignature(input, inputIndex, connectedScript, sigHashType);
+        }
+        return hashForSignatureOfCopy(inputIndex, connectedScript, sigHashType);
+    }
+
+    /** Computes the signature hash by modifying and serializing a copy of the whole transaction. */
+    @VisibleForTesting
+    Sha256Hash hashForSignatureOfCopy(int inputIndex, byte[] connectedScript, byte sigHashType) {
         try {
             // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
             // It would not be thread-safe to change the attributes of the transaction object itself.
@@ -1179,6 +1236,34 @@ public class UldTransaction extends ChildMessage {
         uint32ToByteStreamLE(lockTime, stream);
     }
 
+    @Override
+    protected void ulordSerializeToBuffer(ByteBuffer buf) {
+        boolean serializeWit = hasWitness();
+        buf.putInt((int) version);
+        if (serializeWit) {
+            buf.put((byte) 0);
+            buf.put((byte) 1);
+        }
+        VarInt.write(inputs.size(), buf);
+        for (TransactionInput in : inputs)
+            in.ulordSerialize(buf);
+        VarInt.write(outputs.size(), buf);
+        for (TransactionOutput out : outputs)
+            out.ulordSerialize(buf);
+        if (serializeWit) {
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionWitness witness = getWitness(i);
+                VarInt.write(witness.getPushCount(), buf);
+                for (int y = 0; y < witness.getPushCount(); y++) {
+                    byte[] push = witness.getPush(y);
+                    VarInt.write(push.length, buf);
+                    buf.put(push);
+                }
+            }
+        }
+        buf.putInt((int) lockTime);
+    }
+
 
     /**
      * Transactions can have an associated lock time, specified either as a block height or in seconds since the
@@ -1283,9 +1368,47 @@ public class UldTransaction extends ChildMessage {
     public int getSigOpCount() throws ScriptException {
         int sigOps = 0;
         for (TransactionInput input : inputs)
-            sigOps += Script.getSigOpCount(input.getScriptBytes());
+            sigOps += input.getSigOpCount();
         for (TransactionOutput output : outputs)
-            sigOps += Script.getSigOpCount(output.getScriptBytes());
+            sigOps += output.getSigOpCount();
+        return sigOps;
+    }
+
+    /**
+     * Counts the regular SigOps of the transaction serialized at the given offset, the same way
+     * {@link #getSigOpCount()} does, straight from the bytes. The transaction must be well formed, as checked when
+     * a block is parsed.
+     */
+    static int getSigOpCount(byte[] payload, int offset) {
+        int sigOps = 0;
+        int cursor = offset + 4;
+        VarInt numInputs = new VarInt(payload, cursor);
+        cursor += numInputs.getOriginalSizeInBytes();
+        long count = numInputs.value;
+        if (count == 0) {
+            // Either a transaction with witnesses, flagged after the marker, or one without inputs or outputs.
+            if (payload[cursor++] == 0)
+                return 0;
+            numInputs = new VarInt(payload, cursor);
+            cursor += numInputs.getOriginalSizeInBytes();
+            count = numInputs.value;
+        }
+        for (long i = 0; i < count; i++) {
+            cursor += TransactionOutPoint.MESSAGE_LENGTH;
+            VarInt scriptLen = new VarInt(payload, cursor);
+            cursor += scriptLen.getOriginalSizeInBytes();
+            sigOps += Script.getSigOpCount(payload, cursor, (int) scriptLen.value);
+            cursor += (int) scriptLen.value + 4;
+        }
+        VarInt numOutputs = new VarInt(payload, cursor);
+        cursor += numOutputs.getOriginalSizeInBytes();
+        for (long i = 0; i < numOutputs.value; i++) {
+            cursor += 8;
+            VarInt scriptLen = new VarInt(payload, cursor);
+            cursor += scriptLen.getOriginalSizeInBytes();
+            sigOps += Script.getSigOpCount(payload, cursor, (int) scriptLen.value);
+            cursor += (int) scriptLen.value;
+        }
         return sigOps;
     }
 
@@ -1336,25 +1459,25 @@ public class UldTransaction extends ChildMessage {
         if (this.getMessageSize() > UldBlock.MAX_BLOCK_SIZE)
             throw new VerificationException.LargerThanMaxBlockSize();
 
-        Coin valueOut = Coin.ZERO;
-        HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
-        for (TransactionInput input : inputs) {
-            if (outpoints.contains(input.getOutpoint()))
-                throw new VerificationException.DuplicatedOutPoint();
-            outpoints.add(input.getOutpoint());
+        // Outpoints as their hash followed by their index, which is a long here.
+        byte[] keys = new byte[inputs.size() * 40];
+        int[] keyOffsets = new int[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionOutPoint outpoint = inputs.get(i).getOutpoint();
+            keyOffsets[i] = i * 40;
+            System.arraycopy(outpoint.getHash().getBytes(), 0, keys, i * 40, 32);
+            uint64ToByteArrayLE(outpoint.getIndex(), keys, i * 40 + 32);
         }
+        if (TransactionOutPoint.containsDuplicate(keys, keyOffsets, 40))
+            throw new VerificationException.DuplicatedOutPoint();
         try {
+            long valueOut = 0;
             for (TransactionOutput output : outputs) {
-                if (output.getValue().signum() < 0)    // getValue() can throw IllegalStateException
-                    throw new VerificationException.NegativeValueOutput();
-                valueOut = valueOut.add(output.getValue());
-                if (params.hasMaxMoney() && valueOut.compareTo(params.getMaxMoney()) > 0)
-                    throw new IllegalArgumentException();
+                long value = output.getValue().value;    // getValue() can throw IllegalStateException
+                valueOut = addOutputValue(params, valueOut, value);
             }
         } catch (IllegalStateException e) {
             throw new VerificationException.ExcessiveValue();
-        } catch (IllegalArgumentException e) {
-            throw new VerificationException.ExcessiveValue();
         }
 
         if (isCoinBase()) {
@@ -1367,6 +1490,91 @@ public class UldTransaction extends ChildMessage {
         }
     }
 
+    /** Checks the value of an output and returns the total of the outputs up to it, which must not exceed MAX_MONEY. */
+    private static long addOutputValue(NetworkParameters params, long valueOut, long value)
+            throws VerificationException {
+        if (value < 0)
+            throw new VerificationException.NegativeValueOutput();
+        valueOut = LongMath.checkedAdd(valueOut, value);
+        if (params.hasMaxMoney() && valueOut > params.getMaxMoney().value)
+            throw new VerificationException.ExcessiveValue();
+        return valueOut;
+    }
+
+    /**
+     * Does the same checks as {@link #verify()}, in the same order, on the transaction of the given length serialized
+     * at the given offset, without building it. The transaction must be well formed, as checked when a block is parsed.
+     */
+    static void verify(NetworkParameters params, byte[] payload, int offset, int length)
+            throws VerificationException {
+        int cursor = offset + 4;
+        VarInt numInputs = new VarInt(payload, cursor);
+        cursor += numInputs.getOriginalSizeInBytes();
+        if (numInputs.value == 0) {
+            // A marker for witnesses, or no inputs and outputs at all.
+            if (payload[cursor++] == 0)
+                throw new VerificationException.EmptyInputsOrOutputs();
+            numInputs = new VarInt(payload, cursor);
+            cursor += numInputs.getOriginalSizeInBytes();
+        }
+        int[] outpoints = new int[(int) numInputs.value];
+        int coinbaseScriptLength = 0;
+        for (int i = 0; i < outpoints.length; i++) {
+            outpoints[i] = cursor;
+            cursor += TransactionOutPoint.MESSAGE_LENGTH;
+            VarInt scriptLen = new VarInt(payload, cursor);
+            cursor += scriptLen.getOriginalSizeInBytes() + (int) scriptLen.value + 4;
+            if (i == 0)
+                coinbaseScriptLength = (int) scriptLen.value;
+        }
+        VarInt numOutputs = new VarInt(payload, cursor);
+        cursor += numOutputs.getOriginalSizeInBytes();
+        if (outpoints.length == 0 || numOutputs.value == 0)
+            throw new VerificationException.EmptyInputsOrOutputs();
+        if (length > UldBlock.MAX_BLOCK_SIZE)
+            throw new VerificationException.LargerThanMaxBlockSize();
+
+        if (TransactionOutPoint.containsDuplicate(payload, outpoints, TransactionOutPoint.MESSAGE_LENGTH))
+            throw new VerificationException.DuplicatedOutPoint();
+        long valueOut = 0;
+        for (long i = 0; i < numOutputs.value; i++) {
+            valueOut = addOutputValue(params, valueOut, Utils.readInt64(payload, cursor));
+            VarInt scriptLen = new VarInt(payload, cursor + 8);
+            cursor += 8 + scriptLen.getOriginalSizeInBytes() + (int) scriptLen.value;
+        }
+
+        if (outpoints.length == 1 && isCoinBaseOutPoint(payload, outpoints[0])) {
+            if (coinbaseScriptLength < 2 || coinbaseScriptLength > 100)
+                throw new VerificationException.CoinbaseScriptSizeOutOfRange();
+        } else {
+            for (int outpoint : outpoints)
+                if (isCoinBaseOutPoint(payload, outpoint))
+                    throw new VerificationException.UnexpectedCoinbaseInput();
+        }
+    }
+
+    /** Returns {@link #isCoinBase()} for the transaction serialized at the given offset, without building it. */
+    static boolean isCoinBase(byte[] payload, int offset) {
+        int cursor = offset + 4;
+        VarInt numInputs = new VarInt(payload, cursor);
+        cursor += numInputs.getOriginalSizeInBytes();
+        if (numInputs.value == 0) {
+            if (payload[cursor++] == 0)
+                return false;
+            numInputs = new VarInt(payload, cursor);
+            cursor += numInputs.getOriginalSizeInBytes();
+        }
+        return numInputs.value == 1 && isCoinBaseOutPoint(payload, cursor);
+    }
+
+    /** Returns true if the serialized outpoint is the one of a coinbase input, see {@link TransactionInput#isCoinBase()}. */
+    private static boolean isCoinBaseOutPoint(byte[] payload, int offset) {
+        for (int i = 0; i < TransactionOutPoint.MESSAGE_LENGTH; i++)
+            if (payload[offset + i] != (i < 32 ? 0 : (byte) 0xff))
+                return false;
+        return true;
+    }
+
     /**
      * <p>A transaction is time locked if at least one of its inputs is non-final and it has a lock time</p>
      *
@@ -0,0 +1,153 @@
+package co.usc.ulordj.core;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Splits a stream of bytes arriving in arbitrary chunks, for example from a non-blocking channel, into messages.
+ * Unlike {@link UlordSerializer#deserialize(ByteBuffer)} it doesn't need a whole message to be present: whatever has
+ * been received of the packet magic, the header or the payload is kept between calls, and the payload checksum is
+ * computed as the bytes come in, so nothing is ever scanned twice.</p>
+ *
+ * <p>Payloads are buffered in full before the message is built, so the decoder refuses messages that claim to be
+ * larger than the maximum size it was created with. That bounds how much memory a single connection can tie up.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class UlordFrameDecoder {
+    private enum State { MAGIC, HEADER, PAYLOAD }
+
+    private final UlordSerializer serializer;
+    private final int maxMessageSize;
+    private final long packetMagic;
+
+    private State state = State.MAGIC;
+    // Which byte of the magic we're looking for next, counting down from the most significant one.
+    private int magicCursor = 3;
+    private final byte[] headerBytes = new byte[UlordSerializer.UlordPacketHeader.HEADER_LENGTH];
+    private int headerBytesRead;
+    @Nullable private UlordSerializer.UlordPacketHeader header;
+    @Nullable private byte[] payload;
+    private int payloadBytesRead;
+    private final MessageDigest digest = Sha256Hash.newDigest();
+
+    /**
+     * @param serializer used to build messages once their payload is complete
+     * @param maxMessageSize largest payload, in bytes, the decoder is willing to buffer
+     */
+    public UlordFrameDecoder(UlordSerializer serializer, int maxMessageSize) {
+        checkArgument(maxMessageSize >= 0 && maxMessageSize <= Message.MAX_SIZE,
+                "maxMessageSize must be between 0 and " + Message.MAX_SIZE);
+        this.serializer = checkNotNull(serializer);
+        this.maxMessageSize = maxMessageSize;
+        this.packetMagic = serializer.getParameters().getPacketMagic();
+    }
+
+    public UlordFrameDecoder(UlordSerializer serializer) {
+        this(serializer, Message.MAX_SIZE);
+    }
+
+    /**
+     * Consumes bytes from the buffer until either a message is complete or the buffer is exhausted. Bytes after the
+     * end of a completed message are left in the buffer, so callers should keep calling this until it returns null.
+     *
+     * @return the decoded message, or null if more bytes are needed
+     * @throws ProtocolException if the message is malformed, fails its checksum or is larger than the maximum size.
+     * The decoder is ready for the next message afterwards, as the offending one has been skipped entirely unless it
+     * was refused for its size.
+     */
+    @Nullable
+    public Message decode(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case MAGIC:
+                    if (seekPastMagicBytes(in))
+                        state = State.HEADER;
+                    break;
+                case HEADER:
+                    int headerChunk = Math.min(in.remaining(), headerBytes.length - headerBytesRead);
+                    in.get(headerBytes, headerBytesRead, headerChunk);
+                    headerBytesRead += headerChunk;
+                    if (headerBytesRead == headerBytes.length) {
+                        UlordSerializer.UlordPacketHeader newHeader;
+                        try {
+                            newHeader = new UlordSerializer.UlordPacketHeader(ByteBuffer.wrap(headerBytes));
+                        } catch (ProtocolException e) {
+                            reset();
+                            throw e;
+                        }
+                        if (newHeader.size > maxMessageSize) {
+                            reset();
+                            throw new ProtocolException("Message size too large: " + newHeader.size + " > " +
+                                    maxMessageSize);
+                        }
+                        header = newHeader;
+                        payload = new byte[newHeader.size];
+                        state = State.PAYLOAD;
+                        // An empty payload is complete as soon as its header is.
+                        if (newHeader.size == 0)
+                            return completeMessage();
+                    }
+                    break;
+                case PAYLOAD:
+                    int payloadChunk = Math.min(in.remaining(), payload.length - payloadBytesRead);
+                    in.get(payload, payloadBytesRead, payloadChunk);
+                    digest.update(payload, payloadBytesRead, payloadChunk);
+                    payloadBytesRead += payloadChunk;
+                    if (payloadBytesRead == payload.length)
+                        return completeMessage();
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /** Returns true if the decoder is between messages, that is it holds no partially received message. */
+    public boolean isIdle() {
+        return state == State.MAGIC && magicCursor == 3;
+    }
+
+    /** Returns the number of payload bytes buffered for the message currently being received. */
+    public int getBufferedPayloadSize() {
+        return payloadBytesRead;
+    }
+
+    private Message completeMessage() throws ProtocolException {
+        UlordSerializer.UlordPacketHeader completeHeader = header;
+        byte[] completePayload = payload;
+        byte[] hash = digest.digest(digest.digest());
+        reset();
+        return serializer.deserializePayload(completeHeader, completePayload, 0, hash);
+    }
+
+    private void reset() {
+        state = State.MAGIC;
+        magicCursor = 3;
+        headerBytesRead = 0;
+        header = null;
+        payload = null;
+        payloadBytesRead = 0;
+        digest.reset();
+    }
+
+    /** Same search as {@link UlordSerializer#seekPastMagicBytes(ByteBuffer)}, but able to resume across chunks. */
+    private boolean seekPastMagicBytes(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            byte expectedByte = (byte)(0xFF & packetMagic >>> (magicCursor * 8));
+            if (b == expectedByte) {
+                magicCursor--;
+                if (magicCursor < 0)
+                    return true;
+            } else {
+                // The mismatching byte may itself start the magic.
+                magicCursor = b == (byte)(0xFF & packetMagic >>> 24) ? 2 : 3;
+            }
+        }
+        return false;
+    }
+}
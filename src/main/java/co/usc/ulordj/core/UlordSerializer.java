@@ -17,13 +17,16 @@
 
 package co.usc.ulordj.core;
 
+import co.usc.ulordj.utils.ByteBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -104,6 +107,60 @@ public class UlordSerializer extends MessageSerializer {
         serialize(name, message.ulordSerialize(), out);
     }
 
+    /**
+     * Writes the message, framed as for the wire, into a buffer taken from the given pool. If the message knows its
+     * length, the payload is serialized in place right after the header, otherwise it is serialized once and copied
+     * there. The checksum is computed over it in the buffer. The returned buffer is positioned
+     * at the start of the message with its limit at the end, and should be released to the pool once written out.
+     */
+    public ByteBuffer serialize(Message message, ByteBufferPool pool) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("UlordSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        int headerLength = 4 + COMMAND_LEN + 4 + 4;
+        ByteBuffer buf;
+        if (message.length == Message.UNKNOWN_LENGTH) {
+            // Sizing the buffer takes a serialization already, so copy those bytes rather than serialize again.
+            buf = putPayload(message.ulordSerialize(), headerLength, pool);
+        } else {
+            buf = pool.acquire(headerLength + message.length);
+            buf.position(headerLength);
+            try {
+                message.ulordSerialize(buf);
+            } catch (BufferOverflowException e) {
+                // The recorded length was stale, serialize it the slow way which also brings it up to date.
+                pool.release(buf);
+                buf = putPayload(message.ulordSerialize(), headerLength, pool);
+            }
+        }
+        int payloadLength = buf.position() - headerLength;
+        byte[] array = buf.array();
+        int start = buf.arrayOffset();
+
+        uint32ToByteArrayBE(params.getPacketMagic(), array, start);
+        Arrays.fill(array, start + 4, start + 4 + COMMAND_LEN, (byte) 0);
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            array[start + 4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+        Utils.uint32ToByteArrayLE(payloadLength, array, start + 4 + COMMAND_LEN);
+        byte[] hash = Sha256Hash.hashTwice(array, start + headerLength, payloadLength);
+        System.arraycopy(hash, 0, array, start + 4 + COMMAND_LEN + 4, 4);
+
+        buf.limit(headerLength + payloadLength);
+        buf.position(0);
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(array, start, headerLength + payloadLength));
+        return buf;
+    }
+
+    private static ByteBuffer putPayload(byte[] payload, int headerLength, ByteBufferPool pool) {
+        ByteBuffer buf = pool.acquire(headerLength + payload.length);
+        buf.position(headerLength);
+        buf.put(payload);
+        return buf;
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -141,15 +198,39 @@ public class UlordSerializer extends MessageSerializer {
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      * {@link UlordSerializer#deserializeHeader}.
+     *
+     * <p>When the buffer is backed by an accessible array and the resulting message won't hold on to its payload
+     * (that is, this serializer isn't in parse-retain mode) the message is parsed in place, straight out of that
+     * array. Otherwise, for example for direct or memory mapped buffers, the payload is copied out exactly once and
+     * every part of the message is parsed from that single copy.</p>
      */
     @Override
     public Message deserializePayload(UlordPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+
+        final byte[] payloadBytes;
+        final int payloadOffset;
+        if (in.hasArray() && canParseInPlace(header.command)) {
+            payloadBytes = in.array();
+            payloadOffset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            payloadOffset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
 
-        // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
+        return deserializePayload(header, payloadBytes, payloadOffset,
+                Sha256Hash.hashTwice(payloadBytes, payloadOffset, header.size));
+    }
+
+    /**
+     * Verifies the checksum of a payload that has already been read in full, given its double SHA-256 hash, and
+     * builds the message from it.
+     */
+    Message deserializePayload(UlordPacketHeader header, byte[] payloadBytes, int payloadOffset, byte[] hash)
+            throws ProtocolException {
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -159,27 +240,39 @@ public class UlordSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, payloadOffset, header.size));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, payloadBytes, payloadOffset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    HEX.encode(payloadBytes, payloadOffset, header.size) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    /**
+     * Whether a message of the given type can be parsed directly out of the caller's buffer. That's only safe if
+     * nothing we build keeps a reference to the payload after parsing, as the caller is free to reuse its buffer.
+     */
+    private boolean canParseInPlace(String command) {
+        if (parseRetain)
+            return false;
+        // Headers are always parsed in retain mode, and unknown messages keep their payload as is.
+        return command.equals("block") || command.equals("merkleblock") || command.equals("tx");
+    }
+
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
         if (command.equals("block")) {
-            message = makeBlock(payloadBytes, length);
+            message = makeBlock(payloadBytes, offset, length);
         } else if (command.equals("merkleblock")) {
-            message = makeFilteredBlock(payloadBytes);
+            message = makeFilteredBlock(payloadBytes, offset, length);
         } else if (command.equals("tx")) {
-            message = makeTransaction(payloadBytes, 0, length, hash);
+            message = makeTransaction(payloadBytes, offset, length, hash);
         } else if (command.equals("headers")) {
-            return new HeadersMessage(params, payloadBytes);
+            return new HeadersMessage(params, payloadBytes, offset, params.getDefaultSerializer(), length);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
@@ -212,6 +305,14 @@ public class UlordSerializer extends MessageSerializer {
         return new FilteredBlock(params, payloadBytes);
     }
 
+    /**
+     * Make a filtered block from a range of the payload, parsing it in place.
+     */
+    @Override
+    public FilteredBlock makeFilteredBlock(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        return new FilteredBlock(params, payloadBytes, offset, this, length);
+    }
+
     /**
      * Make a transaction from the payload. Extension point for alternative
      * serialization format support.
@@ -34,6 +34,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -135,6 +136,15 @@ public class Utils {
                 stream.write(0);
     }
 
+    /** Same encoding as {@link #uint256ToByteStreamLE(BigInteger, OutputStream)}, written straight into the buffer. */
+    public static void uint256ToByteBufferLE(BigInteger val, ByteBuffer buf) {
+        byte[] bytes = val.toByteArray();
+        for (int i = bytes.length - 1; i >= 0; i--)
+            buf.put(bytes[i]);
+        for (int i = bytes.length; i < 32; i++)
+            buf.put((byte) 0);
+    }
+
     public static void uint64ToByteStreamLE(BigInteger val, OutputStream stream) throws IOException {
         byte[] bytes = val.toByteArray();
         if (bytes.length > 8) {
@@ -16,6 +16,8 @@
 
 package co.usc.ulordj.core;
 
+import java.nio.ByteBuffer;
+
 /**
  * A variable-length encoded unsigned integer using Satoshi's encoding (a.k.a. "CompactSize").
  */
@@ -85,6 +87,29 @@ public class VarInt {
         return 9; // 1 marker + 8 data bytes
     }
 
+    /**
+     * Writes the encoding of the given value straight into the buffer, which must be in little endian order.
+     */
+    public static void write(long value, ByteBuffer buf) {
+        switch (sizeOf(value)) {
+            case 1:
+                buf.put((byte) value);
+                break;
+            case 3:
+                buf.put((byte) 253);
+                buf.putShort((short) value);
+                break;
+            case 5:
+                buf.put((byte) 254);
+                buf.putInt((int) value);
+                break;
+            default:
+                buf.put((byte) 255);
+                buf.putLong(value);
+                break;
+        }
+    }
+
     /**
      * Encodes the value into its minimal representation.
      *
@@ -0,0 +1,258 @@
+package co.usc.ulordj.crypto;
+
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.UldTransaction;
+import co.usc.ulordj.core.VerificationException;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * <p>Encodes and decodes ECDSA signatures in DER form directly on byte arrays, without going through the ASN.1 object
+ * model of Bouncy Castle.</p>
+ *
+ * <p>Signatures found in scripts can be decoded in one of two ways. The lax way accepts what OpenSSL, and so the old
+ * Bitcoin Core, used to accept: any definite length encoding of a sequence starting with two integers, read as
+ * unsigned, with anything after the sequence ignored. The strict way only accepts the encoding required by
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0066.mediawiki">BIP66</a>, a known sighash type and,
+ * if asked to, a low S value as required by
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0062.mediawiki">BIP62</a>, all checked in the same pass
+ * over the bytes. Either way a signature that can't be decoded gets a {@link SignatureDecodeException} telling what
+ * is wrong with it.</p>
+ */
+public final class DERSignature {
+    private static final int SEQUENCE = 0x30;
+    private static final int INTEGER = 0x02;
+
+    // Big endian bytes of half the curve order, to compare S values with before they are turned into numbers.
+    private static final byte[] HALF_CURVE_ORDER = UldECKey.HALF_CURVE_ORDER.toByteArray();
+
+    /** Thrown when a signature can't be decoded, or doesn't meet the rules it was decoded with. */
+    public static class SignatureDecodeException extends VerificationException {
+        private static final long serialVersionUID = -8388042328578614406L;
+
+        public SignatureDecodeException(String msg) {
+            super(msg);
+        }
+    }
+
+    private DERSignature() {
+    }
+
+    /** Returns the DER encoding of the signature with the given components. */
+    public static byte[] encode(BigInteger r, BigInteger s) {
+        return encode(r, s, false, 0);
+    }
+
+    /**
+     * Returns the DER encoding of the signature with the given components followed by the given sighash byte, as it
+     * appears in scripts.
+     */
+    public static byte[] encode(BigInteger r, BigInteger s, int sighashFlags) {
+        return encode(r, s, true, sighashFlags);
+    }
+
+    private static byte[] encode(BigInteger r, BigInteger s, boolean withSighash, int sighashFlags) {
+        byte[] rBytes = r.toByteArray();
+        byte[] sBytes = s.toByteArray();
+        int contentLength = 1 + lengthOfLength(rBytes.length) + rBytes.length
+                + 1 + lengthOfLength(sBytes.length) + sBytes.length;
+        int totalLength = 1 + lengthOfLength(contentLength) + contentLength;
+        if (withSighash)
+            totalLength++;
+        byte[] out = new byte[totalLength];
+        int pos = 0;
+        out[pos++] = SEQUENCE;
+        pos = writeLength(out, pos, contentLength);
+        out[pos++] = INTEGER;
+        pos = writeLength(out, pos, rBytes.length);
+        System.arraycopy(rBytes, 0, out, pos, rBytes.length);
+        pos += rBytes.length;
+        out[pos++] = INTEGER;
+        pos = writeLength(out, pos, sBytes.length);
+        System.arraycopy(sBytes, 0, out, pos, sBytes.length);
+        pos += sBytes.length;
+        if (withSighash)
+            out[pos] = (byte) sighashFlags;
+        return out;
+    }
+
+    private static int lengthOfLength(int length) {
+        if (length < 0x80)
+            return 1;
+        int bytes = 0;
+        for (int l = length; l != 0; l >>>= 8)
+            bytes++;
+        return 1 + bytes;
+    }
+
+    private static int writeLength(byte[] out, int pos, int length) {
+        if (length < 0x80) {
+            out[pos++] = (byte) length;
+            return pos;
+        }
+        int bytes = lengthOfLength(length) - 1;
+        out[pos++] = (byte) (0x80 | bytes);
+        for (int i = bytes - 1; i >= 0; i--)
+            out[pos++] = (byte) (length >>> (8 * i));
+        return pos;
+    }
+
+    /**
+     * Decodes a DER signature the lax way, see the class description. Bytes after the encoded sequence are ignored.
+     *
+     * @throws SignatureDecodeException if the bytes don't start with a signature
+     */
+    public static UldECKey.ECDSASignature decode(byte[] bytes, int offset, int length) {
+        BigInteger[] rs = decodeLax(bytes, offset, length);
+        return new UldECKey.ECDSASignature(rs[0], rs[1]);
+    }
+
+    /**
+     * Decodes a signature as found in a script, a DER signature followed by the sighash byte.
+     *
+     * @param strict if the signature must be encoded as BIP66 requires, with a known sighash type
+     * @param requireLowS if the S value must be at most half the curve order
+     * @throws SignatureDecodeException if the signature can't be decoded or breaks one of the rules asked for
+     */
+    public static TransactionSignature decodeTransactionSignature(byte[] bytes, int offset, int length,
+                                                                  boolean strict, boolean requireLowS) {
+        BigInteger r, s;
+        if (strict) {
+            int lenR = checkStrict(bytes, offset, length);
+            int sOffset = offset + 6 + lenR;
+            int lenS = bytes[sOffset - 1] & 0xff;
+            if (requireLowS && !isLowS(bytes, sOffset, lenS))
+                throw new SignatureDecodeException("S-value is not canonical.");
+            r = new BigInteger(1, Arrays.copyOfRange(bytes, offset + 4, offset + 4 + lenR));
+            s = new BigInteger(1, Arrays.copyOfRange(bytes, sOffset, sOffset + lenS));
+        } else {
+            BigInteger[] rs = decodeLax(bytes, offset, length);
+            r = rs[0];
+            s = rs[1];
+            if (requireLowS && s.compareTo(UldECKey.HALF_CURVE_ORDER) > 0)
+                throw new SignatureDecodeException("S-value is not canonical.");
+        }
+        // Any value of the final byte is valid, though not necessarily canonical, so the exact byte is kept.
+        return new TransactionSignature(r, s, bytes[offset + length - 1]);
+    }
+
+    /**
+     * Returns true if the given signature, including its sighash byte, is encoded as BIP66 requires and has a known
+     * sighash type. This is what {@link TransactionSignature#isEncodingCanonical(byte[])} checks.
+     */
+    public static boolean isValidEncoding(byte[] bytes, int offset, int length) {
+        try {
+            checkStrict(bytes, offset, length);
+            return true;
+        } catch (SignatureDecodeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the layout {@code 30 <total len> 02 <len R> <R> 02 <len S> <S> <hashtype>}, where R and S are positive
+     * and not padded with more zeroes than needed to keep them so. Returns the length of R.
+     */
+    private static int checkStrict(byte[] sig, int offset, int length) {
+        // See Bitcoin Core's IsValidSignatureEncoding.
+        if (length < 9 || length > 73)
+            throw new SignatureDecodeException("Signature length " + length + " is out of range.");
+        int hashType = (sig[offset + length - 1] & 0xff) & ~UldTransaction.SigHash.ANYONECANPAY.value;
+        if (hashType < UldTransaction.SigHash.ALL.value || hashType > UldTransaction.SigHash.SINGLE.value)
+            throw new SignatureDecodeException("Unknown sighash type " + hashType + ".");
+        if ((sig[offset] & 0xff) != SEQUENCE)
+            throw new SignatureDecodeException("Signature is not a DER sequence.");
+        if ((sig[offset + 1] & 0xff) != length - 3)
+            throw new SignatureDecodeException("Signature sequence length does not match the signature length.");
+        int lenR = sig[offset + 3] & 0xff;
+        if (lenR == 0 || 5 + lenR >= length)
+            throw new SignatureDecodeException("Signature R length " + lenR + " is out of range.");
+        int lenS = sig[offset + 5 + lenR] & 0xff;
+        if (lenS == 0 || lenR + lenS + 7 != length)
+            throw new SignatureDecodeException("Signature S length " + lenS + " does not match.");
+        checkStrictInteger(sig, offset + 2, lenR, "R");
+        checkStrictInteger(sig, offset + 4 + lenR, lenS, "S");
+        return lenR;
+    }
+
+    private static void checkStrictInteger(byte[] sig, int tagOffset, int len, String name) {
+        if (sig[tagOffset] != INTEGER)
+            throw new SignatureDecodeException("Signature " + name + " value is not an integer.");
+        int first = sig[tagOffset + 2];
+        if ((first & 0x80) != 0)
+            throw new SignatureDecodeException("Signature " + name + " value is negative.");
+        if (len > 1 && first == 0 && (sig[tagOffset + 3] & 0x80) == 0)
+            throw new SignatureDecodeException("Signature " + name + " value is excessively padded.");
+    }
+
+    /** Compares the unsigned big endian value with half the curve order, both without leading zeroes. */
+    private static boolean isLowS(byte[] sig, int offset, int length) {
+        while (length > 0 && sig[offset] == 0) {
+            offset++;
+            length--;
+        }
+        int halfOffset = HALF_CURVE_ORDER[0] == 0 ? 1 : 0;
+        int halfLength = HALF_CURVE_ORDER.length - halfOffset;
+        if (length != halfLength)
+            return length < halfLength;
+        for (int i = 0; i < length; i++) {
+            int a = sig[offset + i] & 0xff, b = HALF_CURVE_ORDER[halfOffset + i] & 0xff;
+            if (a != b)
+                return a < b;
+        }
+        return true;
+    }
+
+    private static BigInteger[] decodeLax(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        if (pos >= end || (bytes[pos++] & 0xff) != SEQUENCE)
+            throw new SignatureDecodeException("Signature is not a DER sequence.");
+        int[] cursor = {pos};
+        int contentLength = readLength(bytes, cursor, end);
+        pos = cursor[0];
+        if (contentLength > end - pos)
+            throw new SignatureDecodeException("Signature sequence is longer than the signature.");
+        int contentEnd = pos + contentLength;
+        BigInteger[] rs = new BigInteger[2];
+        for (int i = 0; i < 2; i++) {
+            String name = i == 0 ? "R" : "S";
+            if (pos >= contentEnd || bytes[pos++] != INTEGER)
+                throw new SignatureDecodeException("Signature " + name + " value is not an integer.");
+            cursor[0] = pos;
+            int len = readLength(bytes, cursor, contentEnd);
+            pos = cursor[0];
+            if (len == 0 || len > contentEnd - pos)
+                throw new SignatureDecodeException("Signature " + name + " length " + len + " is out of range.");
+            // OpenSSL deviates from the DER spec by interpreting these values as unsigned, though they should not be
+            // Thus, we always use the positive versions. See: http://r6.ca/blog/20111119T211504Z.html
+            rs[i] = new BigInteger(1, Arrays.copyOfRange(bytes, pos, pos + len));
+            pos += len;
+        }
+        return rs;
+    }
+
+    /** Reads a definite length at cursor[0], advancing it. */
+    private static int readLength(byte[] bytes, int[] cursor, int end) {
+        int pos = cursor[0];
+        if (pos >= end)
+            throw new SignatureDecodeException("Signature is truncated.");
+        int first = bytes[pos++] & 0xff;
+        int length;
+        if (first < 0x80) {
+            length = first;
+        } else {
+            int count = first & 0x7f;
+            if (count == 0 || count > 3)
+                throw new SignatureDecodeException("Signature has an unsupported length encoding.");
+            if (count > end - pos)
+                throw new SignatureDecodeException("Signature is truncated.");
+            length = 0;
+            for (int i = 0; i < count; i++)
+                length = (length << 8) | (bytes[pos++] & 0xff);
+        }
+        cursor[0] = pos;
+        return length;
+    }
+}
@@ -14,6 +14,7 @@
 
 package co.usc.ulordj.crypto;
 
+import co.usc.ulordj.core.UldECKey;
 import org.spongycastle.math.ec.ECCurve;
 import org.spongycastle.math.ec.ECFieldElement;
 import org.spongycastle.math.ec.ECPoint;
@@ -52,8 +53,10 @@ public class LazyECPoint {
     }
 
     public ECPoint get() {
-        if (point == null)
-            point = curve.decodePoint(bits);
+        if (point == null) {
+            PublicKeyCache cache = UldECKey.getPublicKeyCache();
+            point = cache != null && cache.getCurve().equals(curve) ? cache.decode(bits) : curve.decodePoint(bits);
+        }
         return point;
     }
 
@@ -0,0 +1,130 @@
+package co.usc.ulordj.crypto;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECFieldElement;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.WNafUtil;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps public keys decoded, so a key seen again doesn't have to be parsed and, if compressed, decompressed with a
+ * square root again.</p>
+ *
+ * <p>Keys that are used often, such as those of a federation that signs almost everything being verified, get more:
+ * they're handed out as one shared point carrying a precomputed windowed NAF table, which Bouncy Castle picks up and
+ * reuses for every multiplication with that point instead of building a new table for each signature check. Other
+ * keys are handed out as fresh points, so the tables Bouncy Castle builds for them are thrown away with them and the
+ * cache stays small.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class PublicKeyCache {
+    /** Number of keys kept decoded by the cache {@link co.usc.ulordj.core.UldECKey} starts with. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    /** Number of uses after which a key gets its precomputed table in the cache UldECKey starts with. */
+    public static final int DEFAULT_HOT_THRESHOLD = 8;
+
+    private final ECCurve curve;
+    private final ECFieldElement one;
+    private final int hotThreshold;
+    private final int windowWidth;
+    private final Cache<ByteBuffer, Entry> entries;
+
+    private static class Entry {
+        final ECPoint point;
+        final AtomicInteger uses = new AtomicInteger();
+        volatile boolean hot;
+
+        Entry(ECPoint point) {
+            this.point = point;
+        }
+    }
+
+    /**
+     * @param curve curve of the keys
+     * @param orderBits bit length of the order of the curve's base point, which sets how large the tables are
+     * @param maxEntries how many keys to keep decoded at most
+     * @param hotThreshold how many times a key must have been decoded before it gets a precomputed table
+     */
+    public PublicKeyCache(ECCurve curve, int orderBits, long maxEntries, int hotThreshold) {
+        checkArgument(maxEntries > 0, "maxEntries must be positive");
+        checkArgument(hotThreshold > 0, "hotThreshold must be positive");
+        this.curve = checkNotNull(curve);
+        this.one = curve.fromBigInteger(BigInteger.ONE);
+        this.hotThreshold = hotThreshold;
+        // The width Bouncy Castle picks for scalars of this size, so it uses the table rather than building a wider one.
+        this.windowWidth = Math.max(2, Math.min(16, WNafUtil.getWindowSize(orderBits)));
+        this.entries = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+    }
+
+    public ECCurve getCurve() {
+        return curve;
+    }
+
+    /**
+     * Decodes the given public key, the same as {@link ECCurve#decodePoint(byte[])} but much cheaper for keys seen
+     * before. Invalid encodings are not cached.
+     *
+     * @throws IllegalArgumentException if the encoding is not a valid point on the curve
+     */
+    public ECPoint decode(byte[] encoded) {
+        ByteBuffer key = ByteBuffer.wrap(encoded.clone());
+        Entry entry = entries.getIfPresent(key);
+        if (entry == null) {
+            entry = new Entry(curve.decodePoint(encoded));
+            entries.put(key, entry);
+        }
+        // The point at infinity is a shared constant and has nothing to precompute.
+        if (entry.hot || entry.point.isInfinity())
+            return entry.point;
+        if (entry.uses.incrementAndGet() >= hotThreshold) {
+            synchronized (entry) {
+                if (!entry.hot) {
+                    WNafUtil.precompute(entry.point, windowWidth, true);
+                    entry.hot = true;
+                }
+            }
+            return entry.point;
+        }
+        // A copy of the point, compression flag and all, that any table Bouncy Castle builds for it goes away with.
+        return entry.point.scaleX(one);
+    }
+
+    /** Returns true if the given key is decoded and has its precomputed table. */
+    public boolean isHot(byte[] encoded) {
+        Entry entry = entries.asMap().get(ByteBuffer.wrap(encoded));
+        return entry != null && entry.hot;
+    }
+
+    /** Forgets all keys. */
+    public void clear() {
+        entries.invalidateAll();
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+    /** Returns how many keys were found decoded already. */
+    public long getHitCount() {
+        return entries.stats().hitCount();
+    }
+
+    /** Returns how many keys had to be decoded. */
+    public long getMissCount() {
+        return entries.stats().missCount();
+    }
+
+    /** Returns the ratio of keys that were found decoded already, or 1 if none were asked for. */
+    public double getHitRate() {
+        return entries.stats().hitRate();
+    }
+}
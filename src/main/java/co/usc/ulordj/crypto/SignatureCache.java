@@ -0,0 +1,98 @@
+package co.usc.ulordj.crypto;
+
+import co.usc.ulordj.core.Sha256Hash;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers ECDSA signatures that have been verified successfully, so checking the same signature of the same hash
+ * against the same public key again doesn't redo the elliptic curve math. This happens a lot when a transaction is
+ * verified more than once, or while signatures are matched up with the keys of a multisig script.</p>
+ *
+ * <p>Entries are keyed by a hash of the triple salted with a random value chosen when the cache is created, so nobody
+ * can predict keys to make entries collide. Once the cache holds its maximum number of entries the least recently
+ * used ones are evicted. Failed verifications are never cached.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class SignatureCache {
+    /** Number of entries of the cache {@link co.usc.ulordj.core.UldECKey} starts with, which is a few megabytes. */
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    private final byte[] salt = new byte[32];
+    private final Cache<Sha256Hash, Boolean> entries;
+
+    /**
+     * @param maxEntries how many verified signatures to remember at most
+     */
+    public SignatureCache(long maxEntries) {
+        checkArgument(maxEntries > 0, "maxEntries must be positive");
+        new SecureRandom().nextBytes(salt);
+        entries = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+    }
+
+    /** Returns true if the given signature of the given hash has been verified with the given public key before. */
+    public boolean contains(byte[] data, BigInteger r, BigInteger s, byte[] pub) {
+        return entries.getIfPresent(key(data, r, s, pub)) != null;
+    }
+
+    /** Records that the given signature of the given hash is valid for the given public key. */
+    public void add(byte[] data, BigInteger r, BigInteger s, byte[] pub) {
+        entries.put(key(data, r, s, pub), Boolean.TRUE);
+    }
+
+    /** Forgets all verified signatures. Hit and miss counts are kept. */
+    public void clear() {
+        entries.invalidateAll();
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+    /** Returns how many lookups found their signature in the cache. */
+    public long getHitCount() {
+        return entries.stats().hitCount();
+    }
+
+    /** Returns how many lookups did not find their signature in the cache. */
+    public long getMissCount() {
+        return entries.stats().missCount();
+    }
+
+    /** Returns the ratio of lookups that found their signature in the cache, or 1 if there weren't any lookups. */
+    public double getHitRate() {
+        return entries.stats().hitRate();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = entries.stats();
+        return "SignatureCache{size=" + entries.size() + ", hits=" + stats.hitCount() + ", misses=" +
+                stats.missCount() + ", evictions=" + stats.evictionCount() + "}";
+    }
+
+    private Sha256Hash key(byte[] data, BigInteger r, BigInteger s, byte[] pub) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        // Every part but the salt is preceded by its length, so different triples can't hash the same bytes.
+        update(digest, data);
+        update(digest, r.toByteArray());
+        update(digest, s.toByteArray());
+        update(digest, pub);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, byte[] bytes) {
+        int length = bytes.length;
+        digest.update(new byte[] {(byte) length, (byte) (length >>> 8), (byte) (length >>> 16), (byte) (length >>> 24)});
+        digest.update(bytes);
+    }
+}
@@ -21,8 +21,6 @@ import co.usc.ulordj.core.UldTransaction;
 import co.usc.ulordj.core.VerificationException;
 import co.usc.ulordj.core.UldTransaction.SigHash;
 import com.google.common.base.Preconditions;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.math.BigInteger;
 
 /**
@@ -84,42 +82,7 @@ public class TransactionSignature extends UldECKey.ECDSASignature {
      * not relayed by default.
      */
     public static boolean isEncodingCanonical(byte[] signature) {
-        // See Bitcoin Core's IsCanonicalSignature, https://bitcointalk.org/index.php?topic=8392.msg127623#msg127623
-        // A canonical signature exists of: <30> <total len> <02> <len R> <R> <02> <len S> <S> <hashtype>
-        // Where R and S are not negative (their first byte has its highest bit not set), and not
-        // excessively padded (do not start with a 0 byte, unless an otherwise negative number follows,
-        // in which case a single 0 byte is necessary and even required).
-        if (signature.length < 9 || signature.length > 73)
-            return false;
-
-        int hashType = (signature[signature.length-1] & 0xff) & ~UldTransaction.SigHash.ANYONECANPAY.value; // mask the byte to prevent sign-extension hurting us
-        if (hashType < UldTransaction.SigHash.ALL.value || hashType > UldTransaction.SigHash.SINGLE.value)
-            return false;
-
-        //                   "wrong type"                  "wrong length marker"
-        if ((signature[0] & 0xff) != 0x30 || (signature[1] & 0xff) != signature.length-3)
-            return false;
-
-        int lenR = signature[3] & 0xff;
-        if (5 + lenR >= signature.length || lenR == 0)
-            return false;
-        int lenS = signature[5+lenR] & 0xff;
-        if (lenR + lenS + 7 != signature.length || lenS == 0)
-            return false;
-
-        //    R value type mismatch          R value negative
-        if (signature[4-2] != 0x02 || (signature[4] & 0x80) == 0x80)
-            return false;
-        if (lenR > 1 && signature[4] == 0x00 && (signature[4+1] & 0x80) != 0x80)
-            return false; // R value excessively padded
-
-        //       S value type mismatch                    S value negative
-        if (signature[6 + lenR - 2] != 0x02 || (signature[6 + lenR] & 0x80) == 0x80)
-            return false;
-        if (lenS > 1 && signature[6 + lenR] == 0x00 && (signature[6 + lenR + 1] & 0x80) != 0x80)
-            return false; // S value excessively padded
-
-        return true;
+        return DERSignature.isValidEncoding(signature, 0, signature.length);
     }
 
     public boolean anyoneCanPay() {
@@ -142,13 +105,7 @@ public class TransactionSignature extends UldECKey.ECDSASignature {
      * components into a structure, and then we append a byte to the end for the sighash flags.
      */
     public byte[] encodeToUlord() {
-        try {
-            ByteArrayOutputStream bos = derByteStream();
-            bos.write(sighashFlags);
-            return bos.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        return DERSignature.encode(r, s, sighashFlags);
     }
 
     @Override
@@ -177,25 +134,13 @@ public class TransactionSignature extends UldECKey.ECDSASignature {
      * be canonical.
      * @param requireCanonicalSValue if the S-value must be canonical (below half
      * the order of the curve).
-     * @throws RuntimeException if the signature is invalid or unparseable in some way.
+     * @throws DERSignature.SignatureDecodeException if the signature is invalid or unparseable in some way.
      */
     public static TransactionSignature decodeFromUlord(byte[] bytes,
                                                        boolean requireCanonicalEncoding,
                                                        boolean requireCanonicalSValue) throws VerificationException {
         // Bitcoin encoding is DER signature + sighash byte.
-        if (requireCanonicalEncoding && !isEncodingCanonical(bytes))
-            throw new VerificationException("Signature encoding is not canonical.");
-        UldECKey.ECDSASignature sig;
-        try {
-            sig = UldECKey.ECDSASignature.decodeFromDER(bytes);
-        } catch (IllegalArgumentException e) {
-            throw new VerificationException("Could not decode DER", e);
-        }
-        if (requireCanonicalSValue && !sig.isCanonical())
-            throw new VerificationException("S-value is not canonical.");
-
-        // In Bitcoin, any value of the final byte is valid, but not necessarily canonical. See javadocs for
-        // isEncodingCanonical to learn more about this. So we must store the exact byte found.
-        return new TransactionSignature(sig.r, sig.s, bytes[bytes.length - 1]);
+        return DERSignature.decodeTransactionSignature(bytes, 0, bytes.length, requireCanonicalEncoding,
+                requireCanonicalSValue);
     }
 }
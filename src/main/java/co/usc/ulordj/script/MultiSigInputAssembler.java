@@ -0,0 +1,241 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.UldTransaction;
+import co.usc.ulordj.core.UnsafeByteArrayOutputStream;
+import co.usc.ulordj.crypto.DERSignature;
+import co.usc.ulordj.crypto.TransactionSignature;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Collects the signatures of a multisig or P2SH multisig input, one slot per key of the multisig program, and builds
+ * its input script once they're in.</p>
+ *
+ * <p>A signature added without saying whose it is gets verified against the keys that don't have one yet until one
+ * matches, and is then remembered in that key's slot, so no signature is ever verified again to find out where it
+ * goes. Signature hashes are computed once per sighash type. Signatures made by a known key, such as the caller's own,
+ * can be put in their slot without any verification.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads, so signatures of several federation members can be
+ * added as they arrive. The transaction must not be modified while signatures are added.</p>
+ */
+public class MultiSigInputAssembler {
+    private final UldTransaction tx;
+    private final int inputIndex;
+    private final byte[] program;
+    private final boolean payToScriptHash;
+    private final List<byte[]> pubKeys;
+    private final int required;
+    private final AtomicReferenceArray<byte[]> slots;
+    private final AtomicInteger count = new AtomicInteger();
+    // Signature hashes by sighash byte, computed when first needed.
+    private final AtomicReferenceArray<Sha256Hash> hashes = new AtomicReferenceArray<Sha256Hash>(256);
+
+    /**
+     * @param tx the transaction being signed
+     * @param inputIndex the input being signed
+     * @param multiSigProgram the redeem script of a P2SH input, or the output script of a bare multisig one
+     * @param payToScriptHash whether the input spends a P2SH output, so the program ends the input script
+     */
+    public MultiSigInputAssembler(UldTransaction tx, int inputIndex, Script multiSigProgram, boolean payToScriptHash) {
+        this(tx, inputIndex, checkMultiSig(multiSigProgram).getRedeemScriptInfo(), payToScriptHash);
+    }
+
+    /**
+     * @param tx the transaction being signed
+     * @param inputIndex the input being signed
+     * @param multiSig the redeem script of a P2SH input, or the output script of a bare multisig one
+     * @param payToScriptHash whether the input spends a P2SH output, so the program ends the input script
+     */
+    public MultiSigInputAssembler(UldTransaction tx, int inputIndex, RedeemScriptInfo multiSig,
+                                  boolean payToScriptHash) {
+        this.tx = tx;
+        this.inputIndex = inputIndex;
+        this.program = multiSig.getProgram();
+        this.payToScriptHash = payToScriptHash;
+        this.pubKeys = multiSig.getPubKeys();
+        this.required = multiSig.getThreshold();
+        this.slots = new AtomicReferenceArray<byte[]>(pubKeys.size());
+    }
+
+    private static Script checkMultiSig(Script multiSigProgram) {
+        checkArgument(multiSigProgram.isSentToMultiSig(), "Not a multisig program: %s", multiSigProgram);
+        return multiSigProgram;
+    }
+
+    /**
+     * Creates an assembler holding the signatures already in the given input script, which has the layout
+     * {@link #buildScriptSig()} produces. Signatures that don't match a key, or that
+     * {@link #addSignature(byte[])} rejects, are left out.
+     */
+    public static MultiSigInputAssembler fromScriptSig(UldTransaction tx, int inputIndex, Script scriptSig,
+                                                       Script multiSigProgram, boolean payToScriptHash) {
+        return fromScriptSig(tx, inputIndex, scriptSig, checkMultiSig(multiSigProgram).getRedeemScriptInfo(),
+                payToScriptHash);
+    }
+
+    /** Same as {@link #fromScriptSig(UldTransaction, int, Script, Script, boolean)}. */
+    public static MultiSigInputAssembler fromScriptSig(UldTransaction tx, int inputIndex, Script scriptSig,
+                                                       RedeemScriptInfo multiSig, boolean payToScriptHash) {
+        MultiSigInputAssembler assembler = new MultiSigInputAssembler(tx, inputIndex, multiSig, payToScriptHash);
+        List<ScriptChunk> chunks = scriptSig.getChunks();
+        int end = chunks.size() - (payToScriptHash ? 1 : 0);
+        for (int i = 1; i < end; i++) {
+            byte[] sigBytes = chunks.get(i).data;
+            if (sigBytes == null || sigBytes.length == 0)
+                continue;
+            try {
+                assembler.addSignature(sigBytes);
+            } catch (DERSignature.SignatureDecodeException e) {
+                // Not a signature in canonical form, so it can't be kept.
+            }
+        }
+        return assembler;
+    }
+
+    /**
+     * Adds a signature with its sighash byte, as found in input scripts, by verifying it against the keys that have
+     * no signature yet. Adding a signature that is already in is cheap. Only signatures the network relays are
+     * accepted: strict DER with a known sighash type and a low S value.
+     *
+     * @return the slot of the key the signature belongs to, or -1 if it is valid for none of the keys left
+     * @throws DERSignature.SignatureDecodeException if the bytes are not a signature in that form
+     */
+    public int addSignature(byte[] sigBytes) {
+        for (int slot = 0; slot < pubKeys.size(); slot++)
+            if (Arrays.equals(slots.get(slot), sigBytes))
+                return slot;
+        TransactionSignature signature = DERSignature.decodeTransactionSignature(sigBytes, 0, sigBytes.length, true,
+                true);
+        Sha256Hash hash = hashFor((byte) signature.sighashFlags);
+        for (int slot = 0; slot < pubKeys.size(); slot++) {
+            byte[] existing = slots.get(slot);
+            if (existing != null) {
+                // Another thread may have just added the same signature.
+                if (Arrays.equals(existing, sigBytes))
+                    return slot;
+                continue;
+            }
+            boolean valid;
+            try {
+                valid = UldECKey.verify(hash.getBytes(), signature, pubKeys.get(slot));
+            } catch (RuntimeException e) {
+                // The program holds something that isn't a key, which no signature is valid for.
+                valid = false;
+            }
+            if (valid) {
+                // Even if another signature beat this one to the slot, the slot is where it belongs.
+                fill(slot, sigBytes);
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Puts a signature in the slot of the given key without verifying it, for signatures the caller made itself or
+     * has verified already.
+     *
+     * @return the slot of the key, or -1 if the key is not in the program or its slot already has a signature
+     */
+    public int putSignature(byte[] pubKey, byte[] sigBytes) {
+        int slot = getSlot(pubKey);
+        if (slot < 0 || slots.get(slot) != null)
+            return -1;
+        return fill(slot, sigBytes) ? slot : -1;
+    }
+
+    private boolean fill(int slot, byte[] sigBytes) {
+        // If another thread got there first with a different signature, both are valid for the key and either will do.
+        if (slots.compareAndSet(slot, null, sigBytes)) {
+            count.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the signature hash for the given sighash byte, the same as
+     * {@link UldTransaction#hashForSignature(int, byte[], byte)} with the multisig program.
+     */
+    public Sha256Hash hashFor(byte sigHashType) {
+        int index = sigHashType & 0xff;
+        Sha256Hash hash = hashes.get(index);
+        if (hash == null) {
+            hash = tx.hashForSignature(inputIndex, program, sigHashType);
+            hashes.set(index, hash);
+        }
+        return hash;
+    }
+
+    /** Returns the slot of the given key, which is its position in the program, or -1 if it's not in the program. */
+    public int getSlot(byte[] pubKey) {
+        for (int slot = 0; slot < pubKeys.size(); slot++)
+            if (Arrays.equals(pubKeys.get(slot), pubKey))
+                return slot;
+        return -1;
+    }
+
+    /** Returns the signature in the given slot, or null if it has none. */
+    @Nullable
+    public byte[] getSignature(int slot) {
+        return slots.get(slot);
+    }
+
+    public int getSignatureCount() {
+        return count.get();
+    }
+
+    public int getRequiredSignatures() {
+        return required;
+    }
+
+    /** Returns true once there are as many signatures as the program requires. */
+    public boolean isComplete() {
+        return count.get() >= required;
+    }
+
+    /**
+     * Returns the input script: OP_0, the signatures in key order, up to as many as required, OP_0 placeholders for
+     * the missing ones and, for P2SH, the redeem script.
+     */
+    public byte[] buildScriptSigBytes() {
+        byte[][] signatures = new byte[required][];
+        int size = 1 + (payToScriptHash ? program.length + 3 : 0);
+        int found = 0;
+        for (int slot = 0; slot < pubKeys.size() && found < required; slot++) {
+            byte[] sigBytes = slots.get(slot);
+            if (sigBytes != null) {
+                signatures[found++] = sigBytes;
+                size += sigBytes.length + 1;
+            }
+        }
+        size += required - found;
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream(size);
+        try {
+            // Work around a bug in CHECKMULTISIG that is now a required part of the protocol.
+            out.write(ScriptOpCodes.OP_0);
+            for (byte[] sigBytes : signatures)
+                Script.writeBytes(out, sigBytes != null ? sigBytes : new byte[0]);
+            if (payToScriptHash)
+                Script.writeBytes(out, program);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return out.toByteArray();
+    }
+
+    /** Same as {@link #buildScriptSigBytes()}, parsed. */
+    public Script buildScriptSig() {
+        return new Script(buildScriptSigBytes());
+    }
+}
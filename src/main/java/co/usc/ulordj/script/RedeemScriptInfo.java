@@ -0,0 +1,168 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.ScriptException;
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.Utils;
+import co.usc.ulordj.crypto.LazyECPoint;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static co.usc.ulordj.script.ScriptOpCodes.*;
+
+/**
+ * <p>What there is to know about a multisig program, {@code [m] [keys...] [n] CHECKMULTISIG}, used as a P2SH redeem
+ * script or as a bare multisig output: how many signatures it takes, its keys in program order, the hash of the
+ * program and the P2SH output script paying to it.</p>
+ *
+ * <p>Instances are immutable and interned by the hash of the program, so every {@link Script} holding the same program,
+ * such as the federation redeem script found in thousands of inputs, shares one instance and the program is only
+ * walked once. Keys are decoded the first time they are needed and then stay decoded.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public final class RedeemScriptInfo {
+    /** Number of programs kept interned. */
+    public static final int MAX_INTERNED = 1000;
+
+    private static final Cache<ByteBuffer, RedeemScriptInfo> interned =
+            CacheBuilder.newBuilder().maximumSize(MAX_INTERNED).build();
+
+    private final byte[] program;
+    private final int threshold;
+    private final ImmutableList<byte[]> pubKeys;
+    private final LazyECPoint[] points;
+    private final byte[] hash160;
+    private final byte[] p2shOutputProgram;
+    private final boolean verify;
+
+    private RedeemScriptInfo(byte[] program, List<ScriptChunk> chunks, byte[] hash160) {
+        this.program = program;
+        this.threshold = Script.decodeFromOpN(chunks.get(0).opcode);
+        int numKeys = chunks.size() - 3;
+        ImmutableList.Builder<byte[]> keys = ImmutableList.builder();
+        this.points = new LazyECPoint[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            // The chunks belong to the script, so the instance keeps keys of its own.
+            byte[] data = chunks.get(i + 1).data;
+            byte[] key = Arrays.copyOf(data, data.length);
+            keys.add(key);
+            points[i] = new LazyECPoint(UldECKey.CURVE.getCurve(), key);
+        }
+        this.pubKeys = keys.build();
+        this.hash160 = hash160;
+        this.p2shOutputProgram = ScriptBuilder.createP2SHOutputScript(hash160).getProgram();
+        this.verify = chunks.get(chunks.size() - 1).equalsOpCode(OP_CHECKMULTISIGVERIFY);
+    }
+
+    /**
+     * Returns the information about the given multisig program, computing it only if no script with the same program
+     * has asked for it lately.
+     *
+     * @throws ScriptException if the script is not a multisig program
+     */
+    public static RedeemScriptInfo of(Script multiSigProgram) {
+        if (!multiSigProgram.isSentToMultiSig())
+            throw new ScriptException("Not a multisig program: " + multiSigProgram);
+        byte[] program = multiSigProgram.getProgram();
+        byte[] hash160 = Utils.sha256hash160(program);
+        ByteBuffer key = ByteBuffer.wrap(hash160);
+        RedeemScriptInfo info = interned.getIfPresent(key);
+        // Comparing the programs costs next to nothing next to the hash, and keeps a collision from mixing them up.
+        if (info == null || !Arrays.equals(info.program, program)) {
+            info = new RedeemScriptInfo(program, multiSigProgram.getChunks(), hash160);
+            interned.put(key, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns the information about the given multisig program.
+     *
+     * @throws ScriptException if the bytes are not a multisig program
+     */
+    public static RedeemScriptInfo of(byte[] program) {
+        return of(new Script(program));
+    }
+
+    /** Returns the number of signatures required to spend, the m of m-of-n. */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /** Returns the number of keys, the n of m-of-n. */
+    public int getNumKeys() {
+        return points.length;
+    }
+
+    /** Returns copies of the encoded keys in program order. */
+    public List<byte[]> getPubKeys() {
+        List<byte[]> copies = new ArrayList<byte[]>(pubKeys.size());
+        for (byte[] pubKey : pubKeys)
+            copies.add(Arrays.copyOf(pubKey, pubKey.length));
+        return copies;
+    }
+
+    /** Returns the key at the given position in the program, decoding it if that hasn't been done yet. */
+    public UldECKey getKey(int index) {
+        return UldECKey.fromPublicOnly(points[index].get());
+    }
+
+    /**
+     * Returns the keys in program order, as new objects that can't sign.
+     *
+     * @throws IllegalArgumentException if one of the keys is not a valid point
+     */
+    public List<UldECKey> getKeys() {
+        List<UldECKey> keys = new ArrayList<UldECKey>(points.length);
+        for (int i = 0; i < points.length; i++)
+            keys.add(getKey(i));
+        return keys;
+    }
+
+    /** Returns the position of the given encoded key in the program, or -1 if it's not in it. */
+    public int getKeyIndex(byte[] pubKey) {
+        for (int i = 0; i < pubKeys.size(); i++)
+            if (Arrays.equals(pubKeys.get(i), pubKey))
+                return i;
+        return -1;
+    }
+
+    /** Returns true if the program ends with CHECKMULTISIGVERIFY rather than CHECKMULTISIG. */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /** Returns the program. */
+    public byte[] getProgram() {
+        return Arrays.copyOf(program, program.length);
+    }
+
+    /** Returns the RIPEMD160 of the SHA256 of the program, as found in P2SH outputs and addresses. */
+    public byte[] getHash160() {
+        return Arrays.copyOf(hash160, hash160.length);
+    }
+
+    /** Returns the P2SH output script paying to the program, a new instance for each call. */
+    public Script getP2SHOutputScript() {
+        return new Script(Arrays.copyOf(p2shOutputProgram, p2shOutputProgram.length));
+    }
+
+    /**
+     * Returns the number of bytes a complete P2SH input script spending with this program takes at most, as
+     * {@link Script#getNumberOfBytesRequiredToSpend(UldECKey, Script)} estimates it.
+     */
+    public int getP2SHInputScriptSize() {
+        return threshold * Script.SIG_SIZE + program.length;
+    }
+
+    @Override
+    public String toString() {
+        return threshold + "-of-" + points.length + " multisig " + Utils.HEX.encode(hash160);
+    }
+}
@@ -19,8 +19,8 @@
 package co.usc.ulordj.script;
 
 import co.usc.ulordj.core.*;
+import co.usc.ulordj.crypto.DERSignature;
 import co.usc.ulordj.crypto.TransactionSignature;
-import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
@@ -85,8 +85,9 @@ public class Script {
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
-    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
-    protected List<ScriptChunk> chunks;
+    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]. For scripts made
+    // from program bytes they're only parsed once needed, as the standard forms are recognized from the bytes.
+    protected volatile List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
     // must preserve the exact bytes that we read off the wire, along with the parsed form.
     protected byte[] program;
@@ -94,10 +95,8 @@ public class Script {
     // Creation time of the associated keys in seconds since the epoch.
     private long creationTimeSeconds;
 
-    /** Creates an empty script that serializes to nothing. */
-    private Script() {
-        chunks = Lists.newArrayList();
-    }
+    // Set the first time this script is found to be a multisig program and asked about it.
+    private volatile RedeemScriptInfo redeemScriptInfo;
 
     // Used from ScriptBuilder.
     Script(List<ScriptChunk> chunks) {
@@ -112,13 +111,13 @@ public class Script {
      */
     public Script(byte[] programBytes) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        checkProgram(programBytes);
         creationTimeSeconds = 0;
     }
 
     public Script(byte[] programBytes, long creationTimeSeconds) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        checkProgram(programBytes);
         this.creationTimeSeconds = creationTimeSeconds;
     }
 
@@ -135,7 +134,7 @@ public class Script {
      */
     @Override
     public String toString() {
-        return Utils.join(chunks);
+        return Utils.join(chunks());
     }
 
     /** Returns the serialized program as a newly created byte array. */
@@ -157,7 +156,14 @@ public class Script {
 
     /** Returns an immutable list of the scripts parsed form. Each chunk is either an opcode or data element. */
     public List<ScriptChunk> getChunks() {
-        return Collections.unmodifiableList(chunks);
+        return Collections.unmodifiableList(chunks());
+    }
+
+    private List<ScriptChunk> chunks() {
+        List<ScriptChunk> parsed = chunks;
+        if (parsed == null)
+            chunks = parsed = parse(program);
+        return parsed;
     }
 
     private static final ScriptChunk[] STANDARD_TRANSACTION_SCRIPT_CHUNKS = {
@@ -176,8 +182,8 @@ public class Script {
      * This is necessary to render the to/from addresses of transactions in a user interface.
      * Bitcoin Core does something similar.</p>
      */
-    private void parse(byte[] program) throws ScriptException {
-        chunks = new ArrayList<ScriptChunk>(5);   // Common size.
+    private static List<ScriptChunk> parse(byte[] program) throws ScriptException {
+        List<ScriptChunk> chunks = new ArrayList<ScriptChunk>(5);   // Common size.
         ByteArrayInputStream bis = new ByteArrayInputStream(program);
         int initialSize = bis.available();
         while (bis.available() > 0) {
@@ -218,6 +224,30 @@ public class Script {
             }
             chunks.add(chunk);
         }
+        return chunks;
+    }
+
+    /**
+     * Checks that the program can be parsed, failing the same way as parsing it would, but without making any chunks.
+     */
+    private static void checkProgram(byte[] program) throws ScriptException {
+        checkProgram(program, 0, program.length);
+    }
+
+    /** Same as {@link #checkProgram(byte[])} for the program in the given range of an array. */
+    private static void checkProgram(byte[] buf, int offset, int length) throws ScriptException {
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end) {
+            int opcode = buf[pos] & 0xFF;
+            int lengthBytes = opcode == OP_PUSHDATA1 ? 1 : opcode == OP_PUSHDATA2 ? 2 : opcode == OP_PUSHDATA4 ? 4 : 0;
+            if (end - pos - 1 < lengthBytes)
+                throw new ScriptException("Unexpected end of script");
+            int opEnd = ScriptPattern.opEnd(buf, pos, end);
+            if (opEnd < 0)
+                throw new ScriptException("Push of data element that is larger than remaining data");
+            pos = opEnd;
+        }
     }
 
     /**
@@ -227,8 +257,8 @@ public class Script {
      * useful more exotic types of transaction, but today most payments are to addresses.
      */
     public boolean isSentToRawPubKey() {
-        return chunks.size() == 2 && chunks.get(1).equalsOpCode(OP_CHECKSIG) &&
-               !chunks.get(0).isOpCode() && chunks.get(0).data.length > 1;
+        byte[] program = getQuickProgram();
+        return ScriptPattern.isP2PK(program, 0, program.length);
     }
 
     /**
@@ -238,12 +268,8 @@ public class Script {
      * way to make payments due to the short and recognizable base58 form addresses come in.
      */
     public boolean isSentToAddress() {
-        return chunks.size() == 5 &&
-               chunks.get(0).equalsOpCode(OP_DUP) &&
-               chunks.get(1).equalsOpCode(OP_HASH160) &&
-               chunks.get(2).data.length == Address.LENGTH &&
-               chunks.get(3).equalsOpCode(OP_EQUALVERIFY) &&
-               chunks.get(4).equalsOpCode(OP_CHECKSIG);
+        byte[] program = getQuickProgram();
+        return ScriptPattern.isP2PKH(program, 0, program.length);
     }
 
     /**
@@ -267,12 +293,11 @@ public class Script {
      *
      */
     public byte[] getPubKeyHash() throws ScriptException {
-        if (isSentToAddress())
-            return chunks.get(2).data;
-        else if (isPayToScriptHash())
-            return chunks.get(1).data;
-        else
+        byte[] program = getQuickProgram();
+        byte[] hash = ScriptPattern.extractHash160(program, 0, program.length);
+        if (hash == null)
             throw new ScriptException("Script not in the standard scriptPubKey form");
+        return hash;
     }
 
     /**
@@ -284,12 +309,12 @@ public class Script {
      * @throws ScriptException if the script is none of the named forms.
      */
     public byte[] getPubKey() throws ScriptException {
-        if (chunks.size() != 2) {
-            throw new ScriptException("Script not of right size, expecting 2 but got " + chunks.size());
+        if (chunks().size() != 2) {
+            throw new ScriptException("Script not of right size, expecting 2 but got " + chunks().size());
         }
-        final ScriptChunk chunk0 = chunks.get(0);
+        final ScriptChunk chunk0 = chunks().get(0);
         final byte[] chunk0data = chunk0.data;
-        final ScriptChunk chunk1 = chunks.get(1);
+        final ScriptChunk chunk1 = chunks().get(1);
         final byte[] chunk1data = chunk1.data;
         if (chunk0data != null && chunk0data.length > 2 && chunk1data != null && chunk1data.length > 2) {
             // If we have two large constants assume the input to a pay-to-address output.
@@ -311,7 +336,7 @@ public class Script {
         if (!isSentToCLTVPaymentChannel()) {
             throw new ScriptException("Script not a standard CHECKLOCKTIMVERIFY transaction: " + this);
         }
-        return chunks.get(8).data;
+        return chunks().get(8).data;
     }
 
     /**
@@ -323,14 +348,14 @@ public class Script {
         if (!isSentToCLTVPaymentChannel()) {
             throw new ScriptException("Script not a standard CHECKLOCKTIMVERIFY transaction: " + this);
         }
-        return chunks.get(1).data;
+        return chunks().get(1).data;
     }
 
     public BigInteger getCLTVPaymentChannelExpiry() {
         if (!isSentToCLTVPaymentChannel()) {
             throw new ScriptException("Script not a standard CHECKLOCKTIMEVERIFY transaction: " + this);
         }
-        return castToBigInteger(chunks.get(4).data, 5);
+        return BigInteger.valueOf(castToLong(chunks().get(4).data, 5));
     }
 
     /**
@@ -482,8 +507,8 @@ public class Script {
     public int getSigInsertionIndex(Sha256Hash hash, UldECKey signingKey) {
         // Iterate over existing signatures, skipping the initial OP_0, the final redeem script
         // and any placeholder OP_0 sigs.
-        List<ScriptChunk> existingChunks = chunks.subList(1, chunks.size() - 1);
-        ScriptChunk redeemScriptChunk = chunks.get(chunks.size() - 1);
+        List<ScriptChunk> existingChunks = chunks().subList(1, chunks().size() - 1);
+        ScriptChunk redeemScriptChunk = chunks().get(chunks().size() - 1);
         checkNotNull(redeemScriptChunk.data);
         Script redeemScript = new Script(redeemScriptChunk.data);
 
@@ -503,13 +528,10 @@ public class Script {
     }
 
     private int findKeyInRedeem(UldECKey key) {
-        checkArgument(chunks.get(0).isOpCode()); // P2SH scriptSig
-        int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
-        for (int i = 0 ; i < numKeys ; i++) {
-            if (Arrays.equals(chunks.get(1 + i).data, key.getPubKey())) {
-                return i;
-            }
-        }
+        checkArgument(chunks().get(0).isOpCode()); // P2SH scriptSig
+        int index = getRedeemScriptInfo().getKeyIndex(key.getPubKey());
+        if (index >= 0)
+            return index;
 
         throw new IllegalStateException("Could not find matching key " + key.toString() + " in script " + this);
     }
@@ -523,19 +545,23 @@ public class Script {
         if (!isSentToMultiSig())
             throw new ScriptException("Only usable for multisig scripts.");
 
-        ArrayList<UldECKey> result = Lists.newArrayList();
-        int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
-        for (int i = 0 ; i < numKeys ; i++)
-            result.add(UldECKey.fromPublicOnly(chunks.get(1 + i).data));
-        return result;
+        return getRedeemScriptInfo().getKeys();
     }
 
     private int findSigInRedeem(byte[] signatureBytes, Sha256Hash hash) {
-        checkArgument(chunks.get(0).isOpCode()); // P2SH scriptSig
-        int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
+        checkArgument(chunks().get(0).isOpCode()); // P2SH scriptSig
+        int numKeys = Script.decodeFromOpN(chunks().get(chunks().size() - 2).opcode);
         TransactionSignature signature = TransactionSignature.decodeFromUlord(signatureBytes, true);
         for (int i = 0 ; i < numKeys ; i++) {
-            if (UldECKey.fromPublicOnly(chunks.get(i + 1).data).verify(hash, signature)) {
+            // Straight from the key bytes, so keys seen before come out of the public key cache.
+            boolean valid;
+            try {
+                valid = UldECKey.verify(hash.getBytes(), signature, chunks().get(i + 1).data);
+            } catch (RuntimeException e) {
+                // Not a key, so not the one that made the signature.
+                valid = false;
+            }
+            if (valid) {
                 return i;
             }
         }
@@ -547,28 +573,41 @@ public class Script {
 
     ////////////////////// Interface used during verification of transactions/blocks ////////////////////////////////
 
-    private static int getSigOpCount(List<ScriptChunk> chunks, boolean accurate) throws ScriptException {
+    /**
+     * Counts the signature operations of the program in the given range of an array, skipping over pushed data, and
+     * stopping at an operation the program ends in the middle of. CHECKMULTISIG counts as 20 unless accurate is set
+     * and it follows a small number, which is then taken as the number of keys.
+     */
+    private static int getSigOpCount(byte[] buf, int offset, int length, boolean accurate) {
         int sigOps = 0;
         int lastOpCode = OP_INVALIDOPCODE;
-        for (ScriptChunk chunk : chunks) {
-            if (chunk.isOpCode()) {
-                switch (chunk.opcode) {
-                case OP_CHECKSIG:
-                case OP_CHECKSIGVERIFY:
-                    sigOps++;
-                    break;
-                case OP_CHECKMULTISIG:
-                case OP_CHECKMULTISIGVERIFY:
-                    if (accurate && lastOpCode >= OP_1 && lastOpCode <= OP_16)
-                        sigOps += decodeFromOpN(lastOpCode);
-                    else
-                        sigOps += 20;
-                    break;
-                default:
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end) {
+            int opcode = buf[pos] & 0xFF;
+            if (opcode <= OP_PUSHDATA4) {
+                pos = ScriptPattern.opEnd(buf, pos, end);
+                if (pos < 0)
                     break;
-                }
-                lastOpCode = chunk.opcode;
+                continue;
             }
+            switch (opcode) {
+            case OP_CHECKSIG:
+            case OP_CHECKSIGVERIFY:
+                sigOps++;
+                break;
+            case OP_CHECKMULTISIG:
+            case OP_CHECKMULTISIGVERIFY:
+                if (accurate && lastOpCode >= OP_1 && lastOpCode <= OP_16)
+                    sigOps += decodeFromOpN(lastOpCode);
+                else
+                    sigOps += 20;
+                break;
+            default:
+                break;
+            }
+            lastOpCode = opcode;
+            pos++;
         }
         return sigOps;
     }
@@ -597,32 +636,41 @@ public class Script {
      * Gets the count of regular SigOps in the script program (counting multisig ops as 20)
      */
     public static int getSigOpCount(byte[] program) throws ScriptException {
-        Script script = new Script();
-        try {
-            script.parse(program);
-        } catch (ScriptException e) {
-            // Ignore errors and count up to the parse-able length
-        }
-        return getSigOpCount(script.chunks, false);
+        return getSigOpCount(program, 0, program.length, false);
+    }
+
+    /**
+     * Gets the count of regular SigOps in the script program found in the given range of an array, such as a
+     * message payload, counting multisig ops as 20.
+     */
+    public static int getSigOpCount(byte[] buf, int offset, int length) {
+        return getSigOpCount(buf, offset, length, false);
     }
     
     /**
      * Gets the count of P2SH Sig Ops in the Script scriptSig
      */
     public static long getP2SHSigOpCount(byte[] scriptSig) throws ScriptException {
-        Script script = new Script();
-        try {
-            script.parse(scriptSig);
-        } catch (ScriptException e) {
-            // Ignore errors and count up to the parse-able length
-        }
-        for (int i = script.chunks.size() - 1; i >= 0; i--)
-            if (!script.chunks.get(i).isOpCode()) {
-                Script subScript =  new Script();
-                subScript.parse(script.chunks.get(i).data);
-                return getSigOpCount(subScript.chunks, true);
+        // The redeem script is the last push, counted accurately.
+        int lastPush = -1;
+        int lastPushEnd = -1;
+        int pos = 0;
+        while (pos < scriptSig.length) {
+            int next = ScriptPattern.opEnd(scriptSig, pos, scriptSig.length);
+            if (next < 0)
+                break;
+            if ((scriptSig[pos] & 0xFF) <= OP_PUSHDATA4) {
+                lastPush = pos;
+                lastPushEnd = next;
             }
-        return 0;
+            pos = next;
+        }
+        if (lastPush < 0)
+            return 0;
+        int dataStart = ScriptPattern.pushDataStart(scriptSig, lastPush);
+        // A redeem script that doesn't parse is rejected, unlike the scriptSig around it.
+        checkProgram(scriptSig, dataStart, lastPushEnd - dataStart);
+        return getSigOpCount(scriptSig, dataStart, lastPushEnd - dataStart, true);
     }
 
     /**
@@ -631,8 +679,7 @@ public class Script {
     public int getNumberOfSignaturesRequiredToSpend() {
         if (isSentToMultiSig()) {
             // for N of M CHECKMULTISIG script we will need N signatures to spend
-            ScriptChunk nChunk = chunks.get(0);
-            return Script.decodeFromOpN(nChunk.opcode);
+            return getRedeemScriptInfo().getThreshold();
         } else if (isSentToAddress() || isSentToRawPubKey()) {
             // pay-to-address and pay-to-pubkey require single sig
             return 1;
@@ -651,6 +698,8 @@ public class Script {
         if (isPayToScriptHash()) {
             // scriptSig: <sig> [sig] [sig...] <redeemscript>
             checkArgument(redeemScript != null, "P2SH script requires redeemScript to be spent");
+            if (redeemScript.isSentToMultiSig())
+                return redeemScript.getRedeemScriptInfo().getP2SHInputScriptSize();
             return redeemScript.getNumberOfSignaturesRequiredToSpend() * SIG_SIZE + redeemScript.getProgram().length;
         } else if (isSentToMultiSig()) {
             // scriptSig: OP_0 <sig> [sig] [sig...]
@@ -684,53 +733,35 @@ public class Script {
         // We have to check against the serialized form because BIP16 defines a P2SH output using an exact byte
         // template, not the logical program structure. Thus you can have two programs that look identical when
         // printed out but one is a P2SH script and the other isn't! :(
-        byte[] program = getProgram();
-        return program.length == 23 &&
-               (program[0] & 0xff) == OP_HASH160 &&
-               (program[1] & 0xff) == 0x14 &&
-               (program[22] & 0xff) == OP_EQUAL;
+        byte[] program = getQuickProgram();
+        return ScriptPattern.isP2SH(program, 0, program.length);
+    }
+
+    /**
+     * Returns the threshold, keys and hashes of this multisig program, computed once for all scripts with the same
+     * program, see {@link RedeemScriptInfo}.
+     *
+     * @throws ScriptException if this is not a multisig program
+     */
+    public RedeemScriptInfo getRedeemScriptInfo() {
+        RedeemScriptInfo info = redeemScriptInfo;
+        if (info == null)
+            redeemScriptInfo = info = RedeemScriptInfo.of(this);
+        return info;
     }
 
     /**
      * Returns whether this script matches the format used for multisig outputs: [n] [keys...] [m] CHECKMULTISIG
      */
     public boolean isSentToMultiSig() {
-        if (chunks.size() < 4) return false;
-        ScriptChunk chunk = chunks.get(chunks.size() - 1);
-        // Must end in OP_CHECKMULTISIG[VERIFY].
-        if (!chunk.isOpCode()) return false;
-        if (!(chunk.equalsOpCode(OP_CHECKMULTISIG) || chunk.equalsOpCode(OP_CHECKMULTISIGVERIFY))) return false;
-        try {
-            // Second to last chunk must be an OP_N opcode and there should be that many data chunks (keys).
-            ScriptChunk m = chunks.get(chunks.size() - 2);
-            if (!m.isOpCode()) return false;
-            int numKeys = decodeFromOpN(m.opcode);
-            if (numKeys < 1 || chunks.size() != 3 + numKeys) return false;
-            for (int i = 1; i < chunks.size() - 2; i++) {
-                if (chunks.get(i).isOpCode()) return false;
-            }
-            // First chunk must be an OP_N opcode too.
-            if (decodeFromOpN(chunks.get(0).opcode) < 1) return false;
-        } catch (IllegalStateException e) {
-            return false;   // Not an OP_N opcode.
-        }
-        return true;
+        if (redeemScriptInfo != null) return true;
+        byte[] program = getQuickProgram();
+        return ScriptPattern.isSentToMultiSig(program, 0, program.length);
     }
 
     public boolean isSentToCLTVPaymentChannel() {
-        if (chunks.size() != 10) return false;
-        // Check that opcodes match the pre-determined format.
-        if (!chunks.get(0).equalsOpCode(OP_IF)) return false;
-        // chunk[1] = recipient pubkey
-        if (!chunks.get(2).equalsOpCode(OP_CHECKSIGVERIFY)) return false;
-        if (!chunks.get(3).equalsOpCode(OP_ELSE)) return false;
-        // chunk[4] = locktime
-        if (!chunks.get(5).equalsOpCode(OP_CHECKLOCKTIMEVERIFY)) return false;
-        if (!chunks.get(6).equalsOpCode(OP_DROP)) return false;
-        if (!chunks.get(7).equalsOpCode(OP_ENDIF)) return false;
-        // chunk[8] = sender pubkey
-        if (!chunks.get(9).equalsOpCode(OP_CHECKSIG)) return false;
-        return true;
+        byte[] program = getQuickProgram();
+        return ScriptPattern.isCLTVPaymentChannel(program, 0, program.length);
     }
 
     private static boolean equalsRange(byte[] a, int start, byte[] b) {
@@ -746,40 +777,55 @@ public class Script {
      * Returns the script bytes of inputScript with all instances of the specified script object removed
      */
     public static byte[] removeAllInstancesOf(byte[] inputScript, byte[] chunkToRemove) {
-        // We usually don't end up removing anything
-        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(inputScript.length);
+        byte[] removed = removeAllInstancesOf(inputScript, 0, new byte[][] {chunkToRemove});
+        return removed != null ? removed : Arrays.copyOf(inputScript, inputScript.length);
+    }
 
-        int cursor = 0;
-        while (cursor < inputScript.length) {
-            boolean skip = equalsRange(inputScript, cursor, chunkToRemove);
-            
-            int opcode = inputScript[cursor++] & 0xFF;
-            int additionalBytes = 0;
-            if (opcode >= 0 && opcode < OP_PUSHDATA1) {
-                additionalBytes = opcode;
-            } else if (opcode == OP_PUSHDATA1) {
-                additionalBytes = (0xFF & inputScript[cursor]) + 1;
-            } else if (opcode == OP_PUSHDATA2) {
-                additionalBytes = ((0xFF & inputScript[cursor]) |
-                                  ((0xFF & inputScript[cursor+1]) << 8)) + 2;
-            } else if (opcode == OP_PUSHDATA4) {
-                additionalBytes = ((0xFF & inputScript[cursor]) |
-                                  ((0xFF & inputScript[cursor+1]) << 8) |
-                                  ((0xFF & inputScript[cursor+1]) << 16) |
-                                  ((0xFF & inputScript[cursor+1]) << 24)) + 4;
-            }
-            if (!skip) {
-                try {
-                    bos.write(opcode);
-                    bos.write(Arrays.copyOfRange(inputScript, cursor, cursor + additionalBytes));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    /**
+     * Removes every operation of the program from start on that is one of the given chunks, in a single pass. Returns
+     * the remaining bytes, or null if there was nothing to remove, which is the usual case.
+     */
+    @Nullable
+    private static byte[] removeAllInstancesOf(byte[] program, int start, byte[][] chunksToRemove) {
+        UnsafeByteArrayOutputStream bos = null;
+        // Start of the operations kept since the last one removed.
+        int kept = start;
+        int cursor = start;
+        while (cursor < program.length) {
+            int next = ScriptPattern.opEnd(program, cursor, program.length);
+            if (next < 0)
+                next = program.length;
+            for (byte[] chunk : chunksToRemove) {
+                if (equalsRange(program, cursor, chunk)) {
+                    if (bos == null)
+                        bos = new UnsafeByteArrayOutputStream(program.length - start);
+                    bos.write(program, kept, cursor - kept);
+                    kept = next;
+                    break;
                 }
             }
-            cursor += additionalBytes;
+            cursor = next;
         }
+        if (bos == null)
+            return null;
+        bos.write(program, kept, program.length - kept);
         return bos.toByteArray();
     }
+
+    /** Returns the given signatures encoded as the pushes that are removed from the script code before hashing. */
+    private static byte[][] encodeSignatures(byte[]... sigs) {
+        byte[][] encoded = new byte[sigs.length][];
+        for (int i = 0; i < sigs.length; i++) {
+            UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigs[i].length + 3);
+            try {
+                writeBytes(outStream, sigs[i]);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen
+            }
+            encoded[i] = outStream.toByteArray();
+        }
+        return encoded;
+    }
     
     /**
      * Returns the script bytes of inputScript with all instances of the given op code removed
@@ -789,6 +835,22 @@ public class Script {
     }
     
     ////////////////////// Script verification and helpers ////////////////////////////////
+
+    // Elements pushed by the interpreter are never modified, so the common ones are shared.
+    private static final byte[] FALSE = new byte[0];
+    private static final byte[] TRUE = {1};
+    // -1 to 16.
+    private static final byte[][] SMALL_NUMS = new byte[18][];
+    // Opcodes that fail the script wherever they appear, even in a branch not taken.
+    private static final boolean[] DISABLED_OPS = new boolean[256];
+
+    static {
+        for (int i = 0; i < SMALL_NUMS.length; i++)
+            SMALL_NUMS[i] = encodeNumUncached(i - 1);
+        for (int op : new int[] {OP_CAT, OP_SUBSTR, OP_LEFT, OP_RIGHT, OP_INVERT, OP_AND, OP_OR, OP_XOR, OP_2MUL,
+                OP_2DIV, OP_MUL, OP_DIV, OP_MOD, OP_LSHIFT, OP_RSHIFT})
+            DISABLED_OPS[op] = true;
+    }
     
     private static boolean castToBool(byte[] data) {
         for (int i = 0; i < data.length; i++)
@@ -801,35 +863,64 @@ public class Script {
     }
     
     /**
-     * Cast a script chunk to a BigInteger.
+     * Cast a script chunk to a number, as Bitcoin Core's CScriptNum does: little endian, with the sign in the top
+     * bit of the last byte.
      *
-     * @see #castToBigInteger(byte[], int) for values with different maximum
-     * sizes.
      * @throws ScriptException if the chunk is longer than 4 bytes.
      */
-    private static BigInteger castToBigInteger(byte[] chunk) throws ScriptException {
-        if (chunk.length > 4)
-            throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+    private static long castToLong(byte[] chunk) throws ScriptException {
+        return castToLong(chunk, 4);
     }
 
     /**
-     * Cast a script chunk to a BigInteger. Normally you would want
-     * {@link #castToBigInteger(byte[])} instead, this is only for cases where
-     * the normal maximum length does not apply (i.e. CHECKLOCKTIMEVERIFY).
+     * Cast a script chunk to a number. Normally you would want {@link #castToLong(byte[])} instead, this is only for
+     * cases where the normal maximum length does not apply (i.e. CHECKLOCKTIMEVERIFY).
      *
-     * @param maxLength the maximum length in bytes.
+     * @param maxLength the maximum length in bytes, at most 8.
      * @throws ScriptException if the chunk is longer than the specified maximum.
      */
-    private static BigInteger castToBigInteger(final byte[] chunk, final int maxLength) throws ScriptException {
+    private static long castToLong(final byte[] chunk, final int maxLength) throws ScriptException {
         if (chunk.length > maxLength)
             throw new ScriptException("Script attempted to use an integer larger than "
                 + maxLength + " bytes");
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+        if (chunk.length == 0)
+            return 0;
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (chunk[i] & 0xFFL) << (8 * i);
+        long signBit = 0x80L << (8 * (chunk.length - 1));
+        return (result & signBit) != 0 ? -(result & ~signBit) : result;
+    }
+
+    /** Encodes a number the way {@link #castToLong(byte[])} decodes it, as short as possible. */
+    private static byte[] encodeNum(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMS[(int) value + 1];
+        return encodeNumUncached(value);
+    }
+
+    private static byte[] encodeNumUncached(long value) {
+        if (value == 0)
+            return new byte[0];
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        byte[] buf = new byte[9];
+        int length = 0;
+        while (magnitude != 0) {
+            buf[length++] = (byte) magnitude;
+            magnitude >>>= 8;
+        }
+        // The top bit is the sign, so it takes another byte if the magnitude uses it.
+        if ((buf[length - 1] & 0x80) != 0)
+            buf[length++] = (byte) (negative ? 0x80 : 0);
+        else if (negative)
+            buf[length - 1] |= 0x80;
+        return Arrays.copyOf(buf, length);
     }
 
     public boolean isOpReturn() {
-        return chunks.size() > 0 && chunks.get(0).equalsOpCode(OP_RETURN);
+        byte[] program = getQuickProgram();
+        return ScriptPattern.isOpReturn(program, 0, program.length);
     }
 
     /**
@@ -861,20 +952,35 @@ public class Script {
      */
     public static void executeScript(@Nullable UldTransaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptStack scriptStack = new ScriptStack(stack);
+        try {
+            executeScript(txContainingThis, index, script, scriptStack, new SigHashMemo(txContainingThis, (int) index),
+                    verifyFlags);
+        } finally {
+            scriptStack.copyTo(stack);
+        }
+    }
+
+    private static void executeScript(@Nullable UldTransaction txContainingThis, long index, Script script,
+                                      ScriptStack stack, SigHashMemo sigHashes,
+                                      Set<VerifyFlag> verifyFlags) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
+        ScriptStack altstack = new ScriptStack();
+        // The branches entered, and how many of them are not taken: opcodes only execute when that's none.
+        boolean[] ifStack = new boolean[8];
+        int ifDepth = 0;
+        int falseBranches = 0;
         
-        for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+        for (ScriptChunk chunk : script.chunks()) {
+            boolean shouldExecute = falseBranches == 0;
 
             if (chunk.opcode == OP_0) {
                 if (!shouldExecute)
                     continue;
 
-                stack.add(new byte[] {});
+                stack.push(FALSE);
             } else if (!chunk.isOpCode()) {
                 if (chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
                     throw new ScriptException("Attempted to push a data string larger than 520 bytes");
@@ -882,7 +988,7 @@ public class Script {
                 if (!shouldExecute)
                     continue;
                 
-                stack.add(chunk.data);
+                stack.push(chunk.data);
             } else {
                 int opcode = chunk.opcode;
                 if (opcode > OP_16) {
@@ -894,40 +1000,36 @@ public class Script {
                 if (opcode == OP_VERIF || opcode == OP_VERNOTIF)
                     throw new ScriptException("Script included OP_VERIF or OP_VERNOTIF");
                 
-                if (opcode == OP_CAT || opcode == OP_SUBSTR || opcode == OP_LEFT || opcode == OP_RIGHT ||
-                    opcode == OP_INVERT || opcode == OP_AND || opcode == OP_OR || opcode == OP_XOR ||
-                    opcode == OP_2MUL || opcode == OP_2DIV || opcode == OP_MUL || opcode == OP_DIV ||
-                    opcode == OP_MOD || opcode == OP_LSHIFT || opcode == OP_RSHIFT)
+                if (DISABLED_OPS[opcode])
                     throw new ScriptException("Script included a disabled Script Op.");
                 
                 switch (opcode) {
                 case OP_IF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
-                    }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
-                    continue;
                 case OP_NOTIF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
+                    boolean branch = false;
+                    if (shouldExecute) {
+                        if (stack.size() < 1)
+                            throw new ScriptException("Attempted " + (opcode == OP_IF ? "OP_IF" : "OP_NOTIF")
+                                    + " on an empty stack");
+                        branch = castToBool(stack.pop()) == (opcode == OP_IF);
                     }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    if (ifDepth == ifStack.length)
+                        ifStack = Arrays.copyOf(ifStack, ifDepth * 2);
+                    ifStack[ifDepth++] = branch;
+                    if (!branch)
+                        falseBranches++;
                     continue;
                 case OP_ELSE:
-                    if (ifStack.isEmpty())
+                    if (ifDepth == 0)
                         throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    ifStack[ifDepth - 1] = !ifStack[ifDepth - 1];
+                    falseBranches += ifStack[ifDepth - 1] ? -1 : 1;
                     continue;
                 case OP_ENDIF:
-                    if (ifStack.isEmpty())
+                    if (ifDepth == 0)
                         throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    if (!ifStack[--ifDepth])
+                        falseBranches--;
                     continue;
                 }
                 
@@ -937,8 +1039,6 @@ public class Script {
                 switch(opcode) {
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
-                    break;
                 case OP_1:
                 case OP_2:
                 case OP_3:
@@ -955,14 +1055,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeNum(opcode == OP_1NEGATE ? -1 : decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException("OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -970,168 +1070,122 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    byte[] OP2ROTtmpChunk1 = stack.remove(5);
+                    byte[] OP2ROTtmpChunk2 = stack.remove(4);
+                    stack.push(OP2ROTtmpChunk1);
+                    stack.push(OP2ROTtmpChunk2);
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    byte[] OP2SWAPtmpChunk1 = stack.remove(3);
+                    byte[] OP2SWAPtmpChunk2 = stack.remove(2);
+                    stack.push(OP2SWAPtmpChunk1);
+                    stack.push(OP2SWAPtmpChunk2);
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeNum(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek(0));
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    stack.remove(1);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast()).longValue();
+                    long val = castToLong(stack.pop());
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                    stack.push(opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    stack.push(stack.remove(2));
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    byte[] OPSWAPtmpChunk2 = stack.pop();
+                    byte[] OPSWAPtmpChunk1 = stack.pop();
+                    stack.push(OPSWAPtmpChunk2);
+                    stack.push(OPSWAPtmpChunk1);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(OPSWAPtmpChunk2);
                     break;
-                case OP_CAT:
-                case OP_SUBSTR:
-                case OP_LEFT:
-                case OP_RIGHT:
-                    throw new ScriptException("Attempted to use disabled Script Op.");
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeNum(stack.peek(0).length));
                     break;
-                case OP_INVERT:
-                case OP_AND:
-                case OP_OR:
-                case OP_XOR:
-                    throw new ScriptException("Attempted to use disabled Script Op.");
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? TRUE : FALSE);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException("OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1142,43 +1196,33 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast());
+                    long numericOPnum = castToLong(stack.pop());
                                         
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        numericOPnum = Math.abs(numericOPnum);
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum == 0 ? 0 : 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.push(encodeNum(numericOPnum));
                     break;
-                case OP_2MUL:
-                case OP_2DIV:
-                    throw new ScriptException("Attempted to use disabled Script Op.");
                 case OP_ADD:
                 case OP_SUB:
                 case OP_BOOLAND:
@@ -1193,124 +1237,85 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast());
+                    long numericOPnum2 = castToLong(stack.pop());
+                    long numericOPnum1 = castToLong(stack.pop());
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.push(encodeNum(numericOPresult));
                     break;
-                case OP_MUL:
-                case OP_DIV:
-                case OP_MOD:
-                case OP_LSHIFT:
-                case OP_RSHIFT:
-                    throw new ScriptException("Attempted to use disabled Script Op.");
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast());
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop());
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop());
                     
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException("OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast());
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop());
+                    long OPWITHINnum2 = castToLong(stack.pop());
+                    long OPWITHINnum1 = castToLong(stack.pop());
+                    stack.push(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? TRUE : FALSE);
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1318,17 +1323,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hash(stack.pollLast()));
+                    stack.push(Sha256Hash.hash(stack.pop()));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hashTwice(stack.pollLast()));
+                    stack.push(Sha256Hash.hashTwice(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
@@ -1337,13 +1342,13 @@ public class Script {
                 case OP_CHECKSIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, verifyFlags);
+                    executeCheckSig(sigHashes, script, stack, lastCodeSepLocation, opcode, verifyFlags);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode, verifyFlags);
+                    opCount = executeMultiSig(sigHashes, script, stack, opCount, lastCodeSepLocation, opcode, verifyFlags);
                     break;
                 case OP_CHECKLOCKTIMEVERIFY:
                     if (!verifyFlags.contains(VerifyFlag.CHECKLOCKTIMEVERIFY)) {
@@ -1374,16 +1379,16 @@ public class Script {
                 }
             }
             
-            if (stack.size() + altstack.size() > 1000 || stack.size() + altstack.size() < 0)
+            if (stack.size() + altstack.size() > 1000)
                 throw new ScriptException("Stack size exceeded range");
         }
         
-        if (!ifStack.isEmpty())
+        if (ifDepth != 0)
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(UldTransaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckLockTimeVerify(UldTransaction txContainingThis, int index, Script script, ScriptStack stack,
                                                    int lastCodeSepLocation, int opcode,
                                                    Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
@@ -1391,21 +1396,21 @@ public class Script {
 
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums to avoid year 2038 issue.
-        final BigInteger nLockTime = castToBigInteger(stack.getLast(), 5);
+        final long nLockTime = castToLong(stack.peek(0), 5);
 
-        if (nLockTime.compareTo(BigInteger.ZERO) < 0)
+        if (nLockTime < 0)
             throw new ScriptException("Negative locktime");
 
         // There are two kinds of nLockTime, need to ensure we're comparing apples-to-apples
         if (!(
-            ((txContainingThis.getLockTime() <  UldTransaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(UldTransaction.LOCKTIME_THRESHOLD_BIG)) < 0) ||
-            ((txContainingThis.getLockTime() >= UldTransaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(UldTransaction.LOCKTIME_THRESHOLD_BIG)) >= 0))
+            ((txContainingThis.getLockTime() <  UldTransaction.LOCKTIME_THRESHOLD) && (nLockTime < UldTransaction.LOCKTIME_THRESHOLD)) ||
+            ((txContainingThis.getLockTime() >= UldTransaction.LOCKTIME_THRESHOLD) && (nLockTime >= UldTransaction.LOCKTIME_THRESHOLD)))
         )
             throw new ScriptException("Locktime requirement type mismatch");
 
         // Now that we know we're comparing apples-to-apples, the
         // comparison is a simple numeric one.
-        if (nLockTime.compareTo(BigInteger.valueOf(txContainingThis.getLockTime())) > 0)
+        if (nLockTime > txContainingThis.getLockTime())
             throw new ScriptException("Locktime requirement not satisfied");
 
         // Finally the nLockTime feature can be disabled and thus
@@ -1422,7 +1427,7 @@ public class Script {
             throw new ScriptException("Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSig(UldTransaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(SigHashMemo sigHashes, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode,
                                         Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1430,47 +1435,38 @@ public class Script {
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
-
-        byte[] prog = script.getProgram();
-        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
 
-        UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
-        try {
-            writeBytes(outStream, sigBytes);
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen
-        }
-        connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
+        byte[] prog = script.getQuickProgram();
+        byte[] connectedScript = removeAllInstancesOf(prog, lastCodeSepLocation, encodeSignatures(sigBytes));
 
         // TODO: Use int for indexes everywhere, we can't have that many inputs/outputs
         boolean sigValid = false;
         try {
-            TransactionSignature sig  = TransactionSignature.decodeFromUlord(sigBytes, requireCanonical,
-                verifyFlags.contains(VerifyFlag.LOW_S));
+            TransactionSignature sig = DERSignature.decodeTransactionSignature(sigBytes, 0, sigBytes.length,
+                requireCanonical, verifyFlags.contains(VerifyFlag.LOW_S));
 
             // TODO: Should check hash type is known
-            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            Sha256Hash hash = sigHashes.hashFor(prog, lastCodeSepLocation, connectedScript, (byte) sig.sighashFlags);
             sigValid = UldECKey.verify(hash.getBytes(), sig, pubKey);
-        } catch (Exception e1) {
-            // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
-            // Because I can't verify there aren't more, we use a very generic Exception catch
-
-            // This RuntimeException occurs when signing as we run partial/invalid scripts to see if they need more
-            // signing work to be done inside LocalTransactionSigner.signInputs.
-            if (!e1.getMessage().contains("Reached past end of ASN.1 stream"))
-                log.warn("Signature checking failed!", e1);
+        } catch (DERSignature.SignatureDecodeException e) {
+            // Malformed or non-canonical signatures just fail the check. Partial scripts run while signing, inside
+            // LocalTransactionSigner.signInputs, have empty placeholders here, so this is not worth a warning.
+            log.debug("Signature checking failed: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            // The public key is not a point on the curve. Whatever decoding it throws, the check just fails.
+            log.debug("Signature checking failed: {}", e.toString());
         }
 
         if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {});
+            stack.push(sigValid ? TRUE : FALSE);
         else if (opcode == OP_CHECKSIGVERIFY)
             if (!sigValid)
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(UldTransaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(SigHashMemo sigHashes, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode,
                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1478,7 +1474,7 @@ public class Script {
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast()).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop());
         if (pubKeyCount < 0 || pubKeyCount > 20)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1489,11 +1485,11 @@ public class Script {
 
         LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
         for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
+            byte[] pubKey = stack.pop();
             pubkeys.add(pubKey);
         }
 
-        int sigCount = castToBigInteger(stack.pollLast()).intValue();
+        int sigCount = (int) castToLong(stack.pop());
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1501,36 +1497,29 @@ public class Script {
 
         LinkedList<byte[]> sigs = new LinkedList<byte[]>();
         for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
+            byte[] sig = stack.pop();
             sigs.add(sig);
         }
 
-        byte[] prog = script.getProgram();
-        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
-
-        for (byte[] sig : sigs) {
-            UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
-            try {
-                writeBytes(outStream, sig);
-            } catch (IOException e) {
-                throw new RuntimeException(e); // Cannot happen
-            }
-            connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
-        }
+        byte[] prog = script.getQuickProgram();
+        byte[] connectedScript = removeAllInstancesOf(prog, lastCodeSepLocation,
+                encodeSignatures(sigs.toArray(new byte[sigs.size()][])));
 
         boolean valid = true;
         while (sigs.size() > 0) {
             byte[] pubKey = pubkeys.pollFirst();
-            // We could reasonably move this out of the loop, but because signature verification is significantly
-            // more expensive than hashing, its not a big deal.
+            // Signatures with the same sighash flags share the hash, computed the first time one of them is tried.
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromUlord(sigs.getFirst(), requireCanonical);
-                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+                byte[] sigBytes = sigs.getFirst();
+                TransactionSignature sig = DERSignature.decodeTransactionSignature(sigBytes, 0, sigBytes.length,
+                        requireCanonical, false);
+                Sha256Hash hash = sigHashes.hashFor(prog, lastCodeSepLocation, connectedScript, (byte) sig.sighashFlags);
                 if (UldECKey.verify(hash.getBytes(), sig, pubKey))
                     sigs.pollFirst();
-            } catch (Exception e) {
-                // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
-                // Because I can't verify there aren't more, we use a very generic Exception catch
+            } catch (DERSignature.SignatureDecodeException e) {
+                // A malformed signature matches no key, so it runs out of keys like any other bad signature.
+            } catch (RuntimeException e) {
+                // The public key is not a point on the curve. Whatever decoding it throws, it matches no signature.
             }
 
             if (sigs.size() > pubkeys.size()) {
@@ -1540,12 +1529,12 @@ public class Script {
         }
 
         // We uselessly remove a stack object to emulate a Bitcoin Core bug.
-        byte[] nullDummy = stack.pollLast();
+        byte[] nullDummy = stack.pop();
         if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {});
+            stack.push(valid ? TRUE : FALSE);
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
@@ -1588,21 +1577,32 @@ public class Script {
         } catch (ProtocolException e) {
             throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
         }
+        correctlySpendsCopy(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+    }
+
+    /**
+     * Same as {@link #correctlySpends(UldTransaction, long, Script, Set)}, but for a transaction that is already a
+     * private copy nobody modifies, so it can be shared by threads checking different inputs.
+     */
+    public void correctlySpendsCopy(UldTransaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                    Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
+        ScriptStack stack = new ScriptStack();
+        ScriptStack p2shStack = null;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
+        // The scripts all check signatures of the same input, so they can share the hashes.
+        SigHashMemo sigHashes = new SigHashMemo(txContainingThis, (int) scriptSigIndex);
+        executeScript(txContainingThis, scriptSigIndex, this, stack, sigHashes, verifyFlags);
         if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
+            p2shStack = stack.copy();
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, sigHashes, verifyFlags);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
         
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.pop()))
             throw new ScriptException("Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1619,19 +1619,19 @@ public class Script {
 
         // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
         if (verifyFlags.contains(VerifyFlag.P2SH) && scriptPubKey.isPayToScriptHash()) {
-            for (ScriptChunk chunk : chunks)
+            for (ScriptChunk chunk : chunks())
                 if (chunk.isOpCode() && chunk.opcode > OP_16)
                     throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, sigHashes, verifyFlags);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.pop()))
                 throw new ScriptException("P2SH script execution resulted in a non-true stack");
         }
     }
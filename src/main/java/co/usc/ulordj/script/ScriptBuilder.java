@@ -405,6 +405,8 @@ public class ScriptBuilder {
      * Creates a scriptPubKey for the given redeem script.
      */
     public static Script createP2SHOutputScript(Script redeemScript) {
+        if (redeemScript.isSentToMultiSig())
+            return redeemScript.getRedeemScriptInfo().getP2SHOutputScript();
         byte[] hash = Utils.sha256hash160(redeemScript.getProgram());
         return ScriptBuilder.createP2SHOutputScript(hash);
     }
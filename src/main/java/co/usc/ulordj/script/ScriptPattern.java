@@ -0,0 +1,195 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.Address;
+
+import java.util.Arrays;
+
+import static co.usc.ulordj.script.ScriptOpCodes.*;
+
+/**
+ * <p>Recognizes the standard forms of scripts straight from their program bytes, without parsing them into chunks, so
+ * the outputs of a transaction can be classified and matched against a wallet where they lie in the payload.</p>
+ *
+ * <p>Every method takes the program as a range of an array. A program is walked one operation at a time, pushes
+ * being recognized whichever push opcode they use, so each form matches exactly the programs whose chunks
+ * {@link Script} would find in that form. Programs ending in the middle of an operation match no form. Data is
+ * returned as offsets into the array, and only copied by the methods saying so.</p>
+ */
+public final class ScriptPattern {
+    private ScriptPattern() {
+    }
+
+    /**
+     * Returns the offset just past the operation starting at the given offset, or -1 if the program, which ends at
+     * end, ends inside it.
+     */
+    public static int opEnd(byte[] program, int opOffset, int end) {
+        int opcode = program[opOffset] & 0xff;
+        long dataLength;
+        int pos = opOffset + 1;
+        if (opcode < OP_PUSHDATA1) {
+            dataLength = opcode;
+        } else if (opcode == OP_PUSHDATA1) {
+            if (end - pos < 1) return -1;
+            dataLength = program[pos] & 0xff;
+            pos += 1;
+        } else if (opcode == OP_PUSHDATA2) {
+            if (end - pos < 2) return -1;
+            dataLength = (program[pos] & 0xff) | ((program[pos + 1] & 0xff) << 8);
+            pos += 2;
+        } else if (opcode == OP_PUSHDATA4) {
+            if (end - pos < 4) return -1;
+            dataLength = (program[pos] & 0xffL) | ((program[pos + 1] & 0xffL) << 8)
+                    | ((program[pos + 2] & 0xffL) << 16) | ((program[pos + 3] & 0xffL) << 24);
+            pos += 4;
+        } else {
+            return pos;
+        }
+        return dataLength > end - pos ? -1 : pos + (int) dataLength;
+    }
+
+    /** Returns the offset of the data pushed by the push operation starting at the given offset. */
+    public static int pushDataStart(byte[] program, int opOffset) {
+        int opcode = program[opOffset] & 0xff;
+        if (opcode < OP_PUSHDATA1)
+            return opOffset + 1;
+        else if (opcode == OP_PUSHDATA1)
+            return opOffset + 2;
+        else if (opcode == OP_PUSHDATA2)
+            return opOffset + 3;
+        else
+            return opOffset + 5;
+    }
+
+    private static boolean isPush(byte[] program, int opOffset) {
+        return (program[opOffset] & 0xff) <= OP_PUSHDATA4;
+    }
+
+    private static int pushLength(byte[] program, int opOffset, int opEnd) {
+        return opEnd - pushDataStart(program, opOffset);
+    }
+
+    /**
+     * Returns the offsets of the operations of the program followed by the offset of its end, or null if it has
+     * another number of operations than expected or is malformed.
+     */
+    private static int[] ops(byte[] program, int offset, int length, int expected) {
+        int[] ops = new int[expected + 1];
+        int end = offset + length;
+        int pos = offset;
+        int count = 0;
+        while (pos < end) {
+            if (count == expected)
+                return null;
+            ops[count++] = pos;
+            pos = opEnd(program, pos, end);
+            if (pos < 0)
+                return null;
+        }
+        if (count != expected)
+            return null;
+        ops[count] = end;
+        return ops;
+    }
+
+    /** Returns true if the program is DUP HASH160 &lt;pubkey hash&gt; EQUALVERIFY CHECKSIG, paying to an address. */
+    public static boolean isP2PKH(byte[] program, int offset, int length) {
+        // The canonical form first, it's what nearly every output has.
+        if (length == 25 && (program[offset] & 0xff) == OP_DUP && (program[offset + 1] & 0xff) == OP_HASH160
+                && program[offset + 2] == Address.LENGTH && (program[offset + 23] & 0xff) == OP_EQUALVERIFY
+                && (program[offset + 24] & 0xff) == OP_CHECKSIG)
+            return true;
+        if (length < 25 || (program[offset] & 0xff) != OP_DUP)
+            return false;
+        int[] ops = ops(program, offset, length, 5);
+        return ops != null && (program[ops[1]] & 0xff) == OP_HASH160 && isPush(program, ops[2])
+                && pushLength(program, ops[2], ops[3]) == Address.LENGTH
+                && (program[ops[3]] & 0xff) == OP_EQUALVERIFY && (program[ops[4]] & 0xff) == OP_CHECKSIG;
+    }
+
+    /**
+     * Returns true if the program is exactly HASH160 &lt;script hash&gt; EQUAL, as
+     * <a href="https://github.com/bitcoin/bips/blob/master/bip-0016.mediawiki">BIP 16</a> defines a P2SH output by
+     * its bytes rather than its operations.
+     */
+    public static boolean isP2SH(byte[] program, int offset, int length) {
+        return length == 23 && (program[offset] & 0xff) == OP_HASH160 && (program[offset + 1] & 0xff) == 0x14
+                && (program[offset + 22] & 0xff) == OP_EQUAL;
+    }
+
+    /** Returns true if the program is &lt;pubkey&gt; CHECKSIG, paying to a key. */
+    public static boolean isP2PK(byte[] program, int offset, int length) {
+        if (length < 3 || (program[offset + length - 1] & 0xff) != OP_CHECKSIG || !isPush(program, offset))
+            return false;
+        int[] ops = ops(program, offset, length, 2);
+        return ops != null && ops[1] == offset + length - 1 && pushLength(program, ops[0], ops[1]) > 1;
+    }
+
+    /** Returns true if the program is [m] [keys...] [n] CHECKMULTISIG(VERIFY) with 1 &lt;= m and n keys. */
+    public static boolean isSentToMultiSig(byte[] program, int offset, int length) {
+        if (length < 4)
+            return false;
+        int last = program[offset + length - 1] & 0xff;
+        if (last != OP_CHECKMULTISIG && last != OP_CHECKMULTISIGVERIFY)
+            return false;
+        int n = program[offset + length - 2] & 0xff;
+        if (n < OP_1 || n > OP_16 || (program[offset] & 0xff) < OP_1 || (program[offset] & 0xff) > OP_16)
+            return false;
+        int numKeys = n - OP_1 + 1;
+        int[] ops = ops(program, offset, length, numKeys + 3);
+        // The last two bytes must be operations of their own, not the end of a push.
+        if (ops == null || ops[numKeys + 1] != offset + length - 2)
+            return false;
+        for (int i = 1; i <= numKeys; i++)
+            if (!isPush(program, ops[i]))
+                return false;
+        return true;
+    }
+
+    /** Returns true if the program starts with OP_RETURN. */
+    public static boolean isOpReturn(byte[] program, int offset, int length) {
+        return length > 0 && (program[offset] & 0xff) == OP_RETURN;
+    }
+
+    /**
+     * Returns true if the program is the CHECKLOCKTIMEVERIFY payment channel form,
+     * IF &lt;recipient&gt; CHECKSIGVERIFY ELSE &lt;expiry&gt; CHECKLOCKTIMEVERIFY DROP ENDIF &lt;sender&gt; CHECKSIG.
+     */
+    public static boolean isCLTVPaymentChannel(byte[] program, int offset, int length) {
+        if (length < 10 || (program[offset] & 0xff) != OP_IF)
+            return false;
+        int[] ops = ops(program, offset, length, 10);
+        return ops != null && (program[ops[2]] & 0xff) == OP_CHECKSIGVERIFY && (program[ops[3]] & 0xff) == OP_ELSE
+                && (program[ops[5]] & 0xff) == OP_CHECKLOCKTIMEVERIFY && (program[ops[6]] & 0xff) == OP_DROP
+                && (program[ops[7]] & 0xff) == OP_ENDIF && (program[ops[9]] & 0xff) == OP_CHECKSIG;
+    }
+
+    /**
+     * Returns the offset of the 20 byte hash in a P2PKH or P2SH program, the pubkey hash or the script hash, or -1 if
+     * the program is neither.
+     */
+    public static int findHash160(byte[] program, int offset, int length) {
+        if (isP2SH(program, offset, length))
+            return offset + 2;
+        if (!isP2PKH(program, offset, length))
+            return -1;
+        if (length == 25 && program[offset + 2] == Address.LENGTH)
+            return offset + 3;
+        // DUP and HASH160 take a byte each.
+        return pushDataStart(program, offset + 2);
+    }
+
+    /** Returns the hash of a P2PKH or P2SH program as a new array, or null if the program is neither. */
+    public static byte[] extractHash160(byte[] program, int offset, int length) {
+        int start = findHash160(program, offset, length);
+        return start < 0 ? null : Arrays.copyOfRange(program, start, start + Address.LENGTH);
+    }
+
+    /** Returns the key of a P2PK program as a new array, or null if the program is not P2PK. */
+    public static byte[] extractP2PKPubKey(byte[] program, int offset, int length) {
+        if (!isP2PK(program, offset, length))
+            return null;
+        // The key push is all but the final CHECKSIG.
+        return Arrays.copyOfRange(program, pushDataStart(program, offset), offset + length - 1);
+    }
+}
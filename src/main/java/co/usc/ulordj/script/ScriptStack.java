@@ -0,0 +1,83 @@
+package co.usc.ulordj.script;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The stack of the script interpreter, an array of elements with the top at the end. Elements are addressed by their
+ * depth, 0 being the top. Callers check the size before popping or peeking, as the interpreter has a specific error
+ * for every operation that finds too few elements.
+ */
+final class ScriptStack {
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        elements = new byte[16][];
+    }
+
+    /** Creates a stack holding the given elements, the last one on top. */
+    ScriptStack(Collection<byte[]> from) {
+        elements = from.toArray(new byte[Math.max(16, from.size())][]);
+        size = from.size();
+    }
+
+    private ScriptStack(ScriptStack from) {
+        elements = Arrays.copyOf(from.elements, Math.max(16, from.size));
+        size = from.size;
+    }
+
+    ScriptStack copy() {
+        return new ScriptStack(this);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes the element at the given depth, moving the ones above it down. */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /**
+     * Replaces the contents of the given list with copies of the elements of this stack, the top one last. Elements are
+     * copied because the interpreter pushes shared encodings of small numbers and booleans, which callers mustn't get
+     * to modify.
+     */
+    void copyTo(List<byte[]> to) {
+        to.clear();
+        for (int i = 0; i < size; i++)
+            to.add(elements[i].clone());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.asList(elements).subList(0, size).toString();
+    }
+}
@@ -0,0 +1,62 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.UldTransaction;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * <p>The signature hashes computed while verifying one input, so that signatures of the same input over the same script
+ * code with the same sighash flags only hash the transaction once. That's every signature of an m-of-n
+ * CHECKMULTISIG, each of which may be tried against several keys.</p>
+ *
+ * <p>The script code is a range of a program, from just past the last CODESEPARATOR to the end, with the signatures
+ * being checked removed from it when they occur there, which they usually don't. Hashes are kept for the last script
+ * code seen only: a new one drops them.</p>
+ */
+final class SigHashMemo {
+    @Nullable private final UldTransaction tx;
+    private final int index;
+
+    private byte[] program;
+    private int start = -1;
+    @Nullable private byte[] removed;
+    // Nearly always a single sighash type per script code.
+    private byte[] flags = new byte[2];
+    private Sha256Hash[] hashes = new Sha256Hash[2];
+    private int size;
+
+    SigHashMemo(@Nullable UldTransaction tx, int index) {
+        this.tx = tx;
+        this.index = index;
+    }
+
+    /**
+     * Returns the signature hash of the input for the script code made of the given program from start, or of the
+     * given bytes if signatures had to be removed from it.
+     *
+     * @param removed the script code with signatures removed, or null if there was nothing to remove
+     */
+    Sha256Hash hashFor(byte[] program, int start, @Nullable byte[] removed, byte sigHashFlags) {
+        if (program != this.program || start != this.start || !Arrays.equals(removed, this.removed)) {
+            this.program = program;
+            this.start = start;
+            this.removed = removed;
+            Arrays.fill(hashes, 0, size, null);
+            size = 0;
+        }
+        for (int i = 0; i < size; i++)
+            if (flags[i] == sigHashFlags)
+                return hashes[i];
+        byte[] scriptCode = removed != null ? removed : Arrays.copyOfRange(program, start, program.length);
+        Sha256Hash hash = tx.hashForSignature(index, scriptCode, sigHashFlags);
+        if (size == flags.length) {
+            flags = Arrays.copyOf(flags, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        flags[size] = sigHashFlags;
+        hashes[size++] = hash;
+        return hash;
+    }
+}
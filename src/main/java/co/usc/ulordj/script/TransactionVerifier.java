@@ -0,0 +1,270 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.ScriptException;
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.TransactionInput;
+import co.usc.ulordj.core.TransactionOutPoint;
+import co.usc.ulordj.core.TransactionOutput;
+import co.usc.ulordj.core.UldBlock;
+import co.usc.ulordj.core.UldTransaction;
+import co.usc.ulordj.utils.ParallelRunner;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Checks that the inputs of transactions correctly spend the outputs they are connected to, running the scripts of
+ * several inputs at the same time. Each input is checked exactly like {@link Script#correctlySpends(UldTransaction,
+ * long, Script, Set)} would, but the transaction is copied once for all of its inputs rather than once per input.</p>
+ *
+ * <p>Work is spread over the given executor as well as the calling thread, which waits until everything is done, so
+ * an executor that runs tasks in the calling thread works too. As soon as an input fails, inputs that haven't been
+ * started yet are skipped, so the report of a failed verification tells which input failed first but not whether
+ * the others were valid.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads, but the transactions given to them must not be
+ * modified until verification returns.</p>
+ */
+public class TransactionVerifier {
+    private final ParallelRunner runner;
+
+    /**
+     * @param executor runs input checks besides the calling thread
+     * @param parallelism the most input checks to run at the same time, counting the calling thread
+     */
+    public TransactionVerifier(Executor executor, int parallelism) {
+        this.runner = new ParallelRunner(executor, parallelism);
+    }
+
+    /** Creates a verifier that runs input checks on a default {@link ParallelRunner}. */
+    public TransactionVerifier() {
+        this.runner = new ParallelRunner();
+    }
+
+    /**
+     * Verifies every input of the transaction against the output at the same position in the given list.
+     */
+    public Report verify(UldTransaction tx, List<TransactionOutput> connectedOutputs, Set<Script.VerifyFlag> verifyFlags) {
+        checkArgument(connectedOutputs.size() == tx.getInputs().size(), "Need one connected output per input");
+        Batch batch = new Batch(verifyFlags);
+        Report report = batch.add(tx, connectedOutputs);
+        batch.run();
+        return report;
+    }
+
+    /**
+     * Verifies every input of the transaction against the output it is connected to, see
+     * {@link TransactionInput#getConnectedOutput()}. Inputs that are not connected fail.
+     */
+    public Report verify(UldTransaction tx, Set<Script.VerifyFlag> verifyFlags) {
+        List<TransactionOutput> connectedOutputs = new ArrayList<TransactionOutput>(tx.getInputs().size());
+        for (TransactionInput input : tx.getInputs())
+            connectedOutputs.add(input.getConnectedOutput());
+        return verify(tx, connectedOutputs, verifyFlags);
+    }
+
+    /**
+     * Verifies the inputs of all transactions of the block but the coinbase, with all their input checks sharing the
+     * executor. Inputs may spend outputs of earlier transactions in the same block; the outputs spent from elsewhere
+     * are looked up in the given map, and inputs spending outputs found in neither fail.
+     *
+     * @return one report per transaction, in block order, without the coinbase
+     */
+    public BlockReport verify(UldBlock block, Map<TransactionOutPoint, TransactionOutput> spentOutputs,
+                              Set<Script.VerifyFlag> verifyFlags) {
+        List<UldTransaction> transactions = block.getTransactions();
+        checkArgument(transactions != null, "Block has no transactions");
+        Map<TransactionOutPoint, TransactionOutput> blockOutputs = new HashMap<TransactionOutPoint, TransactionOutput>();
+        Batch batch = new Batch(verifyFlags);
+        List<Report> reports = new ArrayList<Report>(transactions.size());
+        for (UldTransaction tx : transactions) {
+            if (!tx.isCoinBase()) {
+                List<TransactionOutput> connectedOutputs = new ArrayList<TransactionOutput>(tx.getInputs().size());
+                for (TransactionInput input : tx.getInputs()) {
+                    TransactionOutput output = blockOutputs.get(input.getOutpoint());
+                    connectedOutputs.add(output != null ? output : spentOutputs.get(input.getOutpoint()));
+                }
+                reports.add(batch.add(tx, connectedOutputs));
+            }
+            for (TransactionOutput output : tx.getOutputs())
+                blockOutputs.put(new TransactionOutPoint(tx.getParams(), output.getIndex(), tx.getHash()), output);
+        }
+        batch.run();
+        return new BlockReport(reports);
+    }
+
+    /** The outcome of checking a single input. */
+    public enum Status {
+        /** The input correctly spends its connected output. */
+        VALID,
+        /** The input doesn't spend its connected output, or isn't connected to one. */
+        INVALID,
+        /** The input wasn't checked because another one failed first. */
+        SKIPPED
+    }
+
+    /** Per input results of verifying a transaction. */
+    public static class Report {
+        private final Sha256Hash txHash;
+        private final Status[] statuses;
+        private final RuntimeException[] errors;
+
+        private Report(Sha256Hash txHash, int inputCount) {
+            this.txHash = txHash;
+            this.statuses = new Status[inputCount];
+            this.errors = new RuntimeException[inputCount];
+            Arrays.fill(statuses, Status.SKIPPED);
+        }
+
+        public Sha256Hash getTxHash() {
+            return txHash;
+        }
+
+        public int getInputCount() {
+            return statuses.length;
+        }
+
+        /** Returns true if every input was checked and is valid. */
+        public boolean isValid() {
+            for (Status status : statuses)
+                if (status != Status.VALID)
+                    return false;
+            return true;
+        }
+
+        public Status getStatus(int inputIndex) {
+            return statuses[inputIndex];
+        }
+
+        /** Returns why the given input failed, or null if it didn't. */
+        @Nullable
+        public RuntimeException getError(int inputIndex) {
+            return errors[inputIndex];
+        }
+
+        /** Returns the index of the first input that failed, or -1 if none did. */
+        public int getFirstInvalidInput() {
+            for (int i = 0; i < statuses.length; i++)
+                if (statuses[i] == Status.INVALID)
+                    return i;
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "Report for " + txHash + ": " + Arrays.toString(statuses);
+        }
+    }
+
+    /** The reports of all transactions of a block but the coinbase, in block order. */
+    public static class BlockReport {
+        private final List<Report> reports;
+
+        private BlockReport(List<Report> reports) {
+            this.reports = Collections.unmodifiableList(reports);
+        }
+
+        public List<Report> getReports() {
+            return reports;
+        }
+
+        /** Returns true if every input of every transaction was checked and is valid. */
+        public boolean isValid() {
+            for (Report report : reports)
+                if (!report.isValid())
+                    return false;
+            return true;
+        }
+
+        /** Returns the report of the first transaction with an input that failed, or null if none did. */
+        @Nullable
+        public Report getFirstInvalid() {
+            for (Report report : reports)
+                if (report.getFirstInvalidInput() >= 0)
+                    return report;
+            return null;
+        }
+    }
+
+    /** Input checks gathered from one or more transactions, run by workers that take them in turn. */
+    private class Batch implements Runnable {
+        private final Set<Script.VerifyFlag> verifyFlags;
+        private final List<UldTransaction> txs = new ArrayList<UldTransaction>();
+        private final List<Integer> inputIndexes = new ArrayList<Integer>();
+        private final List<Script> scriptSigs = new ArrayList<Script>();
+        private final List<Script> scriptPubKeys = new ArrayList<Script>();
+        private final List<Report> reports = new ArrayList<Report>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        Batch(Set<Script.VerifyFlag> verifyFlags) {
+            this.verifyFlags = verifyFlags;
+        }
+
+        Report add(UldTransaction tx, List<TransactionOutput> connectedOutputs) {
+            // Scripts don't modify the transaction, so one private copy can be shared by all of its inputs.
+            UldTransaction copy = tx.getParams().getDefaultSerializer().makeTransaction(tx.ulordSerialize());
+            Report report = new Report(tx.getHash(), connectedOutputs.size());
+            for (int i = 0; i < connectedOutputs.size(); i++) {
+                TransactionOutput output = connectedOutputs.get(i);
+                try {
+                    if (output == null)
+                        throw new ScriptException("Input " + i + " is not connected to an output");
+                    // Parse scripts here so that no two threads ever share one.
+                    Script scriptSig = new Script(copy.getInput(i).getScriptBytes());
+                    Script scriptPubKey = new Script(output.getScriptBytes());
+                    txs.add(copy);
+                    inputIndexes.add(i);
+                    scriptSigs.add(scriptSig);
+                    scriptPubKeys.add(scriptPubKey);
+                    reports.add(report);
+                } catch (ScriptException e) {
+                    fail(report, i, e);
+                }
+            }
+            return report;
+        }
+
+        @Override
+        public void run() {
+            runner.run(txs.size(), new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+
+        private void work() {
+            int job;
+            while (!failed.get() && (job = next.getAndIncrement()) < txs.size()) {
+                Report report = reports.get(job);
+                int inputIndex = inputIndexes.get(job);
+                try {
+                    scriptSigs.get(job).correctlySpendsCopy(txs.get(job), inputIndex, scriptPubKeys.get(job),
+                            verifyFlags);
+                    report.statuses[inputIndex] = Status.VALID;
+                } catch (RuntimeException e) {
+                    fail(report, inputIndex, e);
+                }
+            }
+        }
+
+        private void fail(Report report, int inputIndex, RuntimeException e) {
+            report.errors[inputIndex] = e;
+            report.statuses[inputIndex] = Status.INVALID;
+            failed.set(true);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package co.usc.ulordj.signers;
+
+import co.usc.ulordj.core.*;
+import co.usc.ulordj.crypto.TransactionSignature;
+import co.usc.ulordj.script.MultiSigInputAssembler;
+import co.usc.ulordj.script.RedeemScriptInfo;
+import co.usc.ulordj.script.Script;
+import co.usc.ulordj.script.ScriptBuilder;
+import co.usc.ulordj.utils.ParallelRunner;
+import co.usc.ulordj.wallet.KeyBag;
+import co.usc.ulordj.wallet.RedeemData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>{@link TransactionSigner} implementation for signing inputs using keys from the provided {@link KeyBag}.</p>
+ *
+ * <p>Pay-to-address, pay-to-pubkey, multisig and P2SH multisig inputs are supported. For multisig inputs every private
+ * key the bag has for the script signs, as long as signatures are missing; signatures already in the input script are
+ * kept, in the order of their keys, and the rest of the slots stay OP_0 for other signers to fill, see
+ * {@link MultiSigInputAssembler}. Inputs that already spend their output correctly, aren't connected or have no
+ * private key in the bag are left alone.</p>
+ *
+ * <p>Signature hashes come from the transaction's cached serialization pieces, and nonces are derived as in RFC 6979.
+ * The inputs are signed in parallel, each from its own parsed scripts, and their input scripts are then replaced in a
+ * single pass on the calling thread, so a transaction with many inputs is signed about as many times faster as there
+ * are processors.</p>
+ */
+public class LocalTransactionSigner extends StatelessTransactionSigner {
+    private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
+
+    private final ParallelRunner runner;
+
+    /** Creates a signer that signs inputs on a default {@link ParallelRunner}. */
+    public LocalTransactionSigner() {
+        this.runner = new ParallelRunner();
+    }
+
+    /**
+     * @param executor signs inputs besides the calling thread
+     * @param parallelism the most inputs to sign at the same time, counting the calling thread
+     */
+    public LocalTransactionSigner(Executor executor, int parallelism) {
+        this.runner = new ParallelRunner(executor, parallelism);
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
+        UldTransaction tx = propTx.partialTx;
+        // The workers only read this private copy, so inputs can be replaced in the original as soon as they're done.
+        UldTransaction copy = tx.getParams().getDefaultSerializer().makeTransaction(tx.ulordSerialize());
+        List<InputJob> jobs = new ArrayList<InputJob>();
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            InputJob job = prepare(tx.getInput(i), i, keyBag);
+            if (job != null)
+                jobs.add(job);
+        }
+        new Batch(copy, jobs).run();
+        for (InputJob job : jobs)
+            if (job.result != null)
+                tx.getInput(job.index).setScriptSig(job.result);
+        return true;
+    }
+
+    /** Finds what it takes to sign the input, on the calling thread as key bags needn't be thread safe. */
+    @Nullable
+    private static InputJob prepare(TransactionInput txIn, int index, KeyBag keyBag) {
+        TransactionOutput connectedOutput = txIn.getConnectedOutput();
+        if (connectedOutput == null) {
+            log.warn("Missing connected output, assuming input {} is already signed.", index);
+            return null;
+        }
+        // Scripts are parsed here so that no two threads ever share one.
+        Script scriptPubKey = new Script(connectedOutput.getScriptBytes());
+        RedeemScriptInfo multiSig = null;
+        List<UldECKey> keys = new ArrayList<UldECKey>();
+        if (scriptPubKey.isSentToMultiSig()) {
+            multiSig = scriptPubKey.getRedeemScriptInfo();
+            for (byte[] pubKey : multiSig.getPubKeys()) {
+                UldECKey key = keyBag.findKeyFromPubKey(pubKey);
+                if (key != null && key.hasPrivKey())
+                    keys.add(key);
+            }
+        } else {
+            RedeemData redeemData;
+            try {
+                redeemData = txIn.getConnectedRedeemData(keyBag);
+            } catch (ScriptException e) {
+                log.warn("Don't know how to sign input {}: {}", index, e.getMessage());
+                return null;
+            }
+            if (redeemData == null) {
+                log.warn("No redeem data found for input {}", index);
+                return null;
+            }
+            if (scriptPubKey.isPayToScriptHash()) {
+                multiSig = redeemData.getRedeemScriptInfo();
+                if (multiSig == null) {
+                    log.warn("Don't know how to sign input {}, its redeem script is not multisig", index);
+                    return null;
+                }
+            }
+            for (UldECKey key : redeemData.keys)
+                if (key.hasPrivKey())
+                    keys.add(key);
+        }
+        if (keys.isEmpty()) {
+            log.warn("No local key found for input {}", index);
+            return null;
+        }
+        return new InputJob(index, new Script(txIn.getScriptBytes()), scriptPubKey, multiSig, keys);
+    }
+
+    /** One input to sign, and the input script it ends up with. */
+    private static class InputJob {
+        final int index;
+        final Script scriptSig;
+        final Script scriptPubKey;
+        // The redeem script of a P2SH multisig input, or the output script of a bare multisig one.
+        @Nullable final RedeemScriptInfo multiSig;
+        final List<UldECKey> keys;
+        @Nullable Script result;
+
+        InputJob(int index, Script scriptSig, Script scriptPubKey, @Nullable RedeemScriptInfo multiSig,
+                 List<UldECKey> keys) {
+            this.index = index;
+            this.scriptSig = scriptSig;
+            this.scriptPubKey = scriptPubKey;
+            this.multiSig = multiSig;
+            this.keys = keys;
+        }
+
+        void sign(UldTransaction tx) {
+            try {
+                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                // we sign missing pieces (to check this would require either assuming any signatures are signing
+                // standard output types or a way to get processed signatures out of script execution)
+                scriptSig.correctlySpendsCopy(tx, index, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+                log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", index);
+                return;
+            } catch (ScriptException e) {
+                // Expected.
+            }
+            if (scriptPubKey.isSentToAddress() || scriptPubKey.isSentToRawPubKey()) {
+                UldECKey key = keys.get(0);
+                TransactionSignature signature = signatureFor(tx, key, scriptPubKey.getProgram());
+                result = scriptPubKey.isSentToAddress() ? ScriptBuilder.createInputScript(signature, key)
+                        : ScriptBuilder.createInputScript(signature);
+            } else {
+                result = signMultiSig(tx);
+            }
+        }
+
+        private TransactionSignature signatureFor(UldTransaction tx, UldECKey key, byte[] program) {
+            Sha256Hash hash = tx.hashForSignature(index, program, (byte) UldTransaction.SigHash.ALL.value);
+            return new TransactionSignature(key.sign(hash), UldTransaction.SigHash.ALL, false);
+        }
+
+        private Script signMultiSig(UldTransaction tx) {
+            MultiSigInputAssembler assembler = MultiSigInputAssembler.fromScriptSig(tx, index, scriptSig, multiSig,
+                    scriptPubKey.isPayToScriptHash());
+            for (UldECKey key : keys) {
+                if (assembler.isComplete())
+                    break;
+                int slot = assembler.getSlot(key.getPubKey());
+                if (slot >= 0 && assembler.getSignature(slot) == null) {
+                    Sha256Hash hash = assembler.hashFor((byte) UldTransaction.SigHash.ALL.value);
+                    TransactionSignature signature = new TransactionSignature(key.sign(hash),
+                            UldTransaction.SigHash.ALL, false);
+                    assembler.putSignature(key.getPubKey(), signature.encodeToUlord());
+                }
+            }
+            return assembler.buildScriptSig();
+        }
+    }
+
+    /** Inputs to sign, taken in turn by the calling thread and up to parallelism - 1 others. */
+    private class Batch implements Runnable {
+        private final UldTransaction tx;
+        private final List<InputJob> jobs;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+
+        Batch(UldTransaction tx, List<InputJob> jobs) {
+            this.tx = tx;
+            this.jobs = jobs;
+        }
+
+        @Override
+        public void run() {
+            runner.run(jobs.size(), new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+            RuntimeException e = error.get();
+            if (e != null)
+                throw e;
+        }
+
+        private void work() {
+            int job;
+            while (error.get() == null && (job = next.getAndIncrement()) < jobs.size()) {
+                try {
+                    jobs.get(job).sign(tx);
+                } catch (RuntimeException e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+}
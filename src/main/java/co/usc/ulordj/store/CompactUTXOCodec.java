@@ -0,0 +1,149 @@
+package co.usc.ulordj.store;
+
+import co.usc.ulordj.core.Coin;
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.UTXO;
+import co.usc.ulordj.core.Utils;
+import co.usc.ulordj.script.Script;
+import co.usc.ulordj.script.ScriptPattern;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static co.usc.ulordj.script.ScriptOpCodes.*;
+
+/**
+ * <p>The compact record an output is kept in, leaving out its outpoint, which is the key the record is stored under:</p>
+ *
+ * <pre>
+ *  - varint   height &lt;&lt; 1 | coinbase
+ *  - varint   value in satoshis
+ *  - byte     script template, followed by
+ *               0: varint length, the whole program
+ *               1: pay to pubkey hash, the 20 byte hash160
+ *               2: pay to script hash, the 20 byte hash160
+ *               3: pay to compressed pubkey, the 33 byte key
+ * </pre>
+ *
+ * <p>Varints are little endian groups of 7 bits, the high bit set on every group but the last. Templates only match
+ * programs byte for byte, so decoding always gives back the exact program that was encoded.</p>
+ */
+final class CompactUTXOCodec {
+    static final int RAW = 0, P2PKH = 1, P2SH = 2, P2PK = 3;
+
+    private CompactUTXOCodec() {
+    }
+
+    static byte[] encode(UTXO utxo) {
+        byte[] program = utxo.getScript().getProgram();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(program.length + 12);
+        writeVarLong(out, ((long) utxo.getHeight() << 1) | (utxo.isCoinbase() ? 1 : 0));
+        writeVarLong(out, utxo.getValue().value);
+        if (isCanonicalP2PKH(program)) {
+            out.write(P2PKH);
+            out.write(program, 3, 20);
+        } else if (ScriptPattern.isP2SH(program, 0, program.length)) {
+            out.write(P2SH);
+            out.write(program, 2, 20);
+        } else if (isCompressedP2PK(program)) {
+            out.write(P2PK);
+            out.write(program, 1, 33);
+        } else {
+            out.write(RAW);
+            writeVarLong(out, program.length);
+            out.write(program, 0, program.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Decodes the output stored under the outpoint found at the given offset of the key. */
+    static UTXO decode(byte[] key, int keyOffset, byte[] record) {
+        Sha256Hash hash = Sha256Hash.wrap(Arrays.copyOfRange(key, keyOffset, keyOffset + 32));
+        long index = Utils.readUint32(key, keyOffset + 32);
+        int[] cursor = new int[1];
+        long heightAndCoinbase = readVarLong(record, cursor);
+        long value = readVarLong(record, cursor);
+        byte[] program = decodeProgram(record, cursor);
+        return new UTXO(hash, index, Coin.valueOf(value), (int) (heightAndCoinbase >>> 1),
+                (heightAndCoinbase & 1) != 0, new Script(program));
+    }
+
+    /** Returns the script program of the record without decoding anything else. */
+    static byte[] decodeProgram(byte[] record) {
+        int[] cursor = new int[1];
+        readVarLong(record, cursor);
+        readVarLong(record, cursor);
+        return decodeProgram(record, cursor);
+    }
+
+    private static byte[] decodeProgram(byte[] record, int[] cursor) {
+        int template = record[cursor[0]++];
+        int offset = cursor[0];
+        switch (template) {
+            case P2PKH: {
+                byte[] program = new byte[25];
+                program[0] = (byte) OP_DUP;
+                program[1] = (byte) OP_HASH160;
+                program[2] = 20;
+                System.arraycopy(record, offset, program, 3, 20);
+                program[23] = (byte) OP_EQUALVERIFY;
+                program[24] = (byte) OP_CHECKSIG;
+                return program;
+            }
+            case P2SH: {
+                byte[] program = new byte[23];
+                program[0] = (byte) OP_HASH160;
+                program[1] = 20;
+                System.arraycopy(record, offset, program, 2, 20);
+                program[22] = (byte) OP_EQUAL;
+                return program;
+            }
+            case P2PK: {
+                byte[] program = new byte[35];
+                program[0] = 33;
+                System.arraycopy(record, offset, program, 1, 33);
+                program[34] = (byte) OP_CHECKSIG;
+                return program;
+            }
+            case RAW: {
+                long length = readVarLong(record, cursor);
+                if (length < 0 || length > record.length - cursor[0])
+                    throw new IllegalArgumentException("Script runs past the end of the record");
+                return Arrays.copyOfRange(record, cursor[0], cursor[0] + (int) length);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown script template " + template);
+        }
+    }
+
+    private static boolean isCanonicalP2PKH(byte[] program) {
+        return program.length == 25 && (program[0] & 0xff) == OP_DUP && (program[1] & 0xff) == OP_HASH160
+                && program[2] == 20 && (program[23] & 0xff) == OP_EQUALVERIFY && (program[24] & 0xff) == OP_CHECKSIG;
+    }
+
+    private static boolean isCompressedP2PK(byte[] program) {
+        return program.length == 35 && program[0] == 33 && (program[1] == 2 || program[1] == 3)
+                && (program[34] & 0xff) == OP_CHECKSIG;
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Reads a varint at the cursor, moving it past the varint. */
+    static long readVarLong(byte[] bytes, int[] cursor) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 63)
+                throw new IllegalArgumentException("Varint too long");
+            int b = bytes[cursor[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
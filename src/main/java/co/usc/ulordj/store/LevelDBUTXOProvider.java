@@ -0,0 +1,657 @@
+package co.usc.ulordj.store;
+
+import co.usc.ulordj.core.Address;
+import co.usc.ulordj.core.NetworkParameters;
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.StreamingUTXOProvider;
+import co.usc.ulordj.core.TransactionOutPoint;
+import co.usc.ulordj.core.UTXO;
+import co.usc.ulordj.core.UTXOFilter;
+import co.usc.ulordj.core.UTXOIndex;
+import co.usc.ulordj.core.UTXOProviderException;
+import co.usc.ulordj.core.UldBlock;
+import co.usc.ulordj.core.Utils;
+import co.usc.ulordj.utils.Threading;
+import com.google.common.primitives.UnsignedBytes;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBException;
+import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.iq80.leveldb.WriteBatch;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link StreamingUTXOProvider} that keeps its outputs in a LevelDB database, so that they survive restarts and
+ * opening the provider doesn't depend on how many there are: outputs are only read, and decoded, when asked for.</p>
+ *
+ * <p>Every output is kept in a compact record (see {@link CompactUTXOCodec}) under its outpoint, laid out as
+ * {@link UTXOIndex#writeOutPoint(Sha256Hash, long, byte[], int)} does, and is indexed by the hash of its script so
+ * that filters on scripts only read the outputs they let through. Updates are atomic.</p>
+ *
+ * <p>The outputs can be streamed to and from a snapshot in the same record format:</p>
+ *
+ * <pre>
+ *  - 4 bytes  "UTXS"
+ *  - byte     format version, 1
+ *  - varint   chain head height
+ *  - for each output: byte 1, the 36 byte outpoint, varint record length, record
+ *  - byte     0
+ * </pre>
+ *
+ * <p>A snapshot being imported is written beside the outputs and only swapped in once it has been read in full and
+ * every record of it decoded, so a snapshot that is cut short or corrupt changes nothing. If the process dies while
+ * the snapshot is being swapped in, the swap is finished the next time the provider is opened.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class LevelDBUTXOProvider implements StreamingUTXOProvider {
+    private static final byte OUTPUT = 'o', SCRIPT = 's', CHAIN_HEAD = 'h';
+    // Outputs of a snapshot being imported, keyed like OUTPUT, and the height of the snapshot with how far its swap got.
+    static final byte STAGED = 'n', IMPORT = 'm';
+    static final int CLEARING = 0, MOVING = 1;
+    private static final byte[] CHAIN_HEAD_KEY = { CHAIN_HEAD };
+    private static final byte[] IMPORT_KEY = { IMPORT };
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte[] SNAPSHOT_MAGIC = { 'U', 'T', 'X', 'S' };
+    private static final int SNAPSHOT_VERSION = 1;
+    // Outputs written at a time when importing a snapshot.
+    private static final int IMPORT_BATCH_SIZE = 10000;
+    // No output script can be longer than a block, so neither can a record.
+    private static final int MAX_RECORD_LENGTH = UldBlock.MAX_BLOCK_SIZE;
+
+    // Serializes writes, so that checking what is stored and writing over it happens as one step. Reads go through
+    // LevelDB snapshots and don't need it.
+    protected final ReentrantLock lock = Threading.lock("leveldbutxoprovider");
+
+    private final NetworkParameters params;
+    private final DB db;
+    private volatile int chainHeadHeight;
+
+    public LevelDBUTXOProvider(NetworkParameters params, File directory) throws UTXOProviderException {
+        this(params, directory, JniDBFactory.factory);
+    }
+
+    public LevelDBUTXOProvider(NetworkParameters params, File directory, DBFactory dbFactory) throws UTXOProviderException {
+        this.params = checkNotNull(params);
+        Options options = new Options();
+        options.createIfMissing();
+        try {
+            db = dbFactory.open(directory, options);
+            byte[] height = db.get(CHAIN_HEAD_KEY);
+            chainHeadHeight = height != null ? (int) Utils.readUint32(height, 0) : 0;
+            // Finish the swap of a snapshot that was fully read, or drop what was read of one that wasn't.
+            if (db.get(IMPORT_KEY) != null)
+                swapInStaged();
+            else
+                deleteAll(STAGED);
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    /**
+     * Adds an unspent output.
+     *
+     * @return false if an output with the same outpoint is already there, in which case nothing changes
+     */
+    public boolean add(UTXO utxo) throws UTXOProviderException {
+        byte[] key = outputKey(utxo.getHash(), utxo.getIndex());
+        lock.lock();
+        try {
+            if (db.get(key) != null)
+                return false;
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                put(batch, key, utxo);
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the output with the given outpoint, returning it, or null if it isn't there. */
+    @Nullable
+    public UTXO spend(Sha256Hash hash, long index) throws UTXOProviderException {
+        byte[] key = outputKey(hash, index);
+        lock.lock();
+        try {
+            byte[] record = db.get(key);
+            if (record == null)
+                return null;
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                delete(batch, key, record);
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+            return decode(key, record);
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds and spends outputs and moves the chain head, all at once, as when a block connects. An output added with
+     * the outpoint of one already there replaces it. Outputs both added and spent by the update, such as those of a
+     * transaction spent in the same block, end up spent. Outpoints spent that aren't there are ignored.
+     */
+    public void update(Collection<UTXO> added, Collection<TransactionOutPoint> spent, int chainHeadHeight)
+            throws UTXOProviderException {
+        lock.lock();
+        try {
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                // The batch can't be read back, so remember what it adds.
+                Map<ByteBuffer, byte[]> addedRecords = new HashMap<ByteBuffer, byte[]>();
+                for (UTXO utxo : added) {
+                    byte[] key = outputKey(utxo.getHash(), utxo.getIndex());
+                    ByteBuffer addedKey = ByteBuffer.wrap(key);
+                    byte[] replaced = addedRecords.containsKey(addedKey) ? addedRecords.get(addedKey) : db.get(key);
+                    // The replaced output's script may differ, so its index entry goes; a put of the same one wins.
+                    if (replaced != null)
+                        batch.delete(scriptKey(decodeProgram(replaced), key));
+                    addedRecords.put(addedKey, put(batch, key, utxo));
+                }
+                for (TransactionOutPoint outPoint : spent) {
+                    byte[] key = outputKey(outPoint.getHash(), outPoint.getIndex());
+                    byte[] record = addedRecords.remove(ByteBuffer.wrap(key));
+                    if (record == null)
+                        record = db.get(key);
+                    if (record != null)
+                        delete(batch, key, record);
+                }
+                batch.put(CHAIN_HEAD_KEY, heightBytes(chainHeadHeight));
+                db.write(batch);
+                this.chainHeadHeight = chainHeadHeight;
+            } finally {
+                batch.close();
+            }
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the output with the given outpoint, or null if it isn't there. */
+    @Nullable
+    public UTXO get(Sha256Hash hash, long index) throws UTXOProviderException {
+        byte[] key = outputKey(hash, index);
+        try {
+            byte[] record = db.get(key);
+            return record != null ? decode(key, record) : null;
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    public void setChainHeadHeight(int chainHeadHeight) throws UTXOProviderException {
+        lock.lock();
+        try {
+            db.put(CHAIN_HEAD_KEY, heightBytes(chainHeadHeight));
+            this.chainHeadHeight = chainHeadHeight;
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getChainHeadHeight() {
+        return chainHeadHeight;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /** Returns the outputs paying to any of the addresses, or all of them if the list is empty. */
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        final List<UTXO> outputs = new ArrayList<UTXO>();
+        visitOpenTransactionOutputs(addresses.isEmpty() ? UTXOFilter.ALL : UTXOFilter.forAddresses(addresses),
+                new Visitor() {
+                    @Override
+                    public boolean visit(UTXO utxo) {
+                        outputs.add(utxo);
+                        return true;
+                    }
+                });
+        return outputs;
+    }
+
+    @Override
+    public void visitOpenTransactionOutputs(UTXOFilter filter, Visitor visitor) throws UTXOProviderException {
+        scan(filter, null, visitor);
+    }
+
+    /** Pages through the outputs in key order, the cursor being the smallest key after the last one of the page. */
+    @Override
+    public Page getOpenTransactionOutputs(UTXOFilter filter, @Nullable byte[] cursor, int limit)
+            throws UTXOProviderException {
+        checkArgument(limit > 0, "limit must be positive");
+        final int max = limit;
+        final List<UTXO> outputs = new ArrayList<UTXO>(Math.min(limit, 1024));
+        byte[] nextCursor = scan(filter, cursor, new Visitor() {
+            @Override
+            public boolean visit(UTXO utxo) {
+                outputs.add(utxo);
+                return outputs.size() < max;
+            }
+        });
+        return new Page(outputs, nextCursor);
+    }
+
+    /**
+     * Visits the outputs that pass the filter, starting at the given key, until the visitor stops. Returns the smallest
+     * key after the last one visited if the visitor stopped, or null if every output was visited.
+     */
+    @Nullable
+    private byte[] scan(UTXOFilter filter, @Nullable byte[] from, Visitor visitor) throws UTXOProviderException {
+        checkArgument(from == null || from.length > 0, "empty cursor");
+        int height = chainHeadHeight;
+        int depth = params.getSpendableCoinbaseDepth();
+        // Read everything as of the same moment.
+        Snapshot snapshot = db.getSnapshot();
+        ReadOptions options = new ReadOptions().snapshot(snapshot);
+        DBIterator iterator = db.iterator(options);
+        try {
+            Set<Sha256Hash> scriptHashes = filter.getScriptHashes();
+            if (scriptHashes == null) {
+                checkArgument(from == null || from[0] == OUTPUT, "not a cursor of this filter");
+                iterator.seek(from != null ? from : new byte[] { OUTPUT });
+                while (iterator.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.next();
+                    byte[] key = entry.getKey();
+                    if (key[0] != OUTPUT)
+                        break;
+                    UTXO utxo = decode(key, entry.getValue());
+                    if (filter.matches(utxo, null, height, depth) && !visitor.visit(utxo))
+                        return after(key);
+                }
+                return null;
+            }
+            // One run of index keys per script, in key order so that a cursor tells which runs are done.
+            List<byte[]> prefixes = new ArrayList<byte[]>(scriptHashes.size());
+            for (Sha256Hash scriptHash : scriptHashes)
+                prefixes.add(scriptPrefix(scriptHash));
+            Collections.sort(prefixes, UnsignedBytes.lexicographicalComparator());
+            checkArgument(from == null || from[0] == SCRIPT, "not a cursor of this filter");
+            for (byte[] prefix : prefixes) {
+                int order = from == null ? 1 : compare(prefix, from, prefix.length);
+                if (order < 0)
+                    continue;
+                Sha256Hash scriptHash = Sha256Hash.wrap(Arrays.copyOfRange(prefix, 1, 33));
+                iterator.seek(order == 0 ? from : prefix);
+                while (iterator.hasNext()) {
+                    byte[] indexKey = iterator.next().getKey();
+                    if (compare(prefix, indexKey, prefix.length) != 0)
+                        break;
+                    byte[] key = new byte[1 + UTXOIndex.OUTPOINT_LENGTH];
+                    key[0] = OUTPUT;
+                    System.arraycopy(indexKey, prefix.length, key, 1, UTXOIndex.OUTPOINT_LENGTH);
+                    byte[] record = db.get(key, options);
+                    if (record == null)
+                        continue;
+                    UTXO utxo = decode(key, record);
+                    // Only trust the index entry if the output really has the script, so a stale entry can't let an
+                    // output through, or visit it twice.
+                    if (!UTXOFilter.scriptHash(utxo.getScript().getProgram()).equals(scriptHash))
+                        continue;
+                    if (filter.matches(utxo, scriptHash, height, depth) && !visitor.visit(utxo))
+                        return after(indexKey);
+                }
+            }
+            return null;
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            try {
+                iterator.close();
+                snapshot.close();
+            } catch (IOException e) {
+                throw new UTXOProviderException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes every output, and the chain head height, to the stream as they are at the time of the call. Outputs are
+     * read and written one at a time, so exporting takes no more memory however many there are.
+     */
+    public void exportSnapshot(OutputStream stream) throws UTXOProviderException, IOException {
+        Snapshot snapshot = db.getSnapshot();
+        ReadOptions options = new ReadOptions().snapshot(snapshot);
+        DBIterator iterator = db.iterator(options);
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] height = db.get(CHAIN_HEAD_KEY, options);
+            stream.write(SNAPSHOT_MAGIC);
+            stream.write(SNAPSHOT_VERSION);
+            CompactUTXOCodec.writeVarLong(buffer, height != null ? Utils.readUint32(height, 0) : 0);
+            buffer.writeTo(stream);
+            iterator.seek(new byte[] { OUTPUT });
+            while (iterator.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                byte[] key = entry.getKey();
+                if (key[0] != OUTPUT)
+                    break;
+                byte[] record = entry.getValue();
+                stream.write(1);
+                stream.write(key, 1, UTXOIndex.OUTPOINT_LENGTH);
+                buffer.reset();
+                CompactUTXOCodec.writeVarLong(buffer, record.length);
+                buffer.writeTo(stream);
+                stream.write(record);
+            }
+            stream.write(0);
+            stream.flush();
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            iterator.close();
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Replaces every output, and the chain head height, with those of a snapshot written by
+     * {@link #exportSnapshot(OutputStream)}. Outputs are read and written in batches, so importing takes no more
+     * memory however many there are. The snapshot is read in full, and every record of it decoded, before any output
+     * is replaced, so if it is cut short or corrupt the provider is left as it was. Reads running while the snapshot
+     * is swapped in may see part of the old outputs and part of the new ones.
+     *
+     * @throws UTXOProviderException if the snapshot is corrupt or the database fails
+     * @throws IOException if the stream fails or ends before the snapshot does
+     */
+    public void importSnapshot(InputStream stream) throws UTXOProviderException, IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, SNAPSHOT_MAGIC))
+            throw new UTXOProviderException("Not a UTXO snapshot");
+        int version = in.readUnsignedByte();
+        if (version != SNAPSHOT_VERSION)
+            throw new UTXOProviderException("Unsupported UTXO snapshot version " + version);
+        long height = readVarLong(in);
+        if (height < 0 || height > Integer.MAX_VALUE)
+            throw new UTXOProviderException("Corrupt UTXO snapshot: chain head height " + height);
+        lock.lock();
+        try {
+            boolean staged = false;
+            try {
+                stage(in, (int) height);
+                staged = true;
+            } finally {
+                if (!staged)
+                    deleteAll(STAGED);
+            }
+            swapInStaged();
+        } catch (DBException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the outputs of the snapshot beside the current ones, checking that each of them decodes, then marks the
+     * snapshot as ready to be swapped in.
+     */
+    private void stage(DataInputStream in, int height) throws UTXOProviderException, IOException {
+        WriteBatch batch = db.createWriteBatch();
+        try {
+            int pending = 0;
+            int tag;
+            while ((tag = in.readUnsignedByte()) != 0) {
+                if (tag != 1)
+                    throw new UTXOProviderException("Corrupt UTXO snapshot: unexpected byte " + tag);
+                byte[] key = new byte[1 + UTXOIndex.OUTPOINT_LENGTH];
+                key[0] = STAGED;
+                in.readFully(key, 1, UTXOIndex.OUTPOINT_LENGTH);
+                long length = readVarLong(in);
+                if (length < 0 || length > MAX_RECORD_LENGTH)
+                    throw new UTXOProviderException("Corrupt UTXO snapshot: record of " + length + " bytes");
+                byte[] record = new byte[(int) length];
+                in.readFully(record);
+                decode(key, record);
+                batch.put(key, record);
+                if (++pending == IMPORT_BATCH_SIZE) {
+                    db.write(batch);
+                    batch.close();
+                    batch = db.createWriteBatch();
+                    pending = 0;
+                }
+            }
+            batch.put(IMPORT_KEY, importMarker(height, CLEARING));
+            db.write(batch);
+        } finally {
+            batch.close();
+        }
+    }
+
+    /**
+     * Replaces the outputs with the staged ones and moves the chain head to the height of the snapshot. The marker
+     * tells how far this got, so that it can be run again from where it stopped.
+     */
+    private void swapInStaged() throws UTXOProviderException, IOException {
+        byte[] marker = db.get(IMPORT_KEY);
+        byte[] height = Arrays.copyOf(marker, 4);
+        if (marker[4] == CLEARING) {
+            deleteAll(OUTPUT);
+            deleteAll(SCRIPT);
+            db.put(IMPORT_KEY, importMarker((int) Utils.readUint32(height, 0), MOVING));
+        }
+        // Each batch moves outputs over whole, so the staged ones left are exactly those still to move.
+        DBIterator iterator = db.iterator();
+        try {
+            iterator.seek(new byte[] { STAGED });
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                int pending = 0;
+                while (iterator.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.next();
+                    byte[] stagedKey = entry.getKey();
+                    if (stagedKey[0] != STAGED)
+                        break;
+                    byte[] key = Arrays.copyOf(stagedKey, stagedKey.length);
+                    key[0] = OUTPUT;
+                    byte[] record = entry.getValue();
+                    batch.delete(stagedKey);
+                    batch.put(key, record);
+                    batch.put(scriptKey(decodeProgram(record), key), EMPTY);
+                    if (++pending == IMPORT_BATCH_SIZE) {
+                        db.write(batch);
+                        batch.close();
+                        batch = db.createWriteBatch();
+                        pending = 0;
+                    }
+                }
+                batch.put(CHAIN_HEAD_KEY, height);
+                batch.delete(IMPORT_KEY);
+                db.write(batch);
+                chainHeadHeight = (int) Utils.readUint32(height, 0);
+            } finally {
+                batch.close();
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    /** Closes the database. The provider can't be used afterwards. */
+    public void close() throws UTXOProviderException {
+        try {
+            db.close();
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    /** Deletes every key starting with the given byte. */
+    private void deleteAll(byte prefix) throws IOException {
+        DBIterator iterator = db.iterator();
+        try {
+            iterator.seek(new byte[] { prefix });
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                int pending = 0;
+                while (iterator.hasNext()) {
+                    byte[] key = iterator.next().getKey();
+                    if (key[0] != prefix)
+                        break;
+                    batch.delete(key);
+                    if (++pending == IMPORT_BATCH_SIZE) {
+                        db.write(batch);
+                        batch.close();
+                        batch = db.createWriteBatch();
+                        pending = 0;
+                    }
+                }
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    /** Puts the output and its script index entry in the batch, returning its record. */
+    private static byte[] put(WriteBatch batch, byte[] key, UTXO utxo) {
+        byte[] record = CompactUTXOCodec.encode(utxo);
+        batch.put(key, record);
+        batch.put(scriptKey(utxo.getScript().getProgram(), key), EMPTY);
+        return record;
+    }
+
+    private static void delete(WriteBatch batch, byte[] key, byte[] record) throws UTXOProviderException {
+        batch.delete(key);
+        batch.delete(scriptKey(decodeProgram(record), key));
+    }
+
+    /** Decodes the record stored under the given key, whatever its first byte. */
+    private static UTXO decode(byte[] key, byte[] record) throws UTXOProviderException {
+        try {
+            return CompactUTXOCodec.decode(key, 1, record);
+        } catch (RuntimeException e) {
+            throw new UTXOProviderException("Corrupt record under " + Utils.HEX.encode(key), e);
+        }
+    }
+
+    private static byte[] decodeProgram(byte[] record) throws UTXOProviderException {
+        try {
+            return CompactUTXOCodec.decodeProgram(record);
+        } catch (RuntimeException e) {
+            throw new UTXOProviderException("Corrupt record", e);
+        }
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[1 + UTXOIndex.OUTPOINT_LENGTH];
+        key[0] = OUTPUT;
+        UTXOIndex.writeOutPoint(hash, index, key, 1);
+        return key;
+    }
+
+    private static byte[] scriptPrefix(Sha256Hash scriptHash) {
+        byte[] prefix = new byte[33];
+        prefix[0] = SCRIPT;
+        System.arraycopy(scriptHash.getBytes(), 0, prefix, 1, 32);
+        return prefix;
+    }
+
+    private static byte[] scriptKey(byte[] program, byte[] outputKey) {
+        byte[] key = Arrays.copyOf(scriptPrefix(UTXOFilter.scriptHash(program)), 33 + UTXOIndex.OUTPOINT_LENGTH);
+        System.arraycopy(outputKey, 1, key, 33, UTXOIndex.OUTPOINT_LENGTH);
+        return key;
+    }
+
+    private static byte[] heightBytes(int height) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayLE(height, bytes, 0);
+        return bytes;
+    }
+
+    private static byte[] importMarker(int height, int step) {
+        byte[] marker = Arrays.copyOf(heightBytes(height), 5);
+        marker[4] = (byte) step;
+        return marker;
+    }
+
+    /** Returns the smallest key greater than the given one. */
+    private static byte[] after(byte[] key) {
+        return Arrays.copyOf(key, key.length + 1);
+    }
+
+    /** Compares the first length bytes of both arrays, the second one being cut short counting as smaller. */
+    private static int compare(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (i >= b.length)
+                return 1;
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 63)
+                throw new IOException("Varint too long");
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package co.usc.ulordj.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of heap buffers for code that serializes the same kind of messages over and over, such as a relay path,
+ * and would otherwise allocate and throw away a buffer for each of them.</p>
+ *
+ * <p>Buffers are kept in buckets of power of two capacities, so a buffer handed out may be larger than asked for, but
+ * its limit is always set to the requested size. Requests larger than the largest bucket are served by a fresh buffer
+ * which is not pooled when released. Each bucket holds at most a fixed number of idle buffers.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class ByteBufferPool {
+    private static final int MIN_CAPACITY_BITS = 8;
+
+    private final int maxBufferSize;
+    private final int maxIdlePerBucket;
+    private final List<ArrayDeque<ByteBuffer>> buckets;
+
+    /**
+     * @param maxBufferSize largest buffer capacity that is pooled, rounded up to a power of two
+     * @param maxIdlePerBucket how many released buffers of each capacity are kept around
+     */
+    public ByteBufferPool(int maxBufferSize, int maxIdlePerBucket) {
+        checkArgument(maxBufferSize > 0 && maxBufferSize <= 1 << 30, "maxBufferSize out of range");
+        checkArgument(maxIdlePerBucket >= 0, "maxIdlePerBucket must not be negative");
+        int bucketCount = Math.max(bucketOf(maxBufferSize), 0) + 1;
+        this.maxBufferSize = 1 << (bucketCount - 1 + MIN_CAPACITY_BITS);
+        this.maxIdlePerBucket = maxIdlePerBucket;
+        this.buckets = new ArrayList<ArrayDeque<ByteBuffer>>(bucketCount);
+        for (int i = 0; i < bucketCount; i++)
+            buckets.add(new ArrayDeque<ByteBuffer>());
+    }
+
+    /** Returns a cleared buffer whose limit is {@code size} and whose position is zero. */
+    public ByteBuffer acquire(int size) {
+        checkArgument(size >= 0, "size must not be negative");
+        if (size > maxBufferSize)
+            return ByteBuffer.allocate(size);
+        int bucket = bucketOf(size);
+        ByteBuffer buf;
+        ArrayDeque<ByteBuffer> idle = buckets.get(bucket);
+        synchronized (idle) {
+            buf = idle.pollFirst();
+        }
+        if (buf == null)
+            buf = ByteBuffer.allocate(1 << (bucket + MIN_CAPACITY_BITS));
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Hands a buffer obtained from {@link #acquire(int)} back to the pool. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (!buf.hasArray() || capacity > maxBufferSize || Integer.bitCount(capacity) != 1 ||
+                capacity < 1 << MIN_CAPACITY_BITS)
+            return;
+        ArrayDeque<ByteBuffer> idle = buckets.get(bucketOf(capacity));
+        synchronized (idle) {
+            if (idle.size() < maxIdlePerBucket)
+                idle.addFirst(buf);
+        }
+    }
+
+    /** Index of the smallest bucket holding buffers of at least the given size. */
+    private static int bucketOf(int size) {
+        if (size <= 1 << MIN_CAPACITY_BITS)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CAPACITY_BITS;
+    }
+}
@@ -0,0 +1,69 @@
+package co.usc.ulordj.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Runs a piece of work on several threads at once, the calling thread being one of them, and returns once every
+ * thread is done. The work is expected to take its share from a counter shared by the threads until there's none
+ * left, so it gets done however many threads end up running it: a thread that starts late finds less to do, and if
+ * the executor rejects a task, or runs it on the calling thread, the threads there are do it all.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple threads.</p>
+ */
+public class ParallelRunner {
+    private final Executor executor;
+    private final int parallelism;
+
+    /** Creates a runner that uses {@link Threading#THREAD_POOL} and one thread per available processor. */
+    public ParallelRunner() {
+        this(Threading.THREAD_POOL, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param executor runs the work besides the calling thread
+     * @param parallelism the most threads to run the work at the same time, counting the calling thread
+     */
+    public ParallelRunner(Executor executor, int parallelism) {
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        this.executor = checkNotNull(executor);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Runs the work on as many threads as the parallelism allows but no more than maxWorkers, which is the number of
+     * shares the work can be split in, and waits for all of them to finish. Whatever the work throws on the calling
+     * thread is thrown once the other threads are done; it must catch what it throws on the others itself.
+     */
+    public void run(int maxWorkers, final Runnable work) {
+        int workers = Math.min(parallelism, maxWorkers);
+        final CountDownLatch done = new CountDownLatch(Math.max(workers - 1, 0));
+        for (int i = 1; i < workers; i++) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work.run();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                done.countDown();
+            }
+        }
+        try {
+            work.run();
+        } finally {
+            Uninterruptibles.awaitUninterruptibly(done);
+        }
+    }
+}
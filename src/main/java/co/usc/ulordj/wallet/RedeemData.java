@@ -17,8 +17,10 @@
 package co.usc.ulordj.wallet;
 
 import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.script.RedeemScriptInfo;
 import co.usc.ulordj.script.Script;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -36,9 +38,12 @@ import static com.google.common.base.Preconditions.checkArgument;
 public class RedeemData {
     public final Script redeemScript;
     public final List<UldECKey> keys;
+    @Nullable private final RedeemScriptInfo redeemScriptInfo;
 
     private RedeemData(List<UldECKey> keys, Script redeemScript) {
         this.redeemScript = redeemScript;
+        this.redeemScriptInfo = redeemScript != null && redeemScript.isSentToMultiSig()
+                ? redeemScript.getRedeemScriptInfo() : null;
         List<UldECKey> sortedKeys = new ArrayList<UldECKey>(keys);
         Collections.sort(sortedKeys, UldECKey.PUBKEY_COMPARATOR);
         this.keys = sortedKeys;
@@ -57,6 +62,14 @@ public class RedeemData {
         return key != null ? new RedeemData(Collections.singletonList(key), program) : null;
     }
 
+    /**
+     * Returns the threshold, keys and hashes of the redeem script if it is a multisig program, or null if it's not.
+     */
+    @Nullable
+    public RedeemScriptInfo getRedeemScriptInfo() {
+        return redeemScriptInfo;
+    }
+
     /**
      * Returns the first key that has private bytes
      */
@@ -23,10 +23,12 @@ import net.jcip.annotations.*;
 import co.usc.ulordj.core.UldECKey;
 import co.usc.ulordj.script.*;
 import co.usc.ulordj.signers.*;
+import co.usc.ulordj.utils.Threading;
 import org.slf4j.*;
 
 import javax.annotation.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -72,6 +74,7 @@ public class Wallet
     implements KeyBag, TransactionBag {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
 
+    protected final ReentrantLock lock = Threading.lock("wallet");
 
     // A list of scripts watched by this wallet.
     @GuardedBy("keyChainGroupLock") private Set<Script> watchedScripts;
@@ -116,6 +119,8 @@ public class Wallet
         this.context = context;
         this.params = context.getParams();
         watchedScripts = Sets.newHashSet();
+        signers = new ArrayList<TransactionSigner>();
+        addTransactionSigner(new LocalTransactionSigner());
         // Use a linked hash map to ensure ordering of event listeners is correct.
         createTransientState();
     }
@@ -657,6 +662,33 @@ public class Wallet
         }
     }
 
+    /**
+     * <p>Adds given transaction signer to the list of signers. It will be added to the end of the signers list, so if
+     * this wallet already has some signers added, given signer will be executed after all of them.</p>
+     * <p>Transaction signer should be fully initialized before adding to the wallet, otherwise {@link IllegalStateException}
+     * will be thrown</p>
+     */
+    public void addTransactionSigner(TransactionSigner signer) {
+        lock.lock();
+        try {
+            if (signer.isReady())
+                signers.add(signer);
+            else
+                throw new IllegalStateException("Signers must be ready before being added");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<TransactionSigner> getTransactionSigners() {
+        lock.lock();
+        try {
+            return ImmutableList.copyOf(signers);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>Given a send request containing transaction, attempts to sign it's inputs. This method expects transaction
      * to have all necessary inputs connected or they will be ignored.</p>
@@ -698,6 +730,11 @@ public class Wallet
             }
 
             TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx);
+            // A copy, so the lock isn't held while the signers work.
+            for (TransactionSigner signer : getTransactionSigners()) {
+                if (!signer.signInputs(proposal, this))
+                    log.info("{} returned false for the tx", signer.getClass().getName());
+            }
 
             // resolve missing sigs if any
             new MissingSigResolutionSigner(req.missingSigsMode).signInputs(proposal, this);
@@ -1017,7 +1054,14 @@ public class Wallet
                     key = findKeyFromPubHash(script.getPubKeyHash());
                     checkNotNull(key, "Coin selection includes unspendable outputs");
                 } else if (script.isPayToScriptHash()) {
-                    redeemScript = findRedeemDataFromScriptHash(script.getPubKeyHash()).redeemScript;
+                    RedeemData redeemData = findRedeemDataFromScriptHash(script.getPubKeyHash());
+                    checkNotNull(redeemData, "Coin selection includes unspendable outputs");
+                    RedeemScriptInfo multiSig = redeemData.getRedeemScriptInfo();
+                    if (multiSig != null) {
+                        size += multiSig.getP2SHInputScriptSize();
+                        continue;
+                    }
+                    redeemScript = redeemData.redeemScript;
                     checkNotNull(redeemScript, "Coin selection includes unspendable outputs");
                 }
                 size += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
@@ -0,0 +1,155 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.params.UnitTestParams;
+import co.usc.ulordj.script.Script;
+import co.usc.ulordj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * What every {@link StreamingUTXOProvider} must do, run against each of them by a subclass that creates the provider
+ * and adds and spends outputs the way it does.
+ */
+public abstract class AbstractStreamingUTXOProviderTest {
+    protected static final NetworkParameters PARAMS = UnitTestParams.get();
+    protected static final Address[] ADDRESSES = new Address[4];
+    static {
+        for (int i = 0; i < ADDRESSES.length; i++)
+            ADDRESSES[i] = new UldECKey().toAddress(PARAMS);
+    }
+
+    /** Returns the provider under test, which is empty when the test starts. */
+    protected abstract StreamingUTXOProvider provider();
+
+    protected abstract boolean add(UTXO utxo) throws Exception;
+
+    protected abstract UTXO spend(Sha256Hash hash, long index) throws Exception;
+
+    protected abstract void setChainHeadHeight(int chainHeadHeight) throws Exception;
+
+    protected static UTXO utxo(int tx, int outputIndex, long value, int height, boolean coinbase, Script script) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) tx, (byte) (tx >> 8) }), outputIndex, Coin.valueOf(value),
+                height, coinbase, script);
+    }
+
+    protected static UTXO utxo(int tx, int outputIndex, long value, int height, boolean coinbase, Address address) {
+        return utxo(tx, outputIndex, value, height, coinbase, ScriptBuilder.createOutputScript(address));
+    }
+
+    protected static UTXO utxo(int tx, int outputIndex, long value, Address address) {
+        return utxo(tx, outputIndex, value, 10, false, address);
+    }
+
+    protected static Set<UTXO> collect(StreamingUTXOProvider provider, UTXOFilter filter) throws Exception {
+        final Set<UTXO> visited = new HashSet<UTXO>();
+        provider.visitOpenTransactionOutputs(filter, new StreamingUTXOProvider.Visitor() {
+            @Override
+            public boolean visit(UTXO utxo) {
+                assertTrue("visited twice: " + utxo, visited.add(utxo));
+                return true;
+            }
+        });
+        return visited;
+    }
+
+    /** Pages through every output passing the filter, returning them and checking none comes twice. */
+    protected static Set<UTXO> page(StreamingUTXOProvider provider, UTXOFilter filter, int limit) throws Exception {
+        Set<UTXO> paged = new HashSet<UTXO>();
+        byte[] cursor = null;
+        do {
+            StreamingUTXOProvider.Page page = provider.getOpenTransactionOutputs(filter, cursor, limit);
+            assertTrue(page.getOutputs().size() <= limit);
+            for (UTXO utxo : page.getOutputs())
+                assertTrue("paged twice: " + utxo, paged.add(utxo));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return paged;
+    }
+
+    @Test
+    public void addAndSpend() throws Exception {
+        List<UTXO> added = new ArrayList<UTXO>();
+        for (int i = 0; i < 100; i++)
+            added.add(utxo(i, i % 3, 1000 + i, ADDRESSES[i % ADDRESSES.length]));
+        for (UTXO utxo : added)
+            assertTrue(add(utxo));
+        // The outpoint is what counts.
+        assertFalse(add(utxo(5, 2, 1, ADDRESSES[0])));
+        UTXO spent = added.get(7);
+        assertEquals(spent, spend(spent.getHash(), spent.getIndex()));
+        assertNull(spend(spent.getHash(), spent.getIndex()));
+
+        Set<UTXO> expected = new HashSet<UTXO>(added);
+        expected.remove(spent);
+        assertEquals(expected, collect(provider(), UTXOFilter.ALL));
+        assertEquals(expected, new HashSet<UTXO>(provider().getOpenTransactionOutputs(new ArrayList<Address>())));
+        for (Address address : ADDRESSES) {
+            Set<UTXO> paying = new HashSet<UTXO>();
+            for (UTXO utxo : expected)
+                if (utxo.getScript().equals(ScriptBuilder.createOutputScript(address)))
+                    paying.add(utxo);
+            List<Address> addresses = Collections.singletonList(address);
+            assertEquals(paying, collect(provider(), UTXOFilter.forAddresses(addresses)));
+            assertEquals(paying, new HashSet<UTXO>(provider().getOpenTransactionOutputs(addresses)));
+        }
+    }
+
+    @Test
+    public void filters() throws Exception {
+        setChainHeadHeight(1000);
+        UTXO mature = utxo(1, 0, 5000, 1000 - PARAMS.getSpendableCoinbaseDepth() + 1, true, ADDRESSES[0]);
+        UTXO immature = utxo(2, 0, 5000, 1000 - PARAMS.getSpendableCoinbaseDepth() + 2, true, ADDRESSES[0]);
+        UTXO small = utxo(3, 0, 10, 999, false, ADDRESSES[1]);
+        UTXO other = utxo(4, 1, 700, 999, false, ADDRESSES[2]);
+        for (UTXO utxo : new UTXO[] { mature, immature, small, other })
+            assertTrue(add(utxo));
+
+        UTXOFilter matureOnly = UTXOFilter.ALL.excludingImmatureCoinbases();
+        assertEquals(new HashSet<UTXO>(Arrays.asList(mature, small, other)), collect(provider(), matureOnly));
+        assertEquals(new HashSet<UTXO>(Arrays.asList(mature, other)),
+                collect(provider(), matureOnly.withMinValue(Coin.valueOf(100))));
+        UTXOFilter first = UTXOFilter.forAddresses(Collections.singletonList(ADDRESSES[0]));
+        assertEquals(new HashSet<UTXO>(Arrays.asList(mature, immature)), collect(provider(), first));
+        assertEquals(Collections.singleton(mature), collect(provider(), first.excludingImmatureCoinbases()));
+
+        // The provider moves with the chain.
+        setChainHeadHeight(1001);
+        assertTrue(collect(provider(), matureOnly).contains(immature));
+    }
+
+    @Test
+    public void paging() throws Exception {
+        Set<UTXO> all = new HashSet<UTXO>();
+        for (int i = 0; i < 250; i++) {
+            UTXO utxo = utxo(i, 0, i, ADDRESSES[i % 2]);
+            assertTrue(add(utxo));
+            all.add(utxo);
+        }
+        for (int i = 0; i < 250; i += 3)
+            all.remove(spend(utxo(i, 0, 0, ADDRESSES[0]).getHash(), 0));
+
+        assertEquals(all, page(provider(), UTXOFilter.ALL, 40));
+        assertEquals(all, page(provider(), UTXOFilter.ALL, 7));
+        Set<UTXO> second = new HashSet<UTXO>();
+        Set<UTXO> large = new HashSet<UTXO>();
+        for (UTXO utxo : all) {
+            if (utxo.getScript().equals(ScriptBuilder.createOutputScript(ADDRESSES[1]))) {
+                second.add(utxo);
+                if (utxo.getValue().value >= 150)
+                    large.add(utxo);
+            }
+        }
+        UTXOFilter secondOnly = UTXOFilter.forAddresses(Collections.singletonList(ADDRESSES[1]));
+        assertEquals(second, page(provider(), secondOnly, 9));
+        assertEquals(large, page(provider(), secondOnly.withMinValue(Coin.valueOf(150)), 1));
+        assertEquals(all, page(provider(), UTXOFilter.forAddresses(Arrays.asList(ADDRESSES)), 13));
+    }
+}
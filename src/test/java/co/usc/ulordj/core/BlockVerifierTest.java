@@ -0,0 +1,121 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.params.UnitTestParams;
+import co.usc.ulordj.script.Script;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BlockVerifierTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Address ADDRESS = new UldECKey().toAddress(PARAMS);
+    private static final EnumSet<UldBlock.VerifyFlag> FLAGS = EnumSet.noneOf(UldBlock.VerifyFlag.class);
+
+    private ExecutorService executor;
+    private BlockVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(PARAMS);
+        executor = Executors.newFixedThreadPool(3);
+        verifier = new BlockVerifier(executor, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private static UldTransaction spend(int i) {
+        UldTransaction tx = new UldTransaction(PARAMS);
+        tx.addInput(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), i, new Script(new byte[] { 1, (byte) i }));
+        tx.addOutput(Coin.valueOf(1000 + i), ADDRESS);
+        return tx;
+    }
+
+    private static UldBlock block(UldTransaction... extra) {
+        UldBlock block = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(UldBlock.BLOCK_VERSION_GENESIS,
+                new UldECKey().getPubKey(), UldBlock.BLOCK_HEIGHT_GENESIS);
+        for (int i = 0; i < 300; i++)
+            block.addTransaction(i < extra.length && extra[i] != null ? extra[i] : spend(i), false);
+        return block;
+    }
+
+    /** Returns how the block is judged, making sure every way of checking it gives the same answer. */
+    private String verify(byte[] blockBytes) {
+        String expected = null;
+        for (boolean retain : new boolean[] { false, true }) {
+            for (boolean parallel : new boolean[] { false, true }) {
+                UldBlock block = PARAMS.getSerializer(retain).makeBlock(blockBytes);
+                String outcome = "ok";
+                try {
+                    if (parallel)
+                        verifier.verifyTransactions(block, UldBlock.BLOCK_HEIGHT_GENESIS, FLAGS);
+                    else
+                        block.verifyTransactions(UldBlock.BLOCK_HEIGHT_GENESIS, FLAGS);
+                } catch (RuntimeException e) {
+                    outcome = e.getClass().getName() + ": " + e.getMessage();
+                }
+                if (expected == null)
+                    expected = outcome;
+                assertEquals("retain " + retain + ", parallel " + parallel, expected, outcome);
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    public void valid() throws Exception {
+        assertEquals("ok", verify(block().ulordSerialize()));
+    }
+
+    @Test
+    public void firstInvalidTransactionReported() throws Exception {
+        UldTransaction[] extra = new UldTransaction[300];
+        UldTransaction duplicate = spend(150);
+        duplicate.addInput(duplicate.getInput(0).getOutpoint().getHash(), 150, new Script(new byte[] { 1, 2 }));
+        extra[150] = duplicate;
+        UldTransaction negative = spend(200);
+        negative.getOutput(0).setValue(Coin.valueOf(-1));
+        extra[200] = negative;
+        String outcome = verify(block(extra).ulordSerialize());
+        assertTrue(outcome, outcome.startsWith(VerificationException.DuplicatedOutPoint.class.getName()));
+
+        extra[150] = null;
+        outcome = verify(block(extra).ulordSerialize());
+        assertTrue(outcome, outcome.startsWith(VerificationException.NegativeValueOutput.class.getName()));
+
+        UldTransaction excessive = spend(250);
+        excessive.addOutput(PARAMS.getMaxMoney(), ADDRESS);
+        extra[200] = excessive;
+        outcome = verify(block(extra).ulordSerialize());
+        assertTrue(outcome, outcome.startsWith(VerificationException.ExcessiveValue.class.getName()));
+    }
+
+    @Test
+    public void blockChecksComeFirst() throws Exception {
+        UldTransaction[] extra = new UldTransaction[300];
+        UldTransaction coinbase = new UldTransaction(PARAMS);
+        coinbase.addInput(new TransactionInput(PARAMS, coinbase, new byte[] { 1, 2, 3 }));
+        coinbase.addOutput(Coin.COIN, ADDRESS);
+        extra[100] = coinbase;
+        UldTransaction negative = spend(20);
+        negative.getOutput(0).setValue(Coin.valueOf(-1));
+        extra[20] = negative;
+        assertEquals(VerificationException.class.getName() + ": TX 101 is coinbase when it should not be.",
+                verify(block(extra).ulordSerialize()));
+
+        // a byte changed in the last transaction breaks the merkle root
+        extra[100] = null;
+        byte[] bytes = block(extra).ulordSerialize();
+        bytes[bytes.length - 30] ^= 1;
+        String outcome = verify(bytes);
+        assertTrue(outcome, outcome.startsWith(VerificationException.class.getName() + ": Merkle hashes do not match"));
+    }
+}
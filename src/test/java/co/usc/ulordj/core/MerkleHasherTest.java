@@ -0,0 +1,94 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class MerkleHasherTest {
+    private ExecutorService executor;
+    private MerkleHasher parallel;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        parallel = new MerkleHasher(executor, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private static byte[] leaves(int count) {
+        byte[] leaves = new byte[count * 32];
+        new Random(count).nextBytes(leaves);
+        return leaves;
+    }
+
+    /** Builds the tree one node at a time, as it used to be built. */
+    private static List<byte[]> referenceTree(byte[] leaves, int count) {
+        List<byte[]> tree = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++)
+            tree.add(Arrays.copyOfRange(leaves, i * 32, i * 32 + 32));
+        int levelOffset = 0;
+        for (int levelSize = count; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                tree.add(Sha256Hash.hashTwice(tree.get(levelOffset + left), 0, 32, tree.get(levelOffset + right), 0, 32));
+            }
+            levelOffset += levelSize;
+        }
+        return tree;
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        for (int count : new int[] { 1, 2, 3, 7, 8, 100, MerkleHasher.PARALLEL_LEVEL_SIZE - 1,
+                MerkleHasher.PARALLEL_LEVEL_SIZE + 1, 5001 }) {
+            byte[] leaves = leaves(count);
+            List<byte[]> expected = referenceTree(leaves, count);
+            assertEquals(expected.size(), MerkleHasher.getTreeSize(count));
+            for (MerkleHasher hasher : new MerkleHasher[] { new MerkleHasher(), parallel }) {
+                byte[] tree = hasher.computeTree(leaves, count);
+                assertEquals(expected.size() * 32, tree.length);
+                for (int i = 0; i < expected.size(); i++)
+                    assertArrayEquals(count + " leaves, node " + i, expected.get(i),
+                            Arrays.copyOfRange(tree, i * 32, i * 32 + 32));
+                assertArrayEquals(count + " leaves", expected.get(expected.size() - 1),
+                        hasher.computeRoot(leaves.clone(), count));
+            }
+        }
+    }
+
+    @Test
+    public void rootLeftInArray() throws Exception {
+        byte[] leaves = leaves(MerkleHasher.PARALLEL_LEVEL_SIZE * 3);
+        byte[] root = parallel.computeRoot(leaves, MerkleHasher.PARALLEL_LEVEL_SIZE * 3);
+        assertArrayEquals(root, Arrays.copyOf(leaves, 32));
+    }
+
+    @Test
+    public void blockMerkleRoot() throws Exception {
+        Context context = new Context(UnitTestParams.get());
+        UldBlock genesis = context.getParams().getGenesisBlock();
+        List<byte[]> tree = genesis.getMerkleTree();
+        assertEquals(genesis.getMerkleRoot(), Sha256Hash.wrap(tree.get(tree.size() - 1)));
+        assertEquals(genesis.getTransactions().get(0).getHash(), Sha256Hash.wrap(tree.get(0)));
+
+        // A block without transactions has an empty tree.
+        UldBlock empty = new UldBlock(context.getParams(), 1, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0,
+                BigInteger.ZERO, new ArrayList<UldTransaction>());
+        assertTrue(empty.getMerkleTree().isEmpty());
+    }
+}
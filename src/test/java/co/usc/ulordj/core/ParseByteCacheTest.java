@@ -22,6 +22,7 @@ import co.usc.ulordj.params.TestNet3Params;
 import co.usc.ulordj.params.UnitTestParams;
 import co.usc.ulordj.store.UldBlockStore;
 import co.usc.ulordj.store.UldMemoryBlockStore;
+import co.usc.ulordj.utils.ByteBufferPool;
 import co.usc.ulordj.wallet.Wallet;
 import org.junit.Before;
 import org.junit.Test;
@@ -30,7 +31,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.List;
 
 import static co.usc.ulordj.core.Coin.*;
 import static co.usc.ulordj.core.Utils.HEX;
@@ -153,6 +156,79 @@ public class ParseByteCacheTest {
         testBlock(b1BytesWithHeader, false, true);
     }
 
+    @Test
+    public void testBlockLazyTransactions() throws Exception {
+        UldBlock bRef = (UldBlock) PARAMS.getSerializer(false).deserialize(ByteBuffer.wrap(b1BytesWithHeader));
+        UldBlock b1 = (UldBlock) PARAMS.getSerializer(true).deserialize(ByteBuffer.wrap(b1BytesWithHeader));
+        assertEquals(bRef.getOptimalEncodingMessageSize(), b1.getOptimalEncodingMessageSize());
+
+        // merkle tree is hashed from the retained transaction bytes
+        List<byte[]> refTree = bRef.getMerkleTree();
+        List<byte[]> tree = b1.getMerkleTree();
+        assertEquals(refTree.size(), tree.size());
+        for (int i = 0; i < tree.size(); i++)
+            assertArrayEquals(refTree.get(i), tree.get(i));
+        assertEquals(b1.getMerkleRoot(), Sha256Hash.wrap(tree.get(tree.size() - 1)));
+
+        // single transactions are parsed on demand and stay the same instance afterwards
+        List<UldTransaction> transactions = b1.getTransactions();
+        assertEquals(bRef.getTransactions().size(), transactions.size());
+        UldTransaction tx = b1.getTransaction(1);
+        assertSame(tx, transactions.get(1));
+        assertEquals(bRef.getTransaction(1), tx);
+        assertTrue(tx.isCached());
+        assertTrue(b1.isTransactionBytesValid());
+        serDeser(PARAMS.getSerializer(true), b1, b1BytesWithHeader, null, null);
+
+        // modifying the block swaps in a plain list holding the already parsed transactions
+        UldTransaction extra = createFakeTx(PARAMS, COIN, new UldECKey().toAddress(PARAMS));
+        b1.addTransaction(extra);
+        bRef.addTransaction(extra);
+        assertSame(tx, b1.getTransaction(1));
+        assertEquals(bRef.getTransactions().size(), b1.getTransactions().size());
+        assertEquals(bRef.getMerkleRoot(), b1.getMerkleRoot());
+        assertArrayEquals(bRef.ulordSerialize(), b1.ulordSerialize());
+    }
+
+    @Test
+    public void testSerializeToBuffer() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(1 << 16, 2);
+        for (boolean retain : new boolean[] { false, true }) {
+            UlordSerializer bs = PARAMS.getSerializer(retain);
+            for (byte[] messageBytes : new byte[][] { b1BytesWithHeader, tx1BytesWithHeader, tx2BytesWithHeader }) {
+                Message message = bs.deserialize(ByteBuffer.wrap(messageBytes));
+                byte[] expected = message.ulordSerialize();
+
+                // little endian fields must come out right whatever order the caller's buffer is in
+                ByteBuffer buf = ByteBuffer.allocate(expected.length + 1).order(ByteOrder.BIG_ENDIAN);
+                buf.put((byte) 1);
+                message.ulordSerialize(buf);
+                assertEquals(expected.length + 1, buf.position());
+                assertEquals(ByteOrder.BIG_ENDIAN, buf.order());
+                assertArrayEquals(expected, Arrays.copyOfRange(buf.array(), 1, buf.position()));
+
+                // and the same after the cached bytes are gone
+                if (message instanceof UldBlock) {
+                    ((UldBlock) message).setNonce(BigInteger.TEN);
+                    ((UldBlock) message).setNonce(BigInteger.ONE);
+                } else {
+                    ((UldTransaction) message).setLockTime(((UldTransaction) message).getLockTime());
+                }
+                buf.clear();
+                message.ulordSerialize(buf);
+                assertArrayEquals(message.ulordSerialize(), Arrays.copyOf(buf.array(), buf.position()));
+
+                ByteBuffer framed = bs.serialize(message, pool);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                bs.serialize(message, bos);
+                byte[] framedBytes = new byte[framed.remaining()];
+                framed.get(framedBytes);
+                assertArrayEquals(bos.toByteArray(), framedBytes);
+                pool.release(framed);
+            }
+        }
+    }
+
     @Test
     public void testCreateTransactionFromBytes() throws Exception {
         byte[] txData = HEX.decode("01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff2202e90304c5dad95a192f746573746e65742d706f6f6c322e756c6f72642e6f6e652f000000000250b6989a020000001976a9141098a6ed76a601874aac92b38207621be56f8e7088ac70b9bb06000000001976a914788541a7f20b86328ceb935e9a284a35ef58259788ac00000000");
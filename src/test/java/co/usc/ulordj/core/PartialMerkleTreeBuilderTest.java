@@ -0,0 +1,90 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PartialMerkleTreeBuilderTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private static List<Sha256Hash> leaves(int count) {
+        Random random = new Random(count);
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            leaves.add(Sha256Hash.wrap(hash));
+        }
+        return leaves;
+    }
+
+    private static Sha256Hash merkleRoot(List<Sha256Hash> leaves) {
+        byte[] flat = new byte[leaves.size() * 32];
+        for (int i = 0; i < leaves.size(); i++)
+            System.arraycopy(leaves.get(i).getReversedBytes(), 0, flat, i * 32, 32);
+        return Sha256Hash.wrapReversed(new MerkleHasher().computeRoot(flat, leaves.size()));
+    }
+
+    @Test
+    public void proofsOfManySetsFromOneTree() throws Exception {
+        for (int count : new int[] { 1, 2, 3, 7, 16, 101 }) {
+            List<Sha256Hash> leaves = leaves(count);
+            PartialMerkleTreeBuilder builder = new PartialMerkleTreeBuilder(leaves);
+            assertEquals(merkleRoot(leaves), builder.getMerkleRoot());
+            Random random = new Random(count);
+            for (int set = 0; set < 20; set++) {
+                List<Sha256Hash> matched = new ArrayList<Sha256Hash>();
+                for (Sha256Hash leaf : leaves)
+                    if (random.nextInt(4) < set % 3)
+                        matched.add(leaf);
+                PartialMerkleTree pmt = builder.build(PARAMS, matched);
+
+                List<Sha256Hash> extracted = new ArrayList<Sha256Hash>();
+                assertEquals(builder.getMerkleRoot(), pmt.getTxnHashAndMerkleRoot(extracted));
+                assertEquals(matched, extracted);
+
+                byte[] includeBits = new byte[(count + 7) / 8];
+                for (Sha256Hash hash : matched)
+                    Utils.setBitLE(includeBits, builder.indexOf(hash));
+                assertEquals(pmt, PartialMerkleTree.buildFromLeaves(PARAMS, includeBits, leaves));
+
+                // And it survives the wire.
+                PartialMerkleTree parsed = new PartialMerkleTree(PARAMS, pmt.ulordSerialize(), 0);
+                assertEquals(pmt, parsed);
+            }
+        }
+    }
+
+    @Test
+    public void nothingMatched() throws Exception {
+        List<Sha256Hash> leaves = leaves(5);
+        PartialMerkleTree pmt = new PartialMerkleTreeBuilder(leaves).build(PARAMS, Collections.<Sha256Hash>emptyList());
+        // Only the root, which has no match below.
+        assertEquals(Collections.singletonList(merkleRoot(leaves)), pmt.getHashes());
+        List<Sha256Hash> extracted = new ArrayList<Sha256Hash>();
+        assertEquals(merkleRoot(leaves), pmt.getTxnHashAndMerkleRoot(extracted));
+        assertTrue(extracted.isEmpty());
+    }
+
+    @Test
+    public void bitsPastLastTransactionIgnored() throws Exception {
+        List<Sha256Hash> leaves = leaves(3);
+        PartialMerkleTreeBuilder builder = new PartialMerkleTreeBuilder(leaves);
+        byte[] includeBits = new byte[] { (byte) 0xfa };
+        List<Sha256Hash> extracted = new ArrayList<Sha256Hash>();
+        builder.build(PARAMS, includeBits).getTxnHashAndMerkleRoot(extracted);
+        assertEquals(Arrays.asList(leaves.get(1)), extracted);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTransaction() throws Exception {
+        new PartialMerkleTreeBuilder(leaves(4)).build(PARAMS, leaves(5));
+    }
+}
@@ -0,0 +1,159 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.params.UnitTestParams;
+import co.usc.ulordj.script.Script;
+import co.usc.ulordj.store.UldMemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SpvProofVerifierTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Address ADDRESS = new UldECKey().toAddress(PARAMS);
+
+    private ExecutorService executor;
+    private UldMemoryBlockStore store;
+    private SpvProofVerifier verifier;
+    // The best chain, genesis first.
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(PARAMS);
+        executor = Executors.newFixedThreadPool(3);
+        store = new UldMemoryBlockStore(PARAMS);
+        verifier = new SpvProofVerifier(store, executor, 4);
+        chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+        for (int i = 1; i <= 5; i++)
+            chain.add(add(chain.get(i - 1), i, 7 + i));
+        store.setChainHead(chain.get(5));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private StoredBlock add(StoredBlock prev, int seed, int txCount) throws Exception {
+        UldBlock block = prev.getHeader().createNextBlockWithCoinbase(UldBlock.BLOCK_VERSION_GENESIS,
+                new UldECKey().getPubKey(), prev.getHeight() + 1);
+        for (int i = 1; i < txCount; i++) {
+            UldTransaction tx = new UldTransaction(PARAMS);
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) seed, (byte) i }), i, new Script(new byte[] { 1, (byte) i }));
+            tx.addOutput(Coin.valueOf(1000 + i), ADDRESS);
+            block.addTransaction(tx, false);
+        }
+        StoredBlock stored = prev.build(block);
+        store.put(stored);
+        return stored;
+    }
+
+    private static List<Sha256Hash> txHashes(StoredBlock block) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (UldTransaction tx : block.getHeader().getTransactions())
+            hashes.add(tx.getHash());
+        return hashes;
+    }
+
+    private static SpvProofVerifier.Proof proof(StoredBlock block, int... txIndexes) {
+        List<Sha256Hash> hashes = txHashes(block);
+        List<Sha256Hash> matched = new ArrayList<Sha256Hash>();
+        for (int index : txIndexes)
+            matched.add(hashes.get(index));
+        PartialMerkleTree pmt = new PartialMerkleTreeBuilder(hashes).build(PARAMS, matched);
+        return new SpvProofVerifier.Proof(matched.get(0), pmt, block.getHeader().getHash());
+    }
+
+    @Test
+    public void validProofs() throws Exception {
+        List<SpvProofVerifier.Proof> proofs = new ArrayList<SpvProofVerifier.Proof>();
+        for (int height = 1; height <= 5; height++)
+            for (int tx = 0; tx < 7 + height; tx++)
+                proofs.add(proof(chain.get(height), tx, (tx + 3) % (7 + height)));
+        List<SpvProofVerifier.Result> results = verifier.verify(proofs);
+        assertEquals(proofs.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            SpvProofVerifier.Result result = results.get(i);
+            assertSame(proofs.get(i), result.getProof());
+            assertEquals(result.toString(), SpvProofVerifier.Status.VALID, result.getStatus());
+            assertEquals(6 - result.getHeight(), result.getConfirmations());
+        }
+        assertEquals(1, verifier.verify(proof(chain.get(5), 0)).getConfirmations());
+    }
+
+    @Test
+    public void transactionNotMatched() throws Exception {
+        SpvProofVerifier.Proof proof = proof(chain.get(3), 2);
+        SpvProofVerifier.Proof other = new SpvProofVerifier.Proof(txHashes(chain.get(3)).get(1),
+                proof.getPartialMerkleTree(), proof.getBlockHash());
+        assertEquals(SpvProofVerifier.Status.TRANSACTION_NOT_MATCHED, verifier.verify(other).getStatus());
+        assertEquals(0, verifier.verify(other).getConfirmations());
+    }
+
+    @Test
+    public void merkleRootMismatch() throws Exception {
+        SpvProofVerifier.Proof proof = proof(chain.get(3), 2);
+        SpvProofVerifier.Proof other = new SpvProofVerifier.Proof(proof.getTxHash(), proof.getPartialMerkleTree(),
+                chain.get(4).getHeader().getHash());
+        assertEquals(SpvProofVerifier.Status.MERKLE_ROOT_MISMATCH, verifier.verify(other).getStatus());
+    }
+
+    @Test
+    public void blockNotFoundOrNotInBestChain() throws Exception {
+        StoredBlock fork = add(chain.get(2), 100, 3);
+        SpvProofVerifier.Proof unknown = new SpvProofVerifier.Proof(Sha256Hash.ZERO_HASH,
+                proof(chain.get(1), 0).getPartialMerkleTree(), Sha256Hash.of(new byte[] { 1 }));
+        List<SpvProofVerifier.Result> results = verifier.verify(Arrays.asList(proof(fork, 1), unknown,
+                proof(chain.get(2), 1)));
+        assertEquals(SpvProofVerifier.Status.NOT_IN_BEST_CHAIN, results.get(0).getStatus());
+        assertEquals(3, results.get(0).getHeight());
+        assertEquals(SpvProofVerifier.Status.BLOCK_NOT_FOUND, results.get(1).getStatus());
+        assertEquals(-1, results.get(1).getHeight());
+        assertEquals(SpvProofVerifier.Status.VALID, results.get(2).getStatus());
+        assertEquals(4, results.get(2).getConfirmations());
+    }
+
+    @Test
+    public void invalidTrees() throws Exception {
+        SpvProofVerifier.Proof proof = proof(chain.get(4), 5);
+        PartialMerkleTree pmt = proof.getPartialMerkleTree();
+        List<PartialMerkleTree> broken = new ArrayList<PartialMerkleTree>();
+        // A hash too many, then a hash too few.
+        List<Sha256Hash> more = new ArrayList<Sha256Hash>(pmt.getHashes());
+        more.add(Sha256Hash.ZERO_HASH);
+        broken.add(new PartialMerkleTree(PARAMS, pmt.getMatchedChildBits(), more, pmt.getTransactionCount()));
+        broken.add(new PartialMerkleTree(PARAMS, pmt.getMatchedChildBits(),
+                pmt.getHashes().subList(0, pmt.getHashes().size() - 1), pmt.getTransactionCount()));
+        // No flag bits left.
+        broken.add(new PartialMerkleTree(PARAMS, new byte[1], pmt.getHashes(), pmt.getTransactionCount()));
+        // No transactions.
+        broken.add(new PartialMerkleTree(PARAMS, pmt.getMatchedChildBits(), pmt.getHashes(), 0));
+        // The same hash left and right.
+        List<Sha256Hash> leaves = txHashes(chain.get(1));
+        leaves.set(1, leaves.get(0));
+        byte[] includeBits = new byte[] { 1 };
+        broken.add(PartialMerkleTree.buildFromLeaves(PARAMS, includeBits, leaves));
+
+        for (PartialMerkleTree tree : broken) {
+            try {
+                tree.getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+                fail("tree should be invalid: " + tree);
+            } catch (VerificationException e) {
+                SpvProofVerifier.Result result = verifier.verify(Collections.singletonList(
+                        new SpvProofVerifier.Proof(proof.getTxHash(), tree, proof.getBlockHash()))).get(0);
+                assertEquals(SpvProofVerifier.Status.INVALID_TREE, result.getStatus());
+                assertEquals(e.getMessage(), result.getError().getMessage());
+            }
+        }
+    }
+}
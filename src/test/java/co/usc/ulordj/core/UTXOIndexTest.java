@@ -0,0 +1,132 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class UTXOIndexTest extends AbstractStreamingUTXOProviderTest {
+    private UTXOIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new UTXOIndex(PARAMS);
+        index.setChainHeadHeight(1000);
+    }
+
+    @Override
+    protected StreamingUTXOProvider provider() {
+        return index;
+    }
+
+    @Override
+    protected boolean add(UTXO utxo) {
+        return index.add(utxo);
+    }
+
+    @Override
+    protected UTXO spend(Sha256Hash hash, long index) {
+        return this.index.spend(hash, index);
+    }
+
+    @Override
+    protected void setChainHeadHeight(int chainHeadHeight) {
+        index.setChainHeadHeight(chainHeadHeight);
+    }
+
+    @Test
+    public void addAndSpendAgainstMap() throws Exception {
+        Random random = new Random(42);
+        Map<UTXO, UTXO> expected = new HashMap<UTXO, UTXO>();
+        long total = 0;
+        for (int round = 0; round < 20000; round++) {
+            UTXO utxo = utxo(random.nextInt(500), random.nextInt(8), 1 + random.nextInt(20),
+                    ADDRESSES[random.nextInt(ADDRESSES.length)]);
+            if (random.nextBoolean()) {
+                boolean added = !expected.containsKey(utxo);
+                assertEquals(added, index.add(utxo));
+                if (added) {
+                    expected.put(utxo, utxo);
+                    total += utxo.getValue().value;
+                }
+            } else {
+                UTXO spent = index.spend(utxo.getHash(), utxo.getIndex());
+                assertSame(expected.remove(utxo), spent);
+                if (spent != null)
+                    total -= spent.getValue().value;
+            }
+            assertEquals(expected.size(), index.size());
+        }
+        assertEquals(Coin.valueOf(total), index.getTotalValue());
+        for (UTXO utxo : expected.keySet())
+            assertSame(utxo, index.get(utxo.getHash(), utxo.getIndex()));
+        assertEquals(expected.keySet(), collect(index, UTXOFilter.ALL));
+        assertEquals(expected.keySet(), new HashSet<UTXO>(index.getOpenTransactionOutputs(new ArrayList<Address>())));
+
+        // The script chains hold the same outputs.
+        for (Address address : ADDRESSES) {
+            Set<UTXO> paying = new HashSet<UTXO>();
+            for (UTXO utxo : expected.keySet())
+                if (utxo.getScript().equals(ScriptBuilder.createOutputScript(address)))
+                    paying.add(utxo);
+            assertEquals(paying, collect(index, UTXOFilter.forAddresses(Collections.singletonList(address))));
+            assertEquals(paying, new HashSet<UTXO>(index.getOpenTransactionOutputs(Collections.singletonList(address))));
+        }
+
+        // And so do the value chains, in order.
+        final List<UTXO> byValue = new ArrayList<UTXO>();
+        index.visitByValue(UTXOFilter.ALL, true, new StreamingUTXOProvider.Visitor() {
+            @Override
+            public boolean visit(UTXO utxo) {
+                byValue.add(utxo);
+                return true;
+            }
+        });
+        assertEquals(expected.keySet(), new HashSet<UTXO>(byValue));
+        for (int i = 1; i < byValue.size(); i++)
+            assertFalse(byValue.get(i).getValue().isGreaterThan(byValue.get(i - 1).getValue()));
+    }
+
+    @Test
+    public void valueOfFilter() throws Exception {
+        index.add(utxo(1, 0, 5000, 1000 - PARAMS.getSpendableCoinbaseDepth() + 1, true, ADDRESSES[0]));
+        index.add(utxo(2, 0, 5000, 1000 - PARAMS.getSpendableCoinbaseDepth() + 2, true, ADDRESSES[0]));
+        index.add(utxo(3, 0, 10, 999, false, ADDRESSES[1]));
+        index.add(utxo(4, 1, 700, 999, false, ADDRESSES[2]));
+        assertEquals(Coin.valueOf(10710), index.getTotalValue());
+        assertEquals(Coin.valueOf(5710), index.getValue(UTXOFilter.ALL.excludingImmatureCoinbases()));
+        assertEquals(Coin.valueOf(5700),
+                index.getValue(UTXOFilter.ALL.excludingImmatureCoinbases().withMinValue(Coin.valueOf(100))));
+    }
+
+    @Test
+    public void outpointsAlikeButForTheirEnd() throws Exception {
+        // Transaction hashes that only differ past the bytes the table used to look at.
+        List<UTXO> utxos = new ArrayList<UTXO>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] hash = new byte[32];
+            Utils.uint32ToByteArrayBE(i, hash, 28);
+            UTXO utxo = new UTXO(Sha256Hash.wrap(hash), 0, Coin.valueOf(1000), 10, false,
+                    ScriptBuilder.createOutputScript(ADDRESSES[0]));
+            assertTrue(index.add(utxo));
+            utxos.add(utxo);
+        }
+        for (UTXO utxo : utxos)
+            assertSame(utxo, index.get(utxo.getHash(), 0));
+        for (int i = 0; i < utxos.size(); i += 2)
+            assertSame(utxos.get(i), index.spend(utxos.get(i).getHash(), 0));
+        for (int i = 0; i < utxos.size(); i++)
+            assertEquals(i % 2 == 1, index.contains(utxos.get(i).getHash(), 0));
+        assertEquals(2500, index.size());
+    }
+}
@@ -0,0 +1,110 @@
+package co.usc.ulordj.core;
+
+import co.usc.ulordj.params.UnitTestParams;
+import co.usc.ulordj.store.UldMemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static co.usc.ulordj.core.Coin.COIN;
+import static co.usc.ulordj.testing.FakeTxBuilder.createFakeBlock;
+import static co.usc.ulordj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class UldBlockStreamReaderTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private UldBlock block;
+    private byte[] blockBytes;
+    private byte[] messageBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        UldTransaction tx1 = createFakeTx(PARAMS, COIN, new UldECKey().toAddress(PARAMS));
+        UldTransaction tx2 = createFakeTx(PARAMS, COIN, new UldECKey().toAddress(PARAMS));
+        block = createFakeBlock(new UldMemoryBlockStore(PARAMS), UldBlock.BLOCK_HEIGHT_GENESIS, tx1, tx2).block;
+        blockBytes = block.ulordSerialize();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // some garbage in front of the magic should be skipped
+        bos.write(new byte[] { 1, 2, 3 });
+        PARAMS.getDefaultSerializer().serialize(block, bos);
+        messageBytes = bos.toByteArray();
+    }
+
+    @Test
+    public void readMessage() throws Exception {
+        RecordingVisitor visitor = new RecordingVisitor();
+        UldBlock header = new UldBlockStreamReader(PARAMS).readMessage(new ByteArrayInputStream(messageBytes), visitor);
+        assertEquals(block.getHash(), header.getHash());
+        assertNull(header.getTransactions());
+        visitor.check(block, blockBytes);
+    }
+
+    @Test
+    public void readBlockFromChannel() throws Exception {
+        RecordingVisitor visitor = new RecordingVisitor();
+        UldBlockStreamReader reader = new UldBlockStreamReader(PARAMS, PARAMS.getSerializer(true));
+        UldBlock header = reader.readBlock(Channels.newChannel(new ByteArrayInputStream(blockBytes)), visitor);
+        assertEquals(block.getHash(), header.getHash());
+        visitor.check(block, blockBytes);
+        // the reader can be reused
+        visitor = new RecordingVisitor();
+        reader.readBlock(new ByteArrayInputStream(blockBytes), visitor);
+        visitor.check(block, blockBytes);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void merkleRootMismatch() throws Exception {
+        // flip a byte of the coinbase input script, which changes its id but not the framing
+        byte[] bytes = blockBytes.clone();
+        bytes[UldBlock.HEADER_SIZE + 1 + 4 + 1 + 36 + 1]++;
+        new UldBlockStreamReader(PARAMS).readBlock(new ByteArrayInputStream(bytes), new RecordingVisitor());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void checksumMismatch() throws Exception {
+        byte[] bytes = messageBytes.clone();
+        bytes[bytes.length - 1]++;
+        new UldBlockStreamReader(PARAMS).readMessage(new ByteArrayInputStream(bytes), new RecordingVisitor());
+    }
+
+    private static class RecordingVisitor implements UldBlockStreamReader.TransactionVisitor {
+        final List<UldTransaction> transactions = new ArrayList<UldTransaction>();
+        final List<Sha256Hash> ids = new ArrayList<Sha256Hash>();
+        final List<long[]> ranges = new ArrayList<long[]>();
+        long transactionCount = -1;
+
+        @Override
+        public void onHeader(UldBlock header, long transactionCount) {
+            assertTrue(transactions.isEmpty());
+            this.transactionCount = transactionCount;
+        }
+
+        @Override
+        public void onTransaction(int index, UldTransaction tx, Sha256Hash txId, long offset, int length) {
+            assertEquals(transactions.size(), index);
+            transactions.add(tx);
+            ids.add(txId);
+            ranges.add(new long[] { offset, length });
+        }
+
+        void check(UldBlock block, byte[] blockBytes) {
+            List<UldTransaction> expected = block.getTransactions();
+            assertEquals(expected.size(), transactionCount);
+            assertEquals(expected, transactions);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getHash(), ids.get(i));
+                byte[] txBytes = expected.get(i).ulordSerialize();
+                byte[] slice = new byte[(int) ranges.get(i)[1]];
+                System.arraycopy(blockBytes, (int) ranges.get(i)[0], slice, 0, slice.length);
+                assertArrayEquals(txBytes, slice);
+            }
+        }
+    }
+}
@@ -18,6 +18,9 @@
 package co.usc.ulordj.core;
 
 import co.usc.ulordj.core.UldECKey.ECDSASignature;
+import co.usc.ulordj.crypto.LazyECPoint;
+import co.usc.ulordj.crypto.PublicKeyCache;
+import co.usc.ulordj.crypto.SignatureCache;
 import co.usc.ulordj.crypto.TransactionSignature;
 import co.usc.ulordj.params.MainNetParams;
 import co.usc.ulordj.params.TestNet3Params;
@@ -27,6 +30,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -95,6 +99,101 @@ public class UldECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void signatureCache() throws Exception {
+        SignatureCache original = UldECKey.getSignatureCache();
+        SignatureCache cache = new SignatureCache(2);
+        UldECKey.setSignatureCache(cache);
+        try {
+            UldECKey key = new UldECKey();
+            Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+            ECDSASignature sig = key.sign(hash);
+            assertTrue(key.verify(hash, sig));
+            assertEquals(0, cache.getHitCount());
+            assertEquals(1, cache.size());
+            assertTrue(key.verify(hash, sig));
+            assertTrue(UldECKey.verify(hash.getBytes(), sig.encodeToDER(), key.getPubKey()));
+            assertEquals(2, cache.getHitCount());
+
+            // failures aren't cached, and a hit needs all three of hash, signature and key to match
+            Sha256Hash otherHash = Sha256Hash.of(new byte[] { 2 });
+            assertFalse(key.verify(otherHash, sig));
+            assertFalse(new UldECKey().verify(hash, sig));
+            assertFalse(key.verify(hash, new ECDSASignature(sig.r, sig.s.add(BigInteger.ONE))));
+            assertEquals(1, cache.size());
+            assertEquals(2, cache.getHitCount());
+            assertEquals(4, cache.getMissCount());
+
+            // the cache is bounded
+            for (int i = 0; i < 5; i++) {
+                Sha256Hash h = Sha256Hash.of(new byte[] { (byte) (10 + i) });
+                assertTrue(key.verify(h, key.sign(h)));
+            }
+            assertTrue(cache.size() <= 2);
+
+            UldECKey.setSignatureCache(null);
+            assertTrue(key.verify(hash, sig));
+        } finally {
+            UldECKey.setSignatureCache(original);
+        }
+    }
+
+    @Test
+    public void publicKeyCache() throws Exception {
+        PublicKeyCache original = UldECKey.getPublicKeyCache();
+        PublicKeyCache cache = new PublicKeyCache(UldECKey.CURVE.getCurve(), UldECKey.CURVE.getN().bitLength(), 10, 3);
+        UldECKey.setPublicKeyCache(cache);
+        try {
+            UldECKey key = new UldECKey();
+            byte[] compressed = key.getPubKey();
+            byte[] uncompressed = key.decompress().getPubKey();
+            ECPoint first = UldECKey.decodePublicPoint(compressed);
+            assertEquals(UldECKey.CURVE.getCurve().decodePoint(compressed), first);
+            assertTrue(first.isCompressed());
+            assertFalse(UldECKey.decodePublicPoint(uncompressed).isCompressed());
+            assertNotSame(UldECKey.decodePublicPoint(uncompressed), UldECKey.decodePublicPoint(uncompressed));
+            assertEquals(3, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+
+            // keys become hot after a few uses and are then always handed out as the same point
+            assertFalse(cache.isHot(compressed));
+            Sha256Hash hash = null;
+            ECDSASignature sig = null;
+            for (int i = 0; i < 2; i++) {
+                hash = Sha256Hash.of(new byte[] { (byte) i });
+                sig = key.sign(hash);
+                assertTrue(UldECKey.verify(hash.getBytes(), sig.encodeToDER(), compressed));
+            }
+            assertTrue(cache.isHot(compressed));
+            assertSame(UldECKey.decodePublicPoint(compressed), UldECKey.decodePublicPoint(compressed));
+            assertTrue(UldECKey.verify(hash.getBytes(), sig.encodeToDER(), compressed));
+            assertFalse(UldECKey.verify(Sha256Hash.ZERO_HASH.getBytes(), sig.encodeToDER(), compressed));
+
+            // keys of scripts and lazily decoded keys go through the cache too
+            long misses = cache.getMissCount();
+            assertEquals(key.getPubKeyPoint(), UldECKey.fromPublicOnly(compressed).getPubKeyPoint());
+            assertEquals(key.getPubKeyPoint(), new LazyECPoint(UldECKey.CURVE.getCurve(), compressed).get());
+            assertEquals(misses, cache.getMissCount());
+
+            // invalid encodings aren't cached
+            byte[] invalid = compressed.clone();
+            invalid[0] = 5;
+            try {
+                UldECKey.decodePublicPoint(invalid);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertEquals(2, cache.size());
+
+            // the point at infinity decodes, but never verifies anything
+            assertTrue(UldECKey.decodePublicPoint(new byte[] { 0 }).isInfinity());
+            assertFalse(UldECKey.verify(hash.getBytes(), sig.encodeToDER(), new byte[] { 0 }));
+        } finally {
+            UldECKey.setPublicKeyCache(original);
+        }
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = HEX.decode(
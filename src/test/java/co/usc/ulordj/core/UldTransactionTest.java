@@ -49,6 +49,107 @@ public class UldTransactionTest {
         tx = FakeTxBuilder.createFakeTx(PARAMS);
     }
 
+    @Test
+    public void idsFromRetainedPayload() throws Exception {
+        UldTransaction witnessTx = new UldTransaction(PARAMS, tx.ulordSerialize());
+        TransactionWitness witness = new TransactionWitness(2);
+        witness.setPush(0, new byte[] { 1, 2, 3 });
+        witness.setPush(1, new byte[0]);
+        witnessTx.setWitness(0, witness);
+
+        for (UldTransaction original : new UldTransaction[] { tx, witnessTx }) {
+            byte[] bytes = original.ulordSerialize();
+            UldTransaction retained = PARAMS.getSerializer(true).makeTransaction(bytes);
+            assertTrue(retained.isCached());
+            assertEquals(original.getHash(), retained.getHash());
+            assertEquals(original.getHash(true), retained.getHash(true));
+            assertEquals(original.getHash(), new UldTransaction(PARAMS, bytes).getHash());
+        }
+        assertNotEquals(witnessTx.getHash(), witnessTx.getHash(true));
+
+        // changing the witness after parsing must not leave a stale payload behind
+        UldTransaction retained = PARAMS.getSerializer(true).makeTransaction(tx.ulordSerialize());
+        Sha256Hash txId = retained.getHash();
+        retained.setWitness(0, witness);
+        assertFalse(retained.isCached());
+        assertEquals(txId, retained.getHash());
+        assertEquals(witnessTx.getHash(true), retained.getHash(true));
+    }
+
+    @Test
+    public void sigOpCountFromBytes() throws Exception {
+        UldTransaction spend = new UldTransaction(PARAMS);
+        // CHECKSIG, a CHECKSIG inside a push, and a push running past the end that stops the count
+        spend.addInput(Sha256Hash.of(new byte[] { 1 }), 0, new Script(new byte[] {
+                (byte) ScriptOpCodes.OP_CHECKSIG, 1, (byte) ScriptOpCodes.OP_CHECKSIG }));
+        spend.addInput(new TransactionInput(PARAMS, spend, new byte[] {
+                (byte) ScriptOpCodes.OP_CHECKSIGVERIFY, 5, (byte) ScriptOpCodes.OP_CHECKSIG },
+                new TransactionOutPoint(PARAMS, 1, Sha256Hash.of(new byte[] { 2 }))));
+        List<UldECKey> keys = Arrays.asList(new UldECKey(), new UldECKey());
+        spend.addOutput(Coin.COIN, ScriptBuilder.createMultiSigOutputScript(1, keys));
+        spend.addOutput(Coin.COIN, ADDRESS);
+        assertEquals(1 + 1 + 20 + 1, spend.getSigOpCount());
+
+        byte[] bytes = spend.ulordSerialize();
+        byte[] padded = new byte[bytes.length + 10];
+        System.arraycopy(bytes, 0, padded, 7, bytes.length);
+        assertEquals(23, UldTransaction.getSigOpCount(padded, 7));
+        assertEquals(23, PARAMS.getSerializer(true).makeTransaction(bytes).getSigOpCount());
+
+        TransactionWitness witness = new TransactionWitness(1);
+        witness.setPush(0, new byte[] { (byte) ScriptOpCodes.OP_CHECKSIG });
+        spend.setWitness(0, witness);
+        assertTrue(spend.hasWitness());
+        assertEquals(23, UldTransaction.getSigOpCount(spend.ulordSerialize(), 0));
+    }
+
+    @Test
+    public void sigHashesFromCachedPieces() throws Exception {
+        UldTransaction spend = new UldTransaction(PARAMS);
+        for (int i = 0; i < 20; i++) {
+            TransactionInput input = spend.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new Script(new byte[0]));
+            input.setSequenceNumber(i);
+        }
+        for (int i = 0; i < 5; i++)
+            spend.addOutput(Coin.valueOf(1000 + i), ADDRESS);
+        spend.setLockTime(1234);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(ADDRESS).getProgram();
+        byte[] withSeparator = new ScriptBuilder().op(ScriptOpCodes.OP_CODESEPARATOR)
+                .data(new byte[] { 1, 2 }).build().getProgram();
+
+        for (byte sigHashType : new byte[] { 0, 1, 2, 3, 4, (byte) 0x81, (byte) 0x82, (byte) 0x83 }) {
+            for (int i = 0; i < spend.getInputs().size(); i++) {
+                assertEquals(spend.hashForSignatureOfCopy(i, connectedScript, sigHashType),
+                        spend.hashForSignature(i, connectedScript, sigHashType));
+                assertEquals(spend.hashForSignatureOfCopy(i, withSeparator, sigHashType),
+                        spend.hashForSignature(i, withSeparator, sigHashType));
+            }
+        }
+
+        // signing fills in input scripts one by one, which must not invalidate the cached pieces
+        Sha256Hash before = spend.hashForSignature(3, connectedScript, (byte) 1);
+        spend.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[71]).build());
+        assertNotNull(spend.sigHashCache);
+        assertEquals(before, spend.hashForSignature(3, connectedScript, (byte) 1));
+
+        // but anything else that is signed must
+        spend.getInput(1).setSequenceNumber(5);
+        assertNull(spend.sigHashCache);
+        assertNotEquals(before, spend.hashForSignature(3, connectedScript, (byte) 1));
+        assertEquals(spend.hashForSignatureOfCopy(3, connectedScript, (byte) 1),
+                spend.hashForSignature(3, connectedScript, (byte) 1));
+        spend.getOutput(0).setValue(Coin.valueOf(999));
+        assertEquals(spend.hashForSignatureOfCopy(3, connectedScript, (byte) 1),
+                spend.hashForSignature(3, connectedScript, (byte) 1));
+
+        // parsed transactions keep their payload, whose outpoints must not be used once changed
+        UldTransaction parsed = PARAMS.getSerializer(true).makeTransaction(spend.ulordSerialize());
+        parsed.hashForSignature(0, connectedScript, (byte) 1);
+        parsed.getInput(1).getOutpoint().setIndex(99);
+        assertEquals(parsed.hashForSignatureOfCopy(1, connectedScript, (byte) 1),
+                parsed.hashForSignature(1, connectedScript, (byte) 1));
+    }
+
     @Test(expected = VerificationException.EmptyInputsOrOutputs.class)
     public void emptyOutputs() throws Exception {
         tx.clearOutputs();
@@ -101,6 +101,84 @@ public class UlordSerializerTest {
         assertTrue(Arrays.equals(TRANSACTION_MESSAGE_BYTES, bos.toByteArray()));
     }
 
+    @Test
+    public void testParseFromBufferSlices() throws Exception {
+        MessageSerializer serializer = TestNet3Params.get().getDefaultSerializer();
+        UldTransaction expected = (UldTransaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+
+        // heap buffer whose backing array is larger than the message and starts at a nonzero position
+        byte[] padded = new byte[TRANSACTION_MESSAGE_BYTES.length + 10];
+        System.arraycopy(TRANSACTION_MESSAGE_BYTES, 0, padded, 7, TRANSACTION_MESSAGE_BYTES.length);
+        ByteBuffer heap = ByteBuffer.wrap(padded);
+        heap.position(7);
+        UldTransaction transaction = (UldTransaction) serializer.deserialize(heap.slice());
+        assertEquals(expected, transaction);
+        assertArrayEquals(expected.ulordSerialize(), transaction.ulordSerialize());
+
+        // direct buffers have no backing array and must be copied
+        ByteBuffer direct = ByteBuffer.allocateDirect(TRANSACTION_MESSAGE_BYTES.length);
+        direct.put(TRANSACTION_MESSAGE_BYTES).flip();
+        transaction = (UldTransaction) serializer.deserialize(direct);
+        assertFalse(direct.hasRemaining());
+        assertEquals(expected, transaction);
+        assertArrayEquals(expected.ulordSerialize(), transaction.ulordSerialize());
+
+        // retained payloads are detached from the caller's buffer
+        heap.position(7);
+        transaction = (UldTransaction) TestNet3Params.get().getSerializer(true).deserialize(heap.slice());
+        Arrays.fill(padded, (byte) 0);
+        assertEquals(expected, transaction);
+        assertArrayEquals(expected.getInput(0).getScriptBytes(), transaction.getInput(0).getScriptBytes());
+        assertEquals(expected.getInput(0).getOutpoint().getHash(), transaction.getInput(0).getOutpoint().getHash());
+        assertArrayEquals(expected.getOutput(0).getScriptBytes(), transaction.getOutput(0).getScriptBytes());
+    }
+
+    @Test
+    public void testFrameDecoderChunks() throws Exception {
+        MessageSerializer serializer = TestNet3Params.get().getDefaultSerializer();
+        UldTransaction expected = (UldTransaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        UlordFrameDecoder decoder = new UlordFrameDecoder(TestNet3Params.get().getSerializer(false));
+
+        // one byte at a time, with some garbage and a partial magic in front
+        byte[] stream = new byte[3 + TRANSACTION_MESSAGE_BYTES.length];
+        stream[0] = 1;
+        stream[1] = TRANSACTION_MESSAGE_BYTES[0];
+        stream[2] = TRANSACTION_MESSAGE_BYTES[1];
+        System.arraycopy(TRANSACTION_MESSAGE_BYTES, 0, stream, 3, TRANSACTION_MESSAGE_BYTES.length);
+        Message message = null;
+        for (int i = 0; i < stream.length; i++) {
+            assertNull(message);
+            message = decoder.decode(ByteBuffer.wrap(stream, i, 1));
+        }
+        assertEquals(expected, message);
+        assertTrue(decoder.isIdle());
+
+        // two messages in one chunk come out one after the other
+        ByteBuffer both = ByteBuffer.allocate(TRANSACTION_MESSAGE_BYTES.length * 2);
+        both.put(TRANSACTION_MESSAGE_BYTES).put(TRANSACTION_MESSAGE_BYTES).flip();
+        assertEquals(expected, decoder.decode(both));
+        assertEquals(TRANSACTION_MESSAGE_BYTES.length, both.remaining());
+        assertEquals(expected, decoder.decode(both));
+        assertNull(decoder.decode(both));
+
+        // a corrupted payload is skipped and the decoder recovers
+        byte[] corrupted = TRANSACTION_MESSAGE_BYTES.clone();
+        corrupted[corrupted.length - 1]++;
+        try {
+            decoder.decode(ByteBuffer.wrap(corrupted));
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+        assertEquals(expected, decoder.decode(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES)));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testFrameDecoderMaxSize() throws Exception {
+        UlordFrameDecoder decoder = new UlordFrameDecoder(TestNet3Params.get().getSerializer(false), 100);
+        decoder.decode(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+    }
+
    @Test(expected = BufferUnderflowException.class)
     public void testUlordPacketHeaderTooShort() {
         new UlordSerializer.UlordPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
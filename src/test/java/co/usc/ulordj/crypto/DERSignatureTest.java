@@ -0,0 +1,117 @@
+package co.usc.ulordj.crypto;
+
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.UldTransaction;
+import org.junit.Test;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.DERSequenceGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static co.usc.ulordj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class DERSignatureTest {
+    private static byte[] bouncyCastleEncoding(BigInteger r, BigInteger s) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(72);
+        DERSequenceGenerator seq = new DERSequenceGenerator(bos);
+        seq.addObject(new ASN1Integer(r));
+        seq.addObject(new ASN1Integer(s));
+        seq.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void encodeLikeBouncyCastle() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            // short values too, so that padding and lengths get exercised
+            BigInteger r = new BigInteger(1 + random.nextInt(256), random);
+            BigInteger s = new BigInteger(1 + random.nextInt(256), random);
+            byte[] expected = bouncyCastleEncoding(r, s);
+            assertArrayEquals(expected, DERSignature.encode(r, s));
+            byte[] withSighash = DERSignature.encode(r, s, 0x81);
+            assertArrayEquals(expected, Arrays.copyOf(withSighash, expected.length));
+            assertEquals((byte) 0x81, withSighash[withSighash.length - 1]);
+
+            UldECKey.ECDSASignature decoded = DERSignature.decode(withSighash, 0, withSighash.length);
+            assertEquals(r, decoded.r);
+            assertEquals(s, decoded.s);
+        }
+    }
+
+    @Test
+    public void strictRoundTrip() throws Exception {
+        UldECKey key = new UldECKey();
+        TransactionSignature sig = new TransactionSignature(key.sign(Sha256Hash.of(new byte[] {1})),
+                UldTransaction.SigHash.ALL, true);
+        byte[] encoded = sig.encodeToUlord();
+        byte[] padded = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, padded, 2, encoded.length);
+        TransactionSignature decoded = DERSignature.decodeTransactionSignature(padded, 2, encoded.length, true, true);
+        assertEquals(sig, decoded);
+        assertEquals((byte) sig.sighashFlags, (byte) decoded.sighashFlags);
+        assertTrue(DERSignature.isValidEncoding(padded, 2, encoded.length));
+
+        TransactionSignature high = new TransactionSignature(sig.r, UldECKey.CURVE.getN().subtract(sig.s));
+        byte[] highEncoded = high.encodeToUlord();
+        assertEquals(high, DERSignature.decodeTransactionSignature(highEncoded, 0, highEncoded.length, true, false));
+        try {
+            DERSignature.decodeTransactionSignature(highEncoded, 0, highEncoded.length, true, true);
+            fail();
+        } catch (DERSignature.SignatureDecodeException e) {
+            assertEquals("S-value is not canonical.", e.getMessage());
+        }
+        // exactly half the order is still low
+        TransactionSignature half = new TransactionSignature(sig.r, UldECKey.HALF_CURVE_ORDER);
+        byte[] halfEncoded = half.encodeToUlord();
+        assertEquals(half, DERSignature.decodeTransactionSignature(halfEncoded, 0, halfEncoded.length, true, true));
+    }
+
+    @Test
+    public void strictRejections() throws Exception {
+        String valid = "3006020101020101";
+        assertTrue(TransactionSignature.isEncodingCanonical(HEX.decode(valid + "01")));
+        assertStrictError(valid + "04", "Unknown sighash type 4.");
+        assertStrictError("3106020101020101" + "01", "Signature is not a DER sequence.");
+        assertStrictError("3007020101020101" + "01", "Signature sequence length does not match the signature length.");
+        assertStrictError("3006030101020101" + "01", "Signature R value is not an integer.");
+        assertStrictError("3006020181020101" + "01", "Signature R value is negative.");
+        assertStrictError("300702020001020101" + "01", "Signature R value is excessively padded.");
+        assertStrictError("300702020080020101" + "01", null);
+        assertStrictError("300702010102020001" + "01", "Signature S value is excessively padded.");
+        assertStrictError("3006020101020201" + "01", "Signature S length 2 does not match.");
+        assertStrictError("30060200020101" + "01", "Signature length 8 is out of range.");
+
+        // the lax decoding accepts some of them
+        byte[] padded = HEX.decode("300702020001020101");
+        assertEquals(BigInteger.ONE, DERSignature.decode(padded, 0, padded.length).r);
+        byte[] longForm = HEX.decode("30810602010102010101");
+        assertEquals(BigInteger.ONE, DERSignature.decode(longForm, 0, longForm.length).s);
+        byte[] negative = HEX.decode("3006020181020101");
+        assertEquals(BigInteger.valueOf(0x81), DERSignature.decode(negative, 0, negative.length).r);
+        try {
+            byte[] truncated = HEX.decode("30060201010201");
+            DERSignature.decode(truncated, 0, truncated.length);
+            fail();
+        } catch (DERSignature.SignatureDecodeException e) {
+            assertEquals("Signature sequence is longer than the signature.", e.getMessage());
+        }
+    }
+
+    private static void assertStrictError(String hex, String message) {
+        byte[] bytes = HEX.decode(hex);
+        try {
+            DERSignature.decodeTransactionSignature(bytes, 0, bytes.length, true, false);
+            if (message != null)
+                fail(hex);
+        } catch (DERSignature.SignatureDecodeException e) {
+            assertEquals(message, e.getMessage());
+        }
+        assertEquals(message == null, TransactionSignature.isEncodingCanonical(bytes));
+    }
+}
@@ -0,0 +1,130 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.*;
+import co.usc.ulordj.crypto.DERSignature;
+import co.usc.ulordj.crypto.TransactionSignature;
+import co.usc.ulordj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class MultiSigInputAssemblerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private List<UldECKey> keys;
+    private Script redeemScript;
+    private UldTransaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        keys = new ArrayList<UldECKey>();
+        for (int i = 0; i < 5; i++)
+            keys.add(new UldECKey());
+        Collections.sort(keys, UldECKey.PUBKEY_COMPARATOR);
+        redeemScript = ScriptBuilder.createRedeemScript(3, keys);
+
+        UldTransaction funding = new UldTransaction(PARAMS);
+        funding.addInput(Sha256Hash.of(new byte[] {1}), 0, new Script(new byte[0]));
+        funding.addOutput(Coin.COIN, ScriptBuilder.createP2SHOutputScript(redeemScript));
+        tx = new UldTransaction(PARAMS);
+        tx.addOutput(Coin.CENT, new UldECKey().toAddress(PARAMS));
+        tx.addInput(funding.getOutput(0));
+    }
+
+    private byte[] sign(int key) {
+        return tx.calculateSignature(0, keys.get(key), redeemScript, UldTransaction.SigHash.ALL, false)
+                .encodeToUlord();
+    }
+
+    @Test
+    public void slotsAndScript() throws Exception {
+        MultiSigInputAssembler assembler = new MultiSigInputAssembler(tx, 0, redeemScript, true);
+        assertEquals(3, assembler.getRequiredSignatures());
+        byte[] sig4 = sign(4);
+        assertEquals(4, assembler.addSignature(sig4));
+        assertEquals(4, assembler.addSignature(sig4));
+        assertEquals(1, assembler.getSignatureCount());
+        // a signature by a key that is not in the program matches nothing
+        byte[] foreign = tx.calculateSignature(0, new UldECKey(), redeemScript, UldTransaction.SigHash.ALL, false)
+                .encodeToUlord();
+        assertEquals(-1, assembler.addSignature(foreign));
+
+        // the partial script has placeholders, and keeps its signatures when read back
+        Script partial = assembler.buildScriptSig();
+        assertEquals(5, partial.getChunks().size());
+        assertTrue(partial.getChunks().get(2).equalsOpCode(0));
+        MultiSigInputAssembler reread = MultiSigInputAssembler.fromScriptSig(tx, 0, partial, redeemScript, true);
+        assertArrayEquals(sig4, reread.getSignature(4));
+
+        assertEquals(1, reread.putSignature(keys.get(1).getPubKey(), sign(1)));
+        assertEquals(-1, reread.putSignature(keys.get(1).getPubKey(), sign(1)));
+        assertEquals(2, reread.addSignature(sign(2)));
+        assertTrue(reread.isComplete());
+        // one more than needed is left out of the script
+        assertEquals(0, reread.addSignature(sign(0)));
+
+        Script scriptSig = reread.buildScriptSig();
+        assertEquals(ScriptBuilder.createMultiSigInputScriptBytes(
+                Arrays.asList(sign(0), sign(1), sign(2)), redeemScript.getProgram()), scriptSig);
+        tx.getInput(0).setScriptSig(scriptSig);
+        scriptSig.correctlySpends(tx, 0, ScriptBuilder.createP2SHOutputScript(redeemScript));
+    }
+
+    @Test
+    public void nonCanonicalSignaturesRejected() throws Exception {
+        TransactionSignature canonical = TransactionSignature.decodeFromUlord(sign(3), true, true);
+        byte[] highS = new TransactionSignature(canonical.r, UldECKey.CURVE.getN().subtract(canonical.s),
+                canonical.sighashFlags).encodeToUlord();
+        MultiSigInputAssembler assembler = new MultiSigInputAssembler(tx, 0, redeemScript, true);
+        try {
+            assembler.addSignature(highS);
+            fail();
+        } catch (DERSignature.SignatureDecodeException e) {
+            // expected
+        }
+        assertEquals(0, assembler.getSignatureCount());
+
+        // read back from an input script, it is left out
+        Script scriptSig = ScriptBuilder.createMultiSigInputScriptBytes(Arrays.asList(highS, sign(4)),
+                redeemScript.getProgram());
+        MultiSigInputAssembler reread = MultiSigInputAssembler.fromScriptSig(tx, 0, scriptSig, redeemScript, true);
+        assertEquals(1, reread.getSignatureCount());
+        assertNull(reread.getSignature(3));
+        assertNotNull(reread.getSignature(4));
+    }
+
+    @Test
+    public void concurrentAdds() throws Exception {
+        final MultiSigInputAssembler assembler = new MultiSigInputAssembler(tx, 0, redeemScript, true);
+        final List<byte[]> signatures = new ArrayList<byte[]>();
+        for (int i = 0; i < keys.size(); i++)
+            signatures.add(sign(i));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> slots = new ArrayList<Future<Integer>>();
+            for (int round = 0; round < 3; round++) {
+                for (final byte[] signature : signatures) {
+                    slots.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return assembler.addSignature(signature);
+                        }
+                    }));
+                }
+            }
+            for (int i = 0; i < slots.size(); i++)
+                assertEquals(i % keys.size(), (int) slots.get(i).get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(5, assembler.getSignatureCount());
+        Script scriptSig = assembler.buildScriptSig();
+        tx.getInput(0).setScriptSig(scriptSig);
+        scriptSig.correctlySpends(tx, 0, ScriptBuilder.createP2SHOutputScript(redeemScript));
+    }
+}
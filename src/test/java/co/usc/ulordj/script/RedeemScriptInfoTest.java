@@ -0,0 +1,70 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.ScriptException;
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.Utils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RedeemScriptInfoTest {
+    @Test
+    public void multiSig() throws Exception {
+        List<UldECKey> keys = new ArrayList<UldECKey>();
+        for (int i = 0; i < 5; i++)
+            keys.add(new UldECKey());
+        Script redeemScript = ScriptBuilder.createRedeemScript(3, keys);
+        Collections.sort(keys, UldECKey.PUBKEY_COMPARATOR);
+
+        RedeemScriptInfo info = redeemScript.getRedeemScriptInfo();
+        assertEquals(3, info.getThreshold());
+        assertEquals(5, info.getNumKeys());
+        assertFalse(info.isVerify());
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(keys.get(i).getPubKey(), info.getPubKeys().get(i));
+            assertEquals(i, info.getKeyIndex(keys.get(i).getPubKey()));
+            assertEquals(keys.get(i).getPubKeyPoint(), info.getKey(i).getPubKeyPoint());
+        }
+        assertEquals(-1, info.getKeyIndex(new UldECKey().getPubKey()));
+        assertArrayEquals(Utils.sha256hash160(redeemScript.getProgram()), info.getHash160());
+        assertArrayEquals(ScriptBuilder.createP2SHOutputScript(info.getHash160()).getProgram(),
+                info.getP2SHOutputScript().getProgram());
+        assertEquals(3 * Script.SIG_SIZE + redeemScript.getProgram().length, info.getP2SHInputScriptSize());
+
+        // the same program parsed again gets the same instance
+        Script parsed = new Script(redeemScript.getProgram());
+        assertSame(info, parsed.getRedeemScriptInfo());
+        assertSame(info, RedeemScriptInfo.of(redeemScript.getProgram()));
+        assertEquals(3, parsed.getNumberOfSignaturesRequiredToSpend());
+        List<UldECKey> pubKeys = parsed.getPubKeys();
+        for (int i = 0; i < keys.size(); i++)
+            assertArrayEquals(keys.get(i).getPubKey(), pubKeys.get(i).getPubKey());
+        assertArrayEquals(info.getP2SHOutputScript().getProgram(),
+                ScriptBuilder.createP2SHOutputScript(parsed).getProgram());
+    }
+
+    @Test
+    public void keysHandedOutAreCopies() throws Exception {
+        List<UldECKey> keys = new ArrayList<UldECKey>();
+        for (int i = 0; i < 3; i++)
+            keys.add(new UldECKey());
+        Script redeemScript = ScriptBuilder.createRedeemScript(2, keys);
+        RedeemScriptInfo info = redeemScript.getRedeemScriptInfo();
+        byte[] first = info.getPubKeys().get(0);
+        byte[] original = first.clone();
+        first[1] ^= 1;
+        assertArrayEquals(original, info.getPubKeys().get(0));
+        assertEquals(0, info.getKeyIndex(original));
+        assertSame(info, RedeemScriptInfo.of(redeemScript.getProgram()));
+        assertArrayEquals(original, RedeemScriptInfo.of(redeemScript.getProgram()).getPubKeys().get(0));
+    }
+
+    @Test(expected = ScriptException.class)
+    public void notMultiSig() throws Exception {
+        RedeemScriptInfo.of(ScriptBuilder.createOutputScript(new UldECKey()));
+    }
+}
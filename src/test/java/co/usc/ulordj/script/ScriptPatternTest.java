@@ -0,0 +1,103 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.Utils;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ScriptPatternTest {
+    private static final String HASH = "99170fbb183477a35a94c9bf390b770209d32a59";
+
+    private static byte[] bytes(String hex) {
+        return Utils.HEX.decode(hex);
+    }
+
+    @Test
+    public void payToPubKeyHash() throws Exception {
+        byte[] canonical = bytes("76a914" + HASH + "88ac");
+        byte[] pushData1 = bytes("76a94c14" + HASH + "88ac");
+        assertTrue(ScriptPattern.isP2PKH(canonical, 0, canonical.length));
+        assertTrue(ScriptPattern.isP2PKH(pushData1, 0, pushData1.length));
+        assertEquals(3, ScriptPattern.findHash160(canonical, 0, canonical.length));
+        assertEquals(4, ScriptPattern.findHash160(pushData1, 0, pushData1.length));
+        assertArrayEquals(bytes(HASH), ScriptPattern.extractHash160(pushData1, 0, pushData1.length));
+        assertArrayEquals(new Script(pushData1).getPubKeyHash(), ScriptPattern.extractHash160(pushData1, 0, pushData1.length));
+
+        // the same program inside a larger array
+        byte[] embedded = new byte[canonical.length + 7];
+        System.arraycopy(canonical, 0, embedded, 5, canonical.length);
+        assertTrue(ScriptPattern.isP2PKH(embedded, 5, canonical.length));
+        assertEquals(8, ScriptPattern.findHash160(embedded, 5, canonical.length));
+
+        // a 19 byte hash, and a hash pushed with the last opcode swapped
+        byte[] shortHash = bytes("76a913" + HASH.substring(2) + "88ac");
+        assertFalse(ScriptPattern.isP2PKH(shortHash, 0, shortHash.length));
+        byte[] checkMultiSig = bytes("76a914" + HASH + "88ae");
+        assertFalse(ScriptPattern.isP2PKH(checkMultiSig, 0, checkMultiSig.length));
+        assertNull(ScriptPattern.extractHash160(checkMultiSig, 0, checkMultiSig.length));
+    }
+
+    @Test
+    public void payToScriptHash() throws Exception {
+        byte[] p2sh = bytes("a914" + HASH + "87");
+        assertTrue(ScriptPattern.isP2SH(p2sh, 0, p2sh.length));
+        assertEquals(2, ScriptPattern.findHash160(p2sh, 0, p2sh.length));
+        // BIP 16 only accepts the exact bytes
+        byte[] pushData1 = bytes("a94c14" + HASH + "87");
+        assertFalse(ScriptPattern.isP2SH(pushData1, 0, pushData1.length));
+        assertFalse(new Script(pushData1).isPayToScriptHash());
+    }
+
+    @Test
+    public void payToPubKey() throws Exception {
+        UldECKey key = new UldECKey();
+        byte[] program = ScriptBuilder.createOutputScript(key).getProgram();
+        assertTrue(ScriptPattern.isP2PK(program, 0, program.length));
+        assertArrayEquals(key.getPubKey(), ScriptPattern.extractP2PKPubKey(program, 0, program.length));
+        byte[] oneByte = bytes("01ffac");
+        assertFalse(ScriptPattern.isP2PK(oneByte, 0, oneByte.length));
+        assertNull(ScriptPattern.extractP2PKPubKey(oneByte, 0, oneByte.length));
+    }
+
+    @Test
+    public void multiSig() throws Exception {
+        byte[] program = ScriptBuilder.createMultiSigOutputScript(2,
+                Arrays.asList(new UldECKey(), new UldECKey(), new UldECKey())).getProgram();
+        assertTrue(ScriptPattern.isSentToMultiSig(program, 0, program.length));
+        // n doesn't match the number of keys
+        byte[] tooFew = program.clone();
+        tooFew[tooFew.length - 2] = (byte) ScriptOpCodes.OP_4;
+        assertFalse(ScriptPattern.isSentToMultiSig(tooFew, 0, tooFew.length));
+        // a key replaced by an opcode
+        byte[] notPush = bytes("51" + "76" + "51ae");
+        assertFalse(ScriptPattern.isSentToMultiSig(notPush, 0, notPush.length));
+        assertFalse(new Script(notPush).isSentToMultiSig());
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        byte[] program = bytes("76a914" + HASH + "88ac");
+        for (int length = 0; length < program.length; length++) {
+            assertFalse(ScriptPattern.isP2PKH(program, 0, length));
+            assertEquals(-1, ScriptPattern.findHash160(program, 0, length));
+        }
+        assertEquals(-1, ScriptPattern.opEnd(bytes("4d01"), 0, 2));
+        assertEquals(-1, ScriptPattern.opEnd(bytes("0201"), 0, 2));
+        assertEquals(3, ScriptPattern.opEnd(bytes("0201ff"), 0, 3));
+    }
+
+    @Test
+    public void opReturnAndPaymentChannel() throws Exception {
+        assertTrue(ScriptPattern.isOpReturn(bytes("6a0401020304"), 0, 6));
+        assertFalse(ScriptPattern.isOpReturn(new byte[0], 0, 0));
+        Script channel = ScriptBuilder.createCLTVPaymentChannelOutput(BigInteger.valueOf(500000),
+                new UldECKey(), new UldECKey());
+        byte[] program = channel.getProgram();
+        assertTrue(ScriptPattern.isCLTVPaymentChannel(program, 0, program.length));
+        assertFalse(ScriptPattern.isCLTVPaymentChannel(program, 0, program.length - 1));
+    }
+}
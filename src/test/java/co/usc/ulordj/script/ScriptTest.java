@@ -233,6 +233,60 @@ public class ScriptTest {
         assertEquals("OP_0 push length", 0, stack.get(0).length);
     }
 
+    @Test
+    public void stackOpsAndNumbers() {
+        // 1 2 3 4 5 6 2ROT: 3 4 5 6 1 2, then 3 ROLL: 3 4 6 1 2 5, then NIP and 2 PICK: 3 4 6 1 5 6
+        Script script = new ScriptBuilder().number(1).number(2).number(3).number(4).number(5).number(6)
+                .op(ScriptOpCodes.OP_2ROT).number(3).op(ScriptOpCodes.OP_ROLL)
+                .op(ScriptOpCodes.OP_NIP).number(2).op(ScriptOpCodes.OP_PICK)
+                // 1000 + -1001 and its negation, across the sign byte
+                .number(1000).op(ScriptOpCodes.OP_1NEGATE).number(1000).op(ScriptOpCodes.OP_SUB).op(ScriptOpCodes.OP_ADD)
+                .op(ScriptOpCodes.OP_DUP).op(ScriptOpCodes.OP_NEGATE)
+                // not taken, so the false branch is skipped along with the nested one
+                .number(0).op(ScriptOpCodes.OP_IF).number(0).op(ScriptOpCodes.OP_IF).op(ScriptOpCodes.OP_RETURN)
+                .op(ScriptOpCodes.OP_ENDIF).op(ScriptOpCodes.OP_ELSE).number(127).number(128).op(ScriptOpCodes.OP_MAX)
+                .op(ScriptOpCodes.OP_ENDIF)
+                .build();
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(null, 0, script, stack, Script.ALL_VERIFY_FLAGS);
+        String[] expected = {"03", "04", "06", "01", "05", "06", "81", "01", "8000"};
+        assertEquals(expected.length, stack.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], HEX.encode(stack.get(i)));
+    }
+
+    @Test
+    public void stackHandedOutIsACopy() {
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(null, 0, new ScriptBuilder().number(1).build(), stack, Script.ALL_VERIFY_FLAGS);
+        stack.get(0)[0] = 0;
+        // the interpreter's own encoding of 1 is untouched
+        stack.clear();
+        Script.executeScript(null, 0, new ScriptBuilder().number(1).op(ScriptOpCodes.OP_VERIFY).number(1).build(),
+                stack, Script.ALL_VERIFY_FLAGS);
+        assertEquals("01", HEX.encode(stack.get(0)));
+    }
+
+    @Test
+    public void checkSigAgainstNonKeysFails() {
+        UldTransaction tx = new UldTransaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0]));
+        UldECKey key = new UldECKey();
+        byte[] sig = new TransactionSignature(key.sign(Sha256Hash.ZERO_HASH), SigHash.ALL, false).encodeToUlord();
+        // the point at infinity, a truncated key and a bad prefix
+        byte[][] nonKeys = { new byte[] { 0 }, new byte[] { 2, 1 }, new byte[] { 5, 1, 2, 3 } };
+        for (byte[] nonKey : nonKeys) {
+            Script scriptSig = new ScriptBuilder().data(sig).data(nonKey).build();
+            Script scriptPubKey = new ScriptBuilder().op(ScriptOpCodes.OP_CHECKSIG).build();
+            try {
+                scriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+                fail();
+            } catch (ScriptException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Script resulted in a non-true stack"));
+            }
+        }
+    }
+
     private Script parseScriptString(String string) throws IOException {
         String[] words = string.split("[ \\t\\n]");
         
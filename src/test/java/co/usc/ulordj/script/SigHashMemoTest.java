@@ -0,0 +1,55 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.Coin;
+import co.usc.ulordj.core.NetworkParameters;
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.UldTransaction;
+import co.usc.ulordj.core.UldTransaction.SigHash;
+import co.usc.ulordj.params.TestNet3Params;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SigHashMemoTest {
+    private static final NetworkParameters PARAMS = TestNet3Params.get();
+
+    @Test
+    public void hashesOncePerScriptCodeAndFlags() throws Exception {
+        UldECKey key = new UldECKey();
+        UldTransaction tx = new UldTransaction(PARAMS);
+        tx.addInput(Sha256Hash.of(new byte[] {1}), 0, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, key.toAddress(PARAMS));
+        byte[] program = ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(key)).getProgram();
+
+        SigHashMemo memo = new SigHashMemo(tx, 0);
+        byte all = (byte) SigHash.ALL.value;
+        byte none = (byte) SigHash.NONE.value;
+        Sha256Hash hash = memo.hashFor(program, 0, null, all);
+        assertEquals(tx.hashForSignature(0, program, all), hash);
+        assertSame(hash, memo.hashFor(program, 0, null, all));
+        assertEquals(tx.hashForSignature(0, program, none), memo.hashFor(program, 0, null, none));
+        assertSame(hash, memo.hashFor(program, 0, null, all));
+
+        // another script code
+        byte[] tail = Arrays.copyOfRange(program, 1, program.length);
+        assertEquals(tx.hashForSignature(0, tail, all), memo.hashFor(program, 1, null, all));
+        assertEquals(tx.hashForSignature(0, tail, all), memo.hashFor(program, 0, tail, all));
+        assertEquals(hash, memo.hashFor(program, 0, null, all));
+    }
+
+    @Test
+    public void removeAllInstancesOf() throws Exception {
+        byte[] sig = {0x30, 0x01, 0x02};
+        byte[] program = new ScriptBuilder().data(sig).op(ScriptOpCodes.OP_DROP).data(new byte[] {0x30, 0x01})
+                .data(sig).op(ScriptOpCodes.OP_CHECKSIG).build().getProgram();
+        byte[] expected = new ScriptBuilder().op(ScriptOpCodes.OP_DROP).data(new byte[] {0x30, 0x01})
+                .op(ScriptOpCodes.OP_CHECKSIG).build().getProgram();
+        assertArrayEquals(expected, Script.removeAllInstancesOf(program, new byte[] {0x03, 0x30, 0x01, 0x02}));
+        byte[] unchanged = Script.removeAllInstancesOf(program, new byte[] {0x03, 0x30, 0x01, 0x03});
+        assertArrayEquals(program, unchanged);
+        assertNotSame(program, unchanged);
+    }
+}
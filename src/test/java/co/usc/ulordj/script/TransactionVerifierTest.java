@@ -0,0 +1,123 @@
+package co.usc.ulordj.script;
+
+import co.usc.ulordj.core.*;
+import co.usc.ulordj.crypto.TransactionSignature;
+import co.usc.ulordj.params.UnitTestParams;
+import co.usc.ulordj.utils.Threading;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class TransactionVerifierTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private UldECKey key;
+    private List<TransactionOutput> funding;
+    private UldTransaction spend;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        key = new UldECKey();
+        UldTransaction fundingTx = new UldTransaction(PARAMS);
+        fundingTx.addInput(Sha256Hash.of(new byte[] { 1 }), 0, new Script(new byte[0]));
+        for (int i = 0; i < 8; i++)
+            fundingTx.addOutput(Coin.COIN, key.toAddress(PARAMS));
+        funding = fundingTx.getOutputs();
+
+        spend = new UldTransaction(PARAMS);
+        spend.addOutput(Coin.COIN.multiply(7), new UldECKey().toAddress(PARAMS));
+        for (TransactionOutput output : funding)
+            spend.addInput(output);
+        sign(spend, funding);
+    }
+
+    private void sign(UldTransaction tx, List<TransactionOutput> connectedOutputs) {
+        for (int i = 0; i < connectedOutputs.size(); i++) {
+            TransactionSignature signature = tx.calculateSignature(i, key,
+                    connectedOutputs.get(i).getScriptPubKey(), UldTransaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+    }
+
+    @Test
+    public void validTransaction() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            TransactionVerifier.Report report = new TransactionVerifier(executor, 4)
+                    .verify(spend, funding, Script.ALL_VERIFY_FLAGS);
+            assertTrue(report.isValid());
+            assertEquals(spend.getHash(), report.getTxHash());
+            assertEquals(8, report.getInputCount());
+            assertEquals(-1, report.getFirstInvalidInput());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void invalidInputShortCircuits() throws Exception {
+        spend.getInput(2).setScriptSig(spend.getInput(3).getScriptSig());
+        TransactionVerifier verifier = new TransactionVerifier(Threading.SAME_THREAD, 1);
+        TransactionVerifier.Report report = verifier.verify(spend, funding, Script.ALL_VERIFY_FLAGS);
+        assertFalse(report.isValid());
+        assertEquals(2, report.getFirstInvalidInput());
+        assertNotNull(report.getError(2));
+        assertEquals(TransactionVerifier.Status.VALID, report.getStatus(1));
+        assertEquals(TransactionVerifier.Status.SKIPPED, report.getStatus(3));
+        assertNull(report.getError(3));
+
+        // the same input fails in the usual single input check
+        try {
+            spend.getInput(2).getScriptSig().correctlySpends(spend, 2, funding.get(2).getScriptPubKey());
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+
+        // connected outputs can be taken from the inputs, and inputs without one fail without being run
+        assertEquals(2, verifier.verify(spend, Script.ALL_VERIFY_FLAGS).getFirstInvalidInput());
+        report = verifier.verify(new UldTransaction(PARAMS, spend.ulordSerialize()), Script.ALL_VERIFY_FLAGS);
+        assertEquals(0, report.getFirstInvalidInput());
+    }
+
+    @Test
+    public void block() throws Exception {
+        UldBlock block = PARAMS.getGenesisBlock().createNextBlock(null);
+        block.addTransaction(spend);
+        // a second transaction spending the output of the first one within the block
+        UldTransaction chained = new UldTransaction(PARAMS);
+        UldECKey chainedKey = new UldECKey();
+        chained.addOutput(Coin.COIN, chainedKey.toAddress(PARAMS));
+        UldTransaction change = new UldTransaction(PARAMS);
+        change.addInput(Sha256Hash.of(new byte[] { 2 }), 0, new Script(new byte[0]));
+        change.addOutput(Coin.COIN, key.toAddress(PARAMS));
+        block.addTransaction(change);
+        chained.addInput(change.getOutput(0));
+        sign(chained, change.getOutputs());
+        block.addTransaction(chained);
+
+        Map<TransactionOutPoint, TransactionOutput> spent = new HashMap<TransactionOutPoint, TransactionOutput>();
+        for (TransactionOutput output : funding)
+            spent.put(output.getOutPointFor(), output);
+        spent.put(change.getInput(0).getOutpoint(), new TransactionOutput(PARAMS, null, Coin.COIN,
+                new ScriptBuilder().smallNum(1).build().getProgram()));
+
+        TransactionVerifier.BlockReport report = new TransactionVerifier().verify(block, spent,
+                Script.ALL_VERIFY_FLAGS);
+        assertEquals(3, report.getReports().size());
+        assertTrue(report.isValid());
+        assertNull(report.getFirstInvalid());
+
+        spent.remove(funding.get(5).getOutPointFor());
+        report = new TransactionVerifier().verify(block, spent, Script.ALL_VERIFY_FLAGS);
+        assertFalse(report.isValid());
+        assertEquals(spend.getHash(), report.getFirstInvalid().getTxHash());
+        assertEquals(5, report.getFirstInvalid().getFirstInvalidInput());
+    }
+}
@@ -0,0 +1,144 @@
+package co.usc.ulordj.signers;
+
+import co.usc.ulordj.core.*;
+import co.usc.ulordj.params.UnitTestParams;
+import co.usc.ulordj.script.Script;
+import co.usc.ulordj.script.ScriptBuilder;
+import co.usc.ulordj.script.ScriptChunk;
+import co.usc.ulordj.utils.Threading;
+import co.usc.ulordj.wallet.KeyBag;
+import co.usc.ulordj.wallet.RedeemData;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class LocalTransactionSignerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private List<UldECKey> keys;
+    private Script redeemScript;
+
+    /** A key bag holding some of the keys, and the redeem script of all of them. */
+    private class Bag implements KeyBag {
+        private final List<UldECKey> held;
+
+        Bag(UldECKey... held) {
+            this.held = Arrays.asList(held);
+        }
+
+        @Nullable
+        @Override
+        public UldECKey findKeyFromPubHash(byte[] pubkeyHash) {
+            for (UldECKey key : held)
+                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash))
+                    return key;
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public UldECKey findKeyFromPubKey(byte[] pubkey) {
+            for (UldECKey key : held)
+                if (Arrays.equals(key.getPubKey(), pubkey))
+                    return key;
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
+            List<UldECKey> redeemKeys = new ArrayList<UldECKey>();
+            for (UldECKey key : keys)
+                redeemKeys.add(held.contains(key) ? key : UldECKey.fromPublicOnly(key.getPubKey()));
+            return RedeemData.of(redeemKeys, redeemScript);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        keys = new ArrayList<UldECKey>();
+        for (int i = 0; i < 3; i++)
+            keys.add(new UldECKey());
+        Collections.sort(keys, UldECKey.PUBKEY_COMPARATOR);
+        redeemScript = ScriptBuilder.createRedeemScript(2, keys);
+    }
+
+    /** Returns a transaction spending one output with each of the given scripts, with empty input scripts. */
+    private UldTransaction spending(Script... scriptPubKeys) {
+        UldTransaction funding = new UldTransaction(PARAMS);
+        funding.addInput(Sha256Hash.of(new byte[] {1}), 0, new Script(new byte[0]));
+        for (Script scriptPubKey : scriptPubKeys)
+            funding.addOutput(Coin.COIN, scriptPubKey);
+        UldTransaction tx = new UldTransaction(PARAMS);
+        tx.addOutput(Coin.CENT, new UldECKey().toAddress(PARAMS));
+        for (TransactionOutput output : funding.getOutputs()) {
+            TransactionInput input = tx.addInput(output);
+            input.setScriptSig(new Script(new byte[0]));
+        }
+        return tx;
+    }
+
+    private static void assertSpends(UldTransaction tx) {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(tx, i, input.getConnectedOutput().getScriptPubKey());
+        }
+    }
+
+    @Test
+    public void payToAddressInParallel() throws Exception {
+        Script[] scriptPubKeys = new Script[20];
+        for (int i = 0; i < scriptPubKeys.length; i++)
+            scriptPubKeys[i] = ScriptBuilder.createOutputScript(keys.get(i % 2).toAddress(PARAMS));
+        UldTransaction tx = spending(scriptPubKeys);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            new LocalTransactionSigner(executor, 4).signInputs(new TransactionSigner.ProposedTransaction(tx),
+                    new Bag(keys.get(0), keys.get(1)));
+        } finally {
+            executor.shutdown();
+        }
+        assertSpends(tx);
+    }
+
+    @Test
+    public void payToScriptHashMultiSig() throws Exception {
+        UldTransaction tx = spending(ScriptBuilder.createP2SHOutputScript(redeemScript));
+        TransactionSigner.ProposedTransaction proposal = new TransactionSigner.ProposedTransaction(tx);
+
+        // one key leaves a placeholder for the other signature
+        new LocalTransactionSigner(Threading.SAME_THREAD, 1).signInputs(proposal, new Bag(keys.get(2)));
+        List<ScriptChunk> chunks = tx.getInput(0).getScriptSig().getChunks();
+        assertEquals(4, chunks.size());
+        assertTrue(chunks.get(1).data.length > 0);
+        assertTrue(chunks.get(2).equalsOpCode(0));
+
+        // the second one comes first in key order, and then the input is done
+        new LocalTransactionSigner().signInputs(proposal, new Bag(keys.get(0)));
+        assertSpends(tx);
+        byte[] signed = tx.getInput(0).getScriptBytes();
+        new LocalTransactionSigner().signInputs(proposal, new Bag(keys.get(1)));
+        assertArrayEquals(signed, tx.getInput(0).getScriptBytes());
+    }
+
+    @Test
+    public void bareMultiSigAndPayToPubKey() throws Exception {
+        UldTransaction tx = spending(ScriptBuilder.createMultiSigOutputScript(2, keys),
+                ScriptBuilder.createOutputScript(keys.get(1)), ScriptBuilder.createOutputScript(new UldECKey()));
+        new LocalTransactionSigner().signInputs(new TransactionSigner.ProposedTransaction(tx),
+                new Bag(keys.get(1), keys.get(2)));
+        for (int i = 0; i < 2; i++) {
+            TransactionInput input = tx.getInput(i);
+            input.getScriptSig().correctlySpends(tx, i, input.getConnectedOutput().getScriptPubKey());
+        }
+        // no key for the last one
+        assertEquals(0, tx.getInput(2).getScriptBytes().length);
+    }
+}
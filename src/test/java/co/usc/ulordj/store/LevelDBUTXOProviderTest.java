@@ -0,0 +1,318 @@
+package co.usc.ulordj.store;
+
+import co.usc.ulordj.core.AbstractStreamingUTXOProviderTest;
+import co.usc.ulordj.core.Address;
+import co.usc.ulordj.core.Coin;
+import co.usc.ulordj.core.Sha256Hash;
+import co.usc.ulordj.core.StreamingUTXOProvider;
+import co.usc.ulordj.core.TransactionOutPoint;
+import co.usc.ulordj.core.UTXO;
+import co.usc.ulordj.core.UTXOFilter;
+import co.usc.ulordj.core.UTXOIndex;
+import co.usc.ulordj.core.UTXOProviderException;
+import co.usc.ulordj.core.UldECKey;
+import co.usc.ulordj.core.Utils;
+import co.usc.ulordj.script.Script;
+import co.usc.ulordj.script.ScriptBuilder;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LevelDBUTXOProviderTest extends AbstractStreamingUTXOProviderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private LevelDBUTXOProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("utxo");
+        provider = new LevelDBUTXOProvider(PARAMS, directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.close();
+    }
+
+    @Override
+    protected StreamingUTXOProvider provider() {
+        return provider;
+    }
+
+    @Override
+    protected boolean add(UTXO utxo) throws Exception {
+        return provider.add(utxo);
+    }
+
+    @Override
+    protected UTXO spend(Sha256Hash hash, long index) throws Exception {
+        return provider.spend(hash, index);
+    }
+
+    @Override
+    protected void setChainHeadHeight(int chainHeadHeight) throws Exception {
+        provider.setChainHeadHeight(chainHeadHeight);
+    }
+
+    @Test
+    public void compactRecords() throws Exception {
+        UldECKey key = new UldECKey();
+        Script[] scripts = {
+                ScriptBuilder.createOutputScript(ADDRESSES[0]),
+                ScriptBuilder.createP2SHOutputScript(new byte[20]),
+                ScriptBuilder.createOutputScript(key),
+                ScriptBuilder.createOutputScript(UldECKey.fromPublicOnly(key.decompress().getPubKey())),
+                ScriptBuilder.createOpReturnScript(new byte[] { 1, 2, 3 }),
+        };
+        // What follows the height and value: the template, then the hash, key or whole program.
+        int[] templates = { CompactUTXOCodec.P2PKH, CompactUTXOCodec.P2SH, CompactUTXOCodec.P2PK,
+                CompactUTXOCodec.RAW, CompactUTXOCodec.RAW };
+        int[] payloads = { 20, 20, 33, 1 + 67, 1 + 5 };
+        for (int i = 0; i < scripts.length; i++) {
+            UTXO utxo = utxo(i, i, 1234567890L * i, 400000 + i, i % 2 == 0, scripts[i]);
+            byte[] record = CompactUTXOCodec.encode(utxo);
+            int[] cursor = new int[1];
+            CompactUTXOCodec.readVarLong(record, cursor);
+            CompactUTXOCodec.readVarLong(record, cursor);
+            assertEquals(templates[i], record[cursor[0]]);
+            assertEquals(cursor[0] + 1 + payloads[i], record.length);
+            assertArrayEquals(scripts[i].getProgram(), CompactUTXOCodec.decodeProgram(record));
+
+            assertTrue(provider.add(utxo));
+            UTXO stored = provider.get(utxo.getHash(), utxo.getIndex());
+            assertEquals(utxo, stored);
+            assertEquals(utxo.getValue(), stored.getValue());
+            assertEquals(utxo.getHeight(), stored.getHeight());
+            assertEquals(utxo.isCoinbase(), stored.isCoinbase());
+            assertArrayEquals(utxo.getScript().getProgram(), stored.getScript().getProgram());
+        }
+        // Against the 25 byte program, 32 byte hash and address string of a serialized UTXO.
+        assertEquals(3 + 4 + 1 + 20, CompactUTXOCodec.encode(utxo(0, 0, 100000000L, 400000, false, scripts[0])).length);
+    }
+
+    @Test
+    public void updateAndReopen() throws Exception {
+        List<UTXO> added = new ArrayList<UTXO>();
+        for (int i = 0; i < 100; i++)
+            added.add(utxo(i, i % 3, 1000 + i, ADDRESSES[i % ADDRESSES.length]));
+        for (UTXO utxo : added)
+            assertTrue(provider.add(utxo));
+
+        // A block spending an output it also creates leaves it spent.
+        UTXO created = utxo(500, 0, 42, ADDRESSES[1]);
+        provider.update(Collections.singletonList(created), Arrays.asList(
+                new TransactionOutPoint(PARAMS, created.getIndex(), created.getHash()),
+                new TransactionOutPoint(PARAMS, added.get(8).getIndex(), added.get(8).getHash())), 2000);
+        assertNull(provider.get(created.getHash(), created.getIndex()));
+        assertEquals(2000, provider.getChainHeadHeight());
+
+        Set<UTXO> expected = new HashSet<UTXO>(added);
+        expected.remove(added.get(8));
+        provider.close();
+        provider = new LevelDBUTXOProvider(PARAMS, directory);
+        assertEquals(2000, provider.getChainHeadHeight());
+        assertEquals(expected, collect(provider, UTXOFilter.ALL));
+        Set<UTXO> paying = new HashSet<UTXO>();
+        for (UTXO utxo : expected)
+            if (utxo.getScript().equals(ScriptBuilder.createOutputScript(ADDRESSES[1])))
+                paying.add(utxo);
+        assertEquals(paying, new HashSet<UTXO>(provider.getOpenTransactionOutputs(
+                Collections.singletonList(ADDRESSES[1]))));
+    }
+
+    @Test
+    public void updateReplacesOutputs() throws Exception {
+        UTXO first = utxo(1, 0, 100, ADDRESSES[0]);
+        assertTrue(provider.add(first));
+        UTXO second = utxo(1, 0, 200, ADDRESSES[1]);
+        provider.update(Collections.singletonList(second), Collections.<TransactionOutPoint>emptyList(), 1);
+        UTXOFilter firstOnly = UTXOFilter.forAddresses(Collections.singletonList(ADDRESSES[0]));
+        UTXOFilter secondOnly = UTXOFilter.forAddresses(Collections.singletonList(ADDRESSES[1]));
+        assertTrue(collect(provider, firstOnly).isEmpty());
+        assertTrue(provider.getOpenTransactionOutputs(Collections.singletonList(ADDRESSES[0])).isEmpty());
+        assertEquals(Coin.valueOf(200), provider.get(first.getHash(), 0).getValue());
+        assertEquals(Collections.singleton(second), collect(provider, secondOnly));
+
+        // Replaced twice in one update, the last one stays, and is seen once whatever the filter.
+        UTXO third = utxo(1, 0, 300, ADDRESSES[2]);
+        provider.update(Arrays.asList(first, third), Collections.<TransactionOutPoint>emptyList(), 2);
+        assertTrue(collect(provider, firstOnly).isEmpty());
+        assertTrue(collect(provider, secondOnly).isEmpty());
+        assertEquals(Coin.valueOf(300), provider.get(first.getHash(), 0).getValue());
+        assertEquals(1, page(provider, UTXOFilter.forAddresses(Arrays.asList(ADDRESSES)), 1).size());
+    }
+
+    @Test
+    public void concurrentAdds() throws Exception {
+        final AtomicInteger added = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++)
+                            if (provider.add(utxo(i, 0, 1000 + i, ADDRESSES[i % ADDRESSES.length])))
+                                added.incrementAndGet();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(Collections.<Exception>emptyList(), errors);
+        assertEquals(200, added.get());
+        assertEquals(200, collect(provider, UTXOFilter.ALL).size());
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        Set<UTXO> expected = new HashSet<UTXO>();
+        for (int i = 0; i < 300; i++) {
+            UTXO utxo = utxo(i, 1, 100000L * i, ADDRESSES[i % ADDRESSES.length]);
+            provider.add(utxo);
+            expected.add(utxo);
+        }
+        provider.setChainHeadHeight(123456);
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        provider.exportSnapshot(snapshot);
+
+        LevelDBUTXOProvider imported = new LevelDBUTXOProvider(PARAMS, folder.newFolder("imported"));
+        try {
+            // Whatever was there before is replaced.
+            imported.add(utxo(1000, 0, 1, ADDRESSES[0]));
+            imported.importSnapshot(new ByteArrayInputStream(snapshot.toByteArray()));
+            assertEquals(123456, imported.getChainHeadHeight());
+            assertEquals(expected, collect(imported, UTXOFilter.ALL));
+            for (Address address : ADDRESSES) {
+                UTXOFilter filter = UTXOFilter.forAddresses(Collections.singletonList(address));
+                assertEquals(collect(provider, filter), collect(imported, filter));
+            }
+            ByteArrayOutputStream again = new ByteArrayOutputStream();
+            imported.exportSnapshot(again);
+            assertArrayEquals(snapshot.toByteArray(), again.toByteArray());
+        } finally {
+            imported.close();
+        }
+    }
+
+    private byte[] export(LevelDBUTXOProvider provider) throws Exception {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        provider.exportSnapshot(snapshot);
+        return snapshot.toByteArray();
+    }
+
+    @Test
+    public void badSnapshotsChangeNothing() throws Exception {
+        for (int i = 0; i < 50; i++)
+            provider.add(utxo(i, 0, 1000 + i, ADDRESSES[i % ADDRESSES.length]));
+        provider.setChainHeadHeight(77);
+        byte[] before = export(provider);
+
+        LevelDBUTXOProvider other = new LevelDBUTXOProvider(PARAMS, folder.newFolder("other"));
+        try {
+            for (int i = 100; i < 150; i++)
+                other.add(utxo(i, 0, 1000 + i, ADDRESSES[i % ADDRESSES.length]));
+            other.setChainHeadHeight(500);
+            byte[] snapshot = export(other);
+            try {
+                provider.importSnapshot(new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length - 10)));
+                fail();
+            } catch (EOFException e) {
+                // expected
+            }
+        } finally {
+            other.close();
+        }
+        assertEquals(77, provider.getChainHeadHeight());
+        assertArrayEquals(before, export(provider));
+
+        // A record with a template that doesn't exist, and one whose script runs past its end.
+        byte[][] records = { { 20, 1, 9 }, { 20, 1, CompactUTXOCodec.RAW, 5, 1, 2 } };
+        for (byte[] record : records) {
+            ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+            corrupt.write(new byte[] { 'U', 'T', 'X', 'S', 1, 100 });
+            corrupt.write(1);
+            corrupt.write(new byte[UTXOIndex.OUTPOINT_LENGTH]);
+            corrupt.write(record.length);
+            corrupt.write(record);
+            corrupt.write(0);
+            try {
+                provider.importSnapshot(new ByteArrayInputStream(corrupt.toByteArray()));
+                fail();
+            } catch (UTXOProviderException e) {
+                // expected
+            }
+            assertEquals(77, provider.getChainHeadHeight());
+            assertArrayEquals(before, export(provider));
+        }
+
+        provider.close();
+        provider = new LevelDBUTXOProvider(PARAMS, directory);
+        assertEquals(77, provider.getChainHeadHeight());
+        assertArrayEquals(before, export(provider));
+    }
+
+    @Test
+    public void interruptedImportIsFinishedOnOpen() throws Exception {
+        UTXO old = utxo(1, 0, 100, ADDRESSES[0]);
+        provider.add(old);
+        provider.setChainHeadHeight(10);
+        provider.close();
+
+        // The state a crash right after a snapshot of one output was read leaves behind.
+        UTXO imported = utxo(2, 0, 200, ADDRESSES[1]);
+        byte[] key = new byte[1 + UTXOIndex.OUTPOINT_LENGTH];
+        key[0] = LevelDBUTXOProvider.STAGED;
+        UTXOIndex.writeOutPoint(imported.getHash(), imported.getIndex(), key, 1);
+        byte[] marker = new byte[5];
+        Utils.uint32ToByteArrayLE(20, marker, 0);
+        marker[4] = LevelDBUTXOProvider.CLEARING;
+        DB db = JniDBFactory.factory.open(directory, new Options());
+        try {
+            db.put(key, CompactUTXOCodec.encode(imported));
+            db.put(new byte[] { LevelDBUTXOProvider.IMPORT }, marker);
+        } finally {
+            db.close();
+        }
+
+        provider = new LevelDBUTXOProvider(PARAMS, directory);
+        assertEquals(20, provider.getChainHeadHeight());
+        assertNull(provider.get(old.getHash(), old.getIndex()));
+        assertEquals(Collections.singleton(imported), collect(provider, UTXOFilter.ALL));
+        assertTrue(collect(provider, UTXOFilter.forAddresses(Collections.singletonList(ADDRESSES[0]))).isEmpty());
+        assertEquals(Collections.singleton(imported),
+                collect(provider, UTXOFilter.forAddresses(Collections.singletonList(ADDRESSES[1]))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyCursorRejected() throws Exception {
+        provider.getOpenTransactionOutputs(UTXOFilter.ALL, new byte[0], 10);
+    }
+}